@@ -0,0 +1,62 @@
+package com.skythinker.gptassistant;
+
+// 一个可用于对话请求的API服务器地址及密钥，附带负载均衡和统计所需的状态
+public class ApiEndpoint {
+    public final String host;
+    public final String key;
+    public final int weight; // 轮询权重
+
+    int currentWeight = 0; // 平滑加权轮询的当前权重
+    long lastThrottleTime = 0; // 最近一次被限流的时间
+    long ejectedUntil = 0; // 暂停使用的截止时间，0表示正常
+    int ejectCount = 0; // 连续被暂停的次数，用于计算暂停时长
+    boolean unauthorized = false; // 密钥无效导致的暂停
+    boolean healthChecking = false; // 正在进行健康检查
+
+    long successCount = 0;
+    long failureCount = 0;
+    long throttleCount = 0; // 429及401次数
+    long latencySum = 0; // 首个数据块延迟之和
+    long latencyCount = 0;
+    final long[] ttftSamples = new long[20]; // 最近若干次请求的首字延迟（环形缓冲），用于计算对冲等待时间
+    int ttftSampleCount = 0; // 已记录的首字延迟总数
+
+    public ApiEndpoint(String host, String key, int weight) {
+        this.host = host.endsWith("/") ? host : host + "/";
+        this.key = key;
+        this.weight = Math.max(1, weight);
+    }
+
+    // 解析一行配置：“地址 密钥 [权重]”，格式错误返回null
+    public static ApiEndpoint parse(String line) {
+        String[] parts = line.trim().split("\\s+");
+        if(parts.length < 2 || !(parts[0].startsWith("http://") || parts[0].startsWith("https://")))
+            return null;
+        int weight = 1;
+        if(parts.length >= 3) {
+            try {
+                weight = Integer.parseInt(parts[2]);
+            } catch (NumberFormatException ignore) { }
+        }
+        return new ApiEndpoint(parts[0], parts[1], weight);
+    }
+
+    public boolean isEjected(long now) {
+        return ejectedUntil > now;
+    }
+
+    public boolean sameAs(ApiEndpoint other) {
+        return host.equals(other.host) && key.equals(other.key);
+    }
+
+    // 脱敏后的密钥，用于显示
+    public String getMaskedKey() {
+        if(key.length() <= 10)
+            return "***";
+        return key.substring(0, 5) + "..." + key.substring(key.length() - 4);
+    }
+
+    public long getAverageLatency() {
+        return latencyCount == 0 ? -1 : latencySum / latencyCount;
+    }
+}
@@ -0,0 +1,304 @@
+package com.skythinker.gptassistant;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// 纯Java实现的BPE分词器，与tiktoken的cl100k_base及o200k_base编码兼容，用于在本地计算提问的token数
+public class BpeTokenizer {
+    public enum Encoding {
+        CL100K_BASE("cl100k_base", "(?i:'s|'t|'re|'ve|'m|'ll|'d)|[^\\r\\n\\p{L}\\p{N}]?\\p{L}+|\\p{N}{1,3}| ?[^\\s\\p{L}\\p{N}]+[\\r\\n]*|\\s*[\\r\\n]+|\\s+(?!\\S)|\\s+"),
+        O200K_BASE("o200k_base", "[^\\r\\n\\p{L}\\p{N}]?[\\p{Lu}\\p{Lt}\\p{Lm}\\p{Lo}\\p{M}]*[\\p{Ll}\\p{Lm}\\p{Lo}\\p{M}]+(?i:'s|'t|'re|'ve|'m|'ll|'d)?"
+                + "|[^\\r\\n\\p{L}\\p{N}]?[\\p{Lu}\\p{Lt}\\p{Lm}\\p{Lo}\\p{M}]+[\\p{Ll}\\p{Lm}\\p{Lo}\\p{M}]*(?i:'s|'t|'re|'ve|'m|'ll|'d)?"
+                + "|\\p{N}{1,3}| ?[^\\s\\p{L}\\p{N}]+[\\r\\n/]*|\\s*[\\r\\n]+|\\s+(?!\\S)|\\s+");
+
+        public final String name;
+        final String regex;
+
+        Encoding(String name, String regex) {
+            this.name = name;
+            this.regex = regex;
+        }
+    }
+
+    private static final int BINARY_MAGIC = 0x42504531; // 二进制合并表文件头 "BPE1"
+    private static final int MAX_PIECE_BYTES = 256; // 超长的片段分段合并，避免O(n²)的合并耗时过长（结果可能与tiktoken略有差异）
+    private static final int CACHE_PIECE_LENGTH = 32; // 只缓存较短的片段（常见单词）
+    private static final int CACHE_SIZE = 8192;
+
+    public final Encoding encoding;
+    private final Pattern pattern;
+
+    // 合并表：rank为i的token字节为tokenBytes[offsets[i], offsets[i+1])，slots为开放寻址哈希表，存放rank+1（0表示空）
+    private final byte[] tokenBytes;
+    private final int[] offsets;
+    private final int[] slots;
+    private final int mask;
+
+    private final Map<String, Integer> countCache = new LinkedHashMap<String, Integer>(CACHE_SIZE, 0.75f, true) { // 片段 -> token数
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private BpeTokenizer(Encoding encoding, byte[] tokenBytes, int[] offsets) {
+        this.encoding = encoding;
+        this.pattern = compilePattern(encoding.regex);
+        this.tokenBytes = tokenBytes;
+        this.offsets = offsets;
+        int tokenCount = offsets.length - 1;
+        int capacity = Integer.highestOneBit(Math.max(16, tokenCount * 2 - 1)) << 1;
+        slots = new int[capacity];
+        mask = capacity - 1;
+        for(int rank = 0; rank < tokenCount; rank++) {
+            int length = offsets[rank + 1] - offsets[rank];
+            if(length == 0) // 文件中缺失的rank
+                continue;
+            int slot = hash(tokenBytes, offsets[rank], length) & mask;
+            while(slots[slot] != 0)
+                slot = (slot + 1) & mask;
+            slots[slot] = rank + 1;
+        }
+    }
+
+    // Android的正则基于ICU，\s和\p{L}默认支持Unicode，不支持UNICODE_CHARACTER_CLASS标志
+    private static Pattern compilePattern(String regex) {
+        try {
+            return Pattern.compile(regex, Pattern.UNICODE_CHARACTER_CLASS);
+        } catch (IllegalArgumentException e) {
+            return Pattern.compile(regex);
+        }
+    }
+
+    // 解析tiktoken格式的合并表（每行为“base64编码的token rank”）
+    public static BpeTokenizer fromTiktoken(InputStream input, Encoding encoding) throws IOException {
+        byte[][] tokens = new byte[1 << 17][];
+        int maxRank = -1, totalLength = 0;
+        BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+        String line;
+        while((line = reader.readLine()) != null) {
+            int space = line.indexOf(' ');
+            if(space <= 0)
+                continue;
+            int rank;
+            byte[] token;
+            try {
+                rank = Integer.parseInt(line.substring(space + 1).trim());
+                token = Base64.getDecoder().decode(line.substring(0, space));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Invalid line in " + encoding.name + ": " + line);
+            }
+            if(rank < 0)
+                throw new IOException("Invalid rank in " + encoding.name + ": " + line);
+            if(rank >= tokens.length)
+                tokens = Arrays.copyOf(tokens, Math.max(tokens.length * 2, rank + 1));
+            tokens[rank] = token;
+            maxRank = Math.max(maxRank, rank);
+            totalLength += token.length;
+        }
+        if(maxRank < 255) // 至少应包含所有单字节token
+            throw new IOException("Incomplete merge table for " + encoding.name);
+        byte[] tokenBytes = new byte[totalLength];
+        int[] offsets = new int[maxRank + 2];
+        int pos = 0;
+        for(int rank = 0; rank <= maxRank; rank++) {
+            offsets[rank] = pos;
+            if(tokens[rank] != null) {
+                System.arraycopy(tokens[rank], 0, tokenBytes, pos, tokens[rank].length);
+                pos += tokens[rank].length;
+            }
+        }
+        offsets[maxRank + 1] = pos;
+        return new BpeTokenizer(encoding, tokenBytes, offsets);
+    }
+
+    // 读取writeBinary保存的合并表，比解析tiktoken文本快得多
+    public static BpeTokenizer fromBinary(InputStream input, Encoding encoding) throws IOException {
+        DataInputStream in = new DataInputStream(input);
+        if(in.readInt() != BINARY_MAGIC)
+            throw new IOException("Not a merge table file");
+        int[] offsets = new int[in.readInt()];
+        for(int i = 0; i < offsets.length; i++)
+            offsets[i] = in.readInt();
+        byte[] tokenBytes = new byte[offsets[offsets.length - 1]];
+        in.readFully(tokenBytes);
+        return new BpeTokenizer(encoding, tokenBytes, offsets);
+    }
+
+    public void writeBinary(OutputStream output) throws IOException {
+        DataOutputStream out = new DataOutputStream(output);
+        out.writeInt(BINARY_MAGIC);
+        out.writeInt(offsets.length);
+        for(int offset : offsets)
+            out.writeInt(offset);
+        out.write(tokenBytes);
+        out.flush();
+    }
+
+    // FNV-1a
+    private static int hash(byte[] bytes, int start, int length) {
+        int h = 0x811c9dc5;
+        for(int i = start; i < start + length; i++) {
+            h ^= bytes[i] & 0xff;
+            h *= 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    // 查找字节序列的rank，不存在返回-1
+    private int rankOf(byte[] bytes, int start, int length) {
+        int slot = hash(bytes, start, length) & mask;
+        while(true) {
+            int entry = slots[slot];
+            if(entry == 0)
+                return -1;
+            int rank = entry - 1;
+            int offset = offsets[rank];
+            if(offsets[rank + 1] - offset == length) {
+                boolean equal = true;
+                for(int i = 0; i < length; i++) {
+                    if(tokenBytes[offset + i] != bytes[start + i]) {
+                        equal = false;
+                        break;
+                    }
+                }
+                if(equal)
+                    return rank;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    // 对一个片段进行BPE合并，结果写入out（可为null），返回token数
+    private int mergePiece(byte[] bytes, int start, int length, IntList out) {
+        if(rankOf(bytes, start, length) >= 0) {
+            if(out != null)
+                out.add(rankOf(bytes, start, length));
+            return 1;
+        }
+        // boundaries[i]为第i个部分的起点，pairRanks[i]为第i和i+1部分合并后的rank
+        int[] boundaries = new int[length + 1];
+        int[] pairRanks = new int[length];
+        int parts = length;
+        for(int i = 0; i <= length; i++)
+            boundaries[i] = start + i;
+        for(int i = 0; i < parts - 1; i++)
+            pairRanks[i] = rankOf(bytes, boundaries[i], 2);
+        while(parts > 1) {
+            int minIndex = -1, minRank = Integer.MAX_VALUE;
+            for(int i = 0; i < parts - 1; i++) {
+                if(pairRanks[i] >= 0 && pairRanks[i] < minRank) {
+                    minRank = pairRanks[i];
+                    minIndex = i;
+                }
+            }
+            if(minIndex < 0)
+                break;
+            // 合并minIndex与minIndex+1
+            System.arraycopy(boundaries, minIndex + 2, boundaries, minIndex + 1, parts - minIndex - 1);
+            System.arraycopy(pairRanks, minIndex + 1, pairRanks, minIndex, parts - minIndex - 2);
+            parts--;
+            if(minIndex < parts - 1)
+                pairRanks[minIndex] = rankOf(bytes, boundaries[minIndex], boundaries[minIndex + 2] - boundaries[minIndex]);
+            if(minIndex > 0)
+                pairRanks[minIndex - 1] = rankOf(bytes, boundaries[minIndex - 1], boundaries[minIndex + 1] - boundaries[minIndex - 1]);
+        }
+        if(out != null) {
+            for(int i = 0; i < parts; i++)
+                out.add(rankOf(bytes, boundaries[i], boundaries[i + 1] - boundaries[i]));
+        }
+        return parts;
+    }
+
+    // 对一个正则片段编码，超长片段按UTF-8字符边界分段
+    private int encodePiece(String piece, IntList out) {
+        byte[] bytes = piece.getBytes(StandardCharsets.UTF_8);
+        int count = 0;
+        for(int start = 0; start < bytes.length; ) {
+            int end = Math.min(bytes.length, start + MAX_PIECE_BYTES);
+            while(end < bytes.length && (bytes[end] & 0xc0) == 0x80) // 不拆分多字节字符
+                end--;
+            count += mergePiece(bytes, start, end - start, out);
+            start = end;
+        }
+        return count;
+    }
+
+    private int countPiece(String piece) {
+        if(piece.length() > CACHE_PIECE_LENGTH)
+            return encodePiece(piece, null);
+        synchronized (countCache) {
+            Integer cached = countCache.get(piece);
+            if(cached != null)
+                return cached;
+        }
+        int count = encodePiece(piece, null);
+        synchronized (countCache) {
+            countCache.put(piece, count);
+        }
+        return count;
+    }
+
+    // 编码为token id（不处理特殊token）
+    public int[] encode(String text) {
+        IntList out = new IntList();
+        Matcher matcher = pattern.matcher(text);
+        while(matcher.find())
+            encodePiece(matcher.group(), out);
+        return out.toArray();
+    }
+
+    public int count(String text) {
+        if(text == null || text.isEmpty())
+            return 0;
+        int count = 0;
+        Matcher matcher = pattern.matcher(text);
+        while(matcher.find())
+            count += countPiece(matcher.group());
+        return count;
+    }
+
+    // 截取文本开头不超过maxTokens个token的部分（在片段边界处截断）
+    public String truncate(String text, int maxTokens) {
+        int count = 0;
+        Matcher matcher = pattern.matcher(text);
+        while(matcher.find()) {
+            count += countPiece(matcher.group());
+            if(count > maxTokens)
+                return text.substring(0, matcher.start());
+        }
+        return text;
+    }
+
+    public int getTokenCount() {
+        return offsets.length - 1;
+    }
+
+    // 不装箱的int列表
+    private static class IntList {
+        int[] values = new int[64];
+        int size = 0;
+
+        void add(int value) {
+            if(size == values.length)
+                values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
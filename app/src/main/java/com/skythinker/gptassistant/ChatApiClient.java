@@ -1,38 +1,38 @@
 package com.skythinker.gptassistant;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.Pair;
 
 import androidx.annotation.Nullable;
 
-import com.unfbx.chatgpt.OpenAiStreamClient;
-import com.unfbx.chatgpt.entity.chat.BaseChatCompletion;
-import com.unfbx.chatgpt.entity.chat.ChatCompletionWithPicture;
-import com.unfbx.chatgpt.entity.chat.Content;
-import com.unfbx.chatgpt.entity.chat.FunctionCall;
-import com.unfbx.chatgpt.entity.chat.Functions;
-import com.unfbx.chatgpt.entity.chat.ImageUrl;
-import com.unfbx.chatgpt.entity.chat.Message;
-import com.unfbx.chatgpt.entity.chat.ChatCompletion;
-import com.unfbx.chatgpt.entity.chat.MessagePicture;
-import com.unfbx.chatgpt.entity.chat.Parameters;
-
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLException;
 
+import cn.hutool.json.JSONArray;
 import cn.hutool.json.JSONObject;
-import okhttp3.ConnectionSpec;
 import okhttp3.OkHttpClient;
+import okhttp3.Request;
 import okhttp3.Response;
 import okhttp3.internal.http2.StreamResetException;
 import okhttp3.sse.EventSource;
 import okhttp3.sse.EventSourceListener;
+import okhttp3.sse.EventSources;
 
-import com.skythinker.gptassistant.ChatManager.ChatMessage.ChatRole;
 import com.skythinker.gptassistant.ChatManager.ChatMessage;
 import com.unfbx.chatgpt.entity.whisper.WhisperResponse;
 
@@ -41,8 +41,23 @@ public class ChatApiClient {
     public interface OnReceiveListener {
         void onMsgReceive(String message);
         void onError(String message);
-        void onFunctionCall(String name, String arg);
+        void onFunctionCall(List<FunctionCall> calls); // 一次回复中可能同时请求多个函数调用
         void onFinished(boolean completed);
+        // 函数调用参数的顶层字符串字段接收完整（此时整个调用尚未结束，可提前开始准备）
+        default void onFunctionArgument(String name, String key, String value) { }
+    }
+
+    // 模型请求的一次函数调用
+    public static class FunctionCall {
+        public final String id;
+        public final String name;
+        public final String arguments;
+
+        FunctionCall(String id, String name, String arguments) {
+            this.id = id;
+            this.name = name;
+            this.arguments = arguments;
+        }
     }
 
     String url = "";
@@ -51,12 +66,53 @@ public class ChatApiClient {
     OnReceiveListener listener = null;
 
     OkHttpClient httpClient = null;
-    OpenAiStreamClient chatGPT = null;
-
-    List<Functions> functions = new ArrayList<>();
-
-    String callingFuncName = "";
-    String callingFuncArg = "";
+    final Set<ChatRequestHandle> activeHandles = Collections.synchronizedSet(new HashSet<>()); // 正在进行的请求（调度器为全局共享，不能直接cancelAll）
+
+    JSONArray functions = new JSONArray();
+
+    ChatPromptBuilder promptBuilder = new ChatPromptBuilder(); // 缓存已转换的历史消息
+    final ImageElisionPolicy imageElision = new ImageElisionPolicy(); // 识图对话中较早图片的发送策略
+    ContextWindowManager contextManager = null; // 按模型上下文长度裁剪消息
+
+    StreamMetrics metrics = null; // 请求延迟统计
+
+    // 流式请求的容错设置（默认值），卡住的间隔、重试次数及是否继续回复可在设置中修改
+    public static final long DEFAULT_FIRST_TOKEN_TIMEOUT = 60 * 1000;
+    public static final long DEFAULT_STALL_TIMEOUT = 20 * 1000;
+    public static final int DEFAULT_MAX_RETRIES = 2;
+    public static final long DEFAULT_RETRY_BASE_DELAY = 1000;
+    public static final long DEFAULT_RETRY_MAX_DELAY = 15 * 1000;
+
+    long firstTokenTimeout = DEFAULT_FIRST_TOKEN_TIMEOUT; // 等待第一个数据块的最长时间
+    long stallTimeout = DEFAULT_STALL_TIMEOUT; // 两个数据块之间的最长间隔，超过则认为连接已卡住
+    int maxRetries = DEFAULT_MAX_RETRIES; // 连接失败、429、5xx及卡住时的最大重试次数
+    long retryBaseDelay = DEFAULT_RETRY_BASE_DELAY; // 重试退避的基础延迟
+    long retryMaxDelay = DEFAULT_RETRY_MAX_DELAY; // 重试退避的最大延迟
+    boolean resumePartialReply = true; // 回复中途中断时，是否带上已收到的内容请求继续回复
+    boolean hedging = false; // 首字过慢时是否同时向另一服务器发起请求
+    boolean responseCaching = false; // 是否使用回复缓存（由模板的@cache参数开启）
+    boolean streamUsage = true; // 是否请求服务器在流式回复末尾返回usage
+    boolean legacyFunctions = false; // 是否以旧版functions参数及function_call格式发送函数
+
+    private static final int REPLAY_CHUNK_CHARS = 24; // 重放缓存时每个数据块的字数
+    private static final long REPLAY_INTERVAL = 10; // 重放缓存时数据块的间隔
+
+    // 继续回复时附加的提示
+    private static final String CONTINUE_PROMPT = "Your previous reply was cut off. Continue it exactly from where it stopped, without repeating any text and without any preface.";
+
+    // 卡住检测和重试共用的定时线程
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ChatApiClient-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // 读取回复缓存等发送前的准备工作所用的线程，不占用主线程
+    private static final ExecutorService preparer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ChatApiClient-prepare");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     Context context = null;
 
@@ -64,149 +120,505 @@ public class ChatApiClient {
         this.context = context;
         this.listener = listener;
         this.model = model;
-        httpClient = new OkHttpClient.Builder()
-            .connectTimeout(90, java.util.concurrent.TimeUnit.SECONDS)
-            .readTimeout(90, java.util.concurrent.TimeUnit.SECONDS)
-            .writeTimeout(90, java.util.concurrent.TimeUnit.SECONDS)
-            .connectionSpecs(Arrays.asList(ConnectionSpec.CLEARTEXT, ConnectionSpec.COMPATIBLE_TLS))
-            .build();
+        metrics = StreamMetrics.getInstance(context);
+        contextManager = new ContextWindowManager(context);
+        Tokenizers.preload(context, model);
+        httpClient = SharedHttpClient.withTimeout(90, 90, 90).newBuilder()
+                .addInterceptor(chain -> { // 请求开始执行时进入连接状态
+                    ChatRequestHandle handle = chain.request().tag(ChatRequestHandle.class);
+                    if(handle != null)
+                        handle.moveTo(ChatRequestHandle.State.CONNECTING);
+                    return chain.proceed(chain.request());
+                })
+                .addNetworkInterceptor(ConnectionWarmer.REUSE_CHECKER) // 统计预热连接的复用情况
+                .addNetworkInterceptor(chain -> { // 统计首字节时间及上下行流量
+                    StreamMetrics.Recorder recorder = chain.request().tag(StreamMetrics.Recorder.class);
+                    if(recorder == null)
+                        return chain.proceed(chain.request());
+                    if(chain.request().body() != null)
+                        recorder.addBytesUp(chain.request().body().contentLength());
+                    Response response = chain.proceed(chain.request());
+                    recorder.onResponseHeaders();
+                    return response.body() == null ? response : response.newBuilder().body(recorder.wrap(response.body())).build();
+                })
+                .build();
         setApiInfo(url, apiKey);
     }
 
-    // 向GPT发送消息列表
-    public void sendPromptList(List<ChatMessage> promptList) {
-        if(url.isEmpty()) {
+    // 向GPT发送消息列表，返回本次请求的句柄
+    public ChatRequestHandle sendPromptList(List<ChatMessage> promptList) {
+        return sendPromptList(promptList, true);
+    }
+
+    // allowCache为false时不读取缓存（如重新生成回复），但新的回复仍会写入缓存
+    public ChatRequestHandle sendPromptList(List<ChatMessage> promptList, boolean allowCache) {
+        ChatRequestHandle handle = new ChatRequestHandle();
+        if(url.isEmpty() && EndpointPool.getInstance().isEmpty()) {
+            handle.moveTo(ChatRequestHandle.State.FAILED);
             listener.onError("请在设置中填写服务器地址");
-            return;
-        } else if(apiKey.isEmpty()) {
+            return handle;
+        } else if(EndpointPool.getInstance().isEmpty()) {
+            handle.moveTo(ChatRequestHandle.State.FAILED);
             listener.onError("请在设置中填写ApiKey");
+            return handle;
+        }
+
+        RequestTask task = new RequestTask(handle, promptList);
+        handle.setOnIdleCancel(task::onIdleCancel);
+        activeHandles.add(handle);
+        boolean caching = responseCaching;
+        preparer.execute(() -> { // 读取缓存及构建请求体（可能需读取和缩小图片）都在后台进行
+            if(!handle.isActive())
+                return;
+            if(caching) { // 未命中缓存时再发起请求
+                task.cacheKey = ResponseCache.keyOf(task.model, task.promptList, task.functions == null ? null : task.functions.toString());
+                String cached = allowCache ? ResponseCache.getInstance(context).get(task.cacheKey) : null;
+                if(cached != null) {
+                    Log.d("ChatApiClient", "response cache hit: " + cached.length() + " chars");
+                    replayCached(handle, cached);
+                    return;
+                }
+            }
+            task.start(task.buildBody(task.promptList));
+        });
+        return handle;
+    }
+
+    // 将缓存的回复分块快速回放，与正常回复走相同的回调（句柄已加入activeHandles）
+    private void replayCached(ChatRequestHandle handle, String text) {
+        handle.setOnIdleCancel(() -> { // 回放中被取消
+            if(activeHandles.remove(handle))
+                listener.onFinished(false);
+        });
+        if(!handle.moveTo(ChatRequestHandle.State.STREAMING)) // 读取缓存时已被取消
             return;
-        } else if(chatGPT == null) {
-            listener.onError("ChatGPT初始化失败");
+        scheduler.execute(() -> replayChunk(handle, text, 0));
+    }
+
+    private void replayChunk(ChatRequestHandle handle, String text, int start) {
+        if(!handle.isActive())
+            return;
+        if(start >= text.length()) {
+            if(handle.moveTo(ChatRequestHandle.State.DONE) && activeHandles.remove(handle))
+                listener.onFinished(true);
             return;
         }
+        int end = Math.min(text.length(), start + REPLAY_CHUNK_CHARS);
+        if(end < text.length() && Character.isHighSurrogate(text.charAt(end - 1))) // 不拆分代理对
+            end++;
+        listener.onMsgReceive(text.substring(start, end));
+        int next = end;
+        scheduler.schedule(() -> replayChunk(handle, text, next), REPLAY_INTERVAL, TimeUnit.MILLISECONDS);
+    }
 
-        BaseChatCompletion chatCompletion = null;
-
-        if(!GlobalUtils.checkVisionSupport(model)) { // 使用非Vision模型
-            ArrayList<Message> messageList = new ArrayList<>(); // 将消息数据转换为ChatGPT需要的格式
-            for (ChatMessage message : promptList) {
-                if (message.role == ChatRole.SYSTEM) {
-                    messageList.add(Message.builder().role(Message.Role.SYSTEM).content(message.contentText).build());
-                } else if (message.role == ChatRole.USER) {
-                    messageList.add(Message.builder().role(Message.Role.USER).content(message.contentText).build());
-                } else if (message.role == ChatRole.ASSISTANT) {
-                    if (message.functionName != null) {
-                        FunctionCall functionCall = FunctionCall.builder()
-                                .name(message.functionName)
-                                .arguments(message.contentText)
-                                .build();
-                        messageList.add(Message.builder().role(Message.Role.ASSISTANT).functionCall(functionCall).build());
-                    } else {
-                        messageList.add(Message.builder().role(Message.Role.ASSISTANT).content(message.contentText).build());
-                    }
-                } else if (message.role == ChatRole.FUNCTION) {
-                    messageList.add(Message.builder().role(Message.Role.FUNCTION).name(message.functionName).content(message.contentText).build());
-                }
+    // 一次对话请求，包含所有重试，每次尝试有独立的解码器和函数调用状态
+    private class RequestTask {
+        final ChatRequestHandle handle;
+        final List<ChatMessage> promptList; // 发送时的消息列表副本，用于继续回复
+        final String model; // 发送时的模型，请求体在后台构建，不受之后切换模型的影响
+        final boolean vision;
+        final JSONArray functions; // 发送时的函数列表副本，Vision模型不支持函数调用，为null
+        final boolean legacyFunctions;
+        ChatRequestBody firstBody = null;
+        ApiEndpoint failedEndpoint = null; // 上次尝试失败的服务器，重试时尽量避开
+        final StringBuilder deliveredText = new StringBuilder(); // 已交给界面的回复内容（所有尝试累计）
+        Attempt current = null; // 当前的请求尝试，等待重试时为null
+        Attempt hedge = null; // 与current竞速的对冲请求，决出胜者后为null
+        int retries = 0;
+        final StreamMetrics.Recorder recorder = new StreamMetrics.Recorder(); // 本次请求的延迟统计（所有尝试共用）
+        String cacheKey = null; // 开启回复缓存时，完整回复以该key保存
+
+        RequestTask(ChatRequestHandle handle, List<ChatMessage> promptList) {
+            this.handle = handle;
+            this.promptList = new ArrayList<>(promptList);
+            this.model = ChatApiClient.this.model;
+            this.vision = GlobalUtils.checkVisionSupport(model);
+            this.functions = vision ? null : new JSONArray(ChatApiClient.this.functions);
+            this.legacyFunctions = ChatApiClient.this.legacyFunctions;
+        }
+
+        ChatRequestBody buildBody(List<ChatMessage> messages) {
+            if(vision)
+                messages = imageElision.apply(messages, model); // 较早的图片替换为缩略图或描述
+            messages = contextManager.fit(messages, model, vision, countFunctionTokens(functions, model)); // 超出上下文长度时裁剪旧消息
+            List<ChatPromptBuilder.MessageFragment> fragments = promptBuilder.build(messages, vision, legacyFunctions); // 已发送过的消息直接复用缓存
+            ChatRequestBody requestBody = new ChatRequestBody(
+                    vision ? model.replaceAll("\\*$","") : model, // 去掉自定义Vision模型结尾的*号
+                    fragments,
+                    functions,
+                    legacyFunctions,
+                    streamUsage);
+            Log.d("ChatApiClient", "request body: " + requestBody.contentLength() + " bytes");
+            if(firstBody == null)
+                firstBody = requestBody;
+            return requestBody;
+        }
+
+        // 选取一个服务器发起一次请求尝试
+        synchronized void start(ChatRequestBody requestBody) {
+            if(!handle.isActive())
+                return;
+            ApiEndpoint endpoint = EndpointPool.getInstance().acquire(failedEndpoint);
+            Attempt attempt = launch(requestBody, endpoint, false);
+            current = attempt;
+            if(hedging && EndpointPool.getInstance().hasAlternative(endpoint)) { // 首字超过该服务器通常的等待时间后发起对冲请求
+                long delay = Math.min(EndpointPool.getInstance().getHedgeDelay(endpoint), firstTokenTimeout / 2);
+                scheduler.schedule(() -> startHedge(attempt), delay, TimeUnit.MILLISECONDS);
             }
+        }
 
-            if (!functions.isEmpty()) { // 如果有函数列表，则将函数列表传入
-                chatCompletion = ChatCompletion.builder()
-                        .messages(messageList)
-                        .model(model)
-                        .functions(functions)
-                        .functionCall("auto")
-                        .build();
+        // 向服务器发起请求，isHedge为true时作为对冲请求与当前请求竞速
+        private Attempt launch(ChatRequestBody requestBody, ApiEndpoint endpoint, boolean isHedge) {
+            Log.d("ChatApiClient", (isHedge ? "hedge endpoint: " : "endpoint: ") + endpoint.host + " " + endpoint.getMaskedKey());
+            Request.Builder builder = new Request.Builder()
+                    .url(endpoint.host + "v1/chat/completions")
+                    .header("Authorization", "Bearer " + endpoint.key)
+                    .header("Accept", "text/event-stream")
+                    .post(requestBody)
+                    .tag(StreamMetrics.Recorder.class, recorder);
+            if(!isHedge) // 对冲请求发起时句柄已处于连接或接收状态，不再切换
+                builder.tag(ChatRequestHandle.class, handle);
+            Attempt attempt = new Attempt(endpoint, requestBody);
+            synchronized (handle) { // 保证回调中使用句柄时已关联请求
+                attempt.eventSource = EventSources.createFactory(httpClient).newEventSource(builder.build(), attempt);
+                if(isHedge)
+                    handle.attachHedge(attempt.eventSource);
+                else
+                    handle.attach(attempt.eventSource);
+            }
+            attempt.scheduleWatchdog(firstTokenTimeout);
+            return attempt;
+        }
+
+        // 首字迟迟未到时，向另一服务器发送相同的请求，先收到回复内容的一方胜出
+        synchronized void startHedge(Attempt primary) {
+            if(current != primary || hedge != null || primary.firstContentLatency >= 0 || !handle.isActive())
+                return;
+            if(!EndpointPool.getInstance().hasAlternative(primary.endpoint))
+                return;
+            Log.d("ChatApiClient", String.format("no first token after %d ms, hedging", SystemClock.elapsedRealtime() - primary.startTime));
+            hedge = launch(primary.requestBody, EndpointPool.getInstance().acquire(primary.endpoint), true);
+        }
+
+        // 请求是否仍在进行（当前请求或竞速中的对冲请求）
+        boolean isLive(Attempt attempt) {
+            return attempt == current || attempt == hedge;
+        }
+
+        // 结束竞速，只保留survivor，返回另一方
+        private Attempt keepOnly(Attempt survivor) {
+            Attempt other = survivor == current ? hedge : current;
+            if(survivor == hedge) {
+                current = hedge;
+                handle.promoteHedge();
             } else {
-                chatCompletion = ChatCompletion.builder()
-                        .messages(messageList)
-                        .model(model)
-                        .build();
+                handle.attachHedge(null);
             }
-        } else { // 使用的是Vision模型
-            ArrayList<MessagePicture> messageList = new ArrayList<>(); // 将消息数据转换为ChatGPT需要的格式
-            for (ChatMessage message : promptList) {
-                List<Content> contentList = new ArrayList<>();
-                if (message.contentText != null) {
-                    contentList.add(Content.builder().type(Content.Type.TEXT.getName()).text(message.contentText).build());
-                }
-                if(message.contentImageBase64 != null) {
-                    ImageUrl imageUrl = ImageUrl.builder().url("data:image/jpeg;base64," + message.contentImageBase64).build();
-                    contentList.add(Content.builder().type(Content.Type.IMAGE_URL.getName()).imageUrl(imageUrl).build());
-                }
-                if (message.role == ChatRole.SYSTEM) {
-                    messageList.add(MessagePicture.builder().role(Message.Role.SYSTEM).content(contentList).build());
-                } else if (message.role == ChatRole.USER) {
-                    messageList.add(MessagePicture.builder().role(Message.Role.USER).content(contentList).build());
-                } else if (message.role == ChatRole.ASSISTANT) {
-                    if (message.functionName != null) {
-                        FunctionCall functionCall = FunctionCall.builder()
-                                .name(message.functionName)
-                                .arguments(message.contentText)
-                                .build();
-                        messageList.add(MessagePicture.builder().role(Message.Role.ASSISTANT).functionCall(functionCall).build());
-                    } else {
-                        messageList.add(MessagePicture.builder().role(Message.Role.ASSISTANT).content(contentList).build());
-                    }
-                } else if (message.role == ChatRole.FUNCTION) {
-                    messageList.add(MessagePicture.builder().role(Message.Role.FUNCTION).name(message.functionName).content(contentList).build());
-                }
+            hedge = null;
+            other.cancelWatchdog();
+            return other;
+        }
+
+        // 竞速中winner先收到回复内容，立即取消另一方
+        private void settleRace(Attempt winner) {
+            Attempt loser = keepOnly(winner);
+            loser.eventSource.cancel();
+            long waited = SystemClock.elapsedRealtime() - loser.startTime;
+            EndpointPool.getInstance().recordFirstToken(loser.endpoint, waited); // 至少等待了这么久，计入首字延迟
+            Log.d("ChatApiClient", String.format("%s won the race, cancelled %s after %d ms",
+                    winner.endpoint.host, loser.endpoint.host, waited));
+        }
+
+        // 竞速中的一方失败，由另一方继续，返回是否还有另一方
+        private boolean dropRacer(Attempt failed) {
+            if(hedge == null || !isLive(failed))
+                return false;
+            keepOnly(failed == current ? hedge : current);
+            Log.d("ChatApiClient", "racing request failed, continue with " + current.endpoint.host);
+            return true;
+        }
+
+        // 结束请求并停止跟踪，返回是否由本次调用结束
+        synchronized boolean finish(ChatRequestHandle.State state) {
+            ApiEndpoint lastEndpoint = current != null ? current.endpoint : failedEndpoint;
+            if(current != null)
+                current.cancelWatchdog();
+            if(hedge != null) {
+                hedge.cancelWatchdog();
+                hedge.eventSource.cancel();
+            }
+            current = null;
+            hedge = null;
+            boolean moved = handle.moveTo(state);
+            activeHandles.remove(handle);
+            if(moved) {
+                Log.d("ChatApiClient", "request finished: " + handle);
+                metrics.record(model, lastEndpoint != null ? lastEndpoint.host : url, recorder, state == ChatRequestHandle.State.DONE);
             }
+            return moved;
+        }
+
+        // 在等待重试时被取消
+        void onIdleCancel() {
+            synchronized (this) {
+                current = null;
+            }
+            if(activeHandles.remove(handle)) {
+                Log.d("ChatApiClient", "cancelled while waiting for retry: " + handle);
+                listener.onFinished(false);
+            }
+        }
+
+        // 安排一次重试，不满足重试条件时返回false
+        synchronized boolean scheduleRetry(ApiEndpoint endpoint, String reason, long retryAfter) {
+            failedEndpoint = endpoint;
+            if(!handle.isActive() || retries >= maxRetries)
+                return false;
+            if(deliveredText.length() > 0 && !resumePartialReply) // 已显示了部分回复，不能从头重新请求
+                return false;
+            long delay = Math.min(retryMaxDelay, retryBaseDelay << retries);
+            delay = delay / 2 + (long) (Math.random() * (delay / 2)); // 加入随机抖动，避免多个客户端同时重试
+            if(EndpointPool.getInstance().hasAlternative(endpoint)) { // 有其他可用的服务器，立即换用
+                delay = 0;
+            } else if(retryAfter > retryMaxDelay) { // 服务器要求等待的时间过长，直接报错
+                return false;
+            } else {
+                delay = Math.max(delay, retryAfter);
+            }
+            retries++;
+
+            if(current != null)
+                current.cancelWatchdog();
+            current = null;
+            handle.attach(null);
+            handle.moveTo(ChatRequestHandle.State.QUEUED);
+
+            ChatRequestBody requestBody;
+            if(deliveredText.length() > 0) { // 带上已收到的内容，请求继续回复
+                List<ChatMessage> resumeList = new ArrayList<>(promptList);
+                resumeList.add(new ChatMessage(ChatMessage.ChatRole.ASSISTANT).setText(deliveredText.toString()));
+                resumeList.add(new ChatMessage(ChatMessage.ChatRole.USER).setText(CONTINUE_PROMPT));
+                requestBody = buildBody(resumeList);
+            } else {
+                requestBody = firstBody;
+            }
+            Log.d("ChatApiClient", String.format("retry %d/%d in %d ms after %s, resume from %d chars",
+                    retries, maxRetries, delay, reason, deliveredText.length()));
+            scheduler.schedule(() -> start(requestBody), delay, TimeUnit.MILLISECONDS);
+            return true;
+        }
+
+        // 接收中的函数调用，参数边接收边解析
+        private class PendingCall {
+            final int index;
+            String id = null;
+            String name = "";
+            final StringBuilder arguments = new StringBuilder();
+            final FunctionArgsParser argsParser = new FunctionArgsParser((key, value) -> listener.onFunctionArgument(name, key, value));
 
-            chatCompletion = ChatCompletionWithPicture.builder()
-                    .messages(messageList)
-                    .model(model.replaceAll("\\*$","")) // 去掉自定义Vision模型结尾的*号
-                    .build();
+            PendingCall(int index) {
+                this.index = index;
+            }
         }
 
-        callingFuncName = callingFuncArg = "";
+        // 单次请求尝试的回调
+        private class Attempt extends EventSourceListener {
+            final ApiEndpoint endpoint;
+            final ChatRequestBody requestBody;
+            final long startTime = SystemClock.elapsedRealtime();
+            long firstDataLatency = -1; // 首个数据块的延迟
+            long firstContentLatency = -1; // 首个回复内容的延迟（首字延迟）
+            EventSource eventSource = null;
+            final ChatDeltaDecoder deltaDecoder = new ChatDeltaDecoder(); // 流式回复解码器（仅在OkHttp回调线程中使用）
+            final ChatDeltaDecoder.Delta delta = new ChatDeltaDecoder.Delta();
+            final List<PendingCall> callingFuncs = new ArrayList<>(); // 正在接收的函数调用，按index排列
+            long lastEventTime = SystemClock.elapsedRealtime(); // 上一次收到数据的时间
+            boolean receivedData = false;
+            ScheduledFuture<?> watchdog = null;
+
+            Attempt(ApiEndpoint endpoint, ChatRequestBody requestBody) {
+                this.endpoint = endpoint;
+                this.requestBody = requestBody;
+            }
+
+            // 检查距离上次收到数据的时间，超时则认为连接卡住
+            void scheduleWatchdog(long delay) {
+                watchdog = scheduler.schedule(this::checkStall, delay, TimeUnit.MILLISECONDS);
+            }
+
+            void cancelWatchdog() {
+                if(watchdog != null)
+                    watchdog.cancel(false);
+            }
+
+            private void checkStall() {
+                synchronized (RequestTask.this) {
+                    if(!isLive(this) || !handle.isActive())
+                        return;
+                    long limit = receivedData ? stallTimeout : firstTokenTimeout;
+                    long idle = SystemClock.elapsedRealtime() - lastEventTime;
+                    if(idle < limit) { // 期间收到过数据，按上次收到数据的时间重新计时
+                        scheduleWatchdog(limit - idle);
+                        return;
+                    }
+                    Log.d("ChatApiClient", String.format("stream stalled for %d ms", idle));
+                    EndpointPool.getInstance().reportFailure(endpoint, 0);
+                    eventSource.cancel();
+                    if(dropRacer(this)) // 由竞速的另一方继续
+                        return;
+                    current = null; // 之后该尝试的回调都将被忽略
+                    if(scheduleRetry(endpoint, "stall", 0))
+                        return;
+                }
+                if(finish(ChatRequestHandle.State.FAILED))
+                    listener.onError(context.getString(R.string.text_gpt_timeout));
+            }
 
-        chatGPT.streamChatCompletion(chatCompletion, new EventSourceListener() { // GPT返回消息回调
             @Override
             public void onOpen(EventSource eventSource, Response response) {
                 Log.d("ChatApiClient", "onOpen");
+                synchronized (RequestTask.this) {
+                    if(!isLive(this))
+                        return;
+                    lastEventTime = SystemClock.elapsedRealtime();
+                    handle.moveTo(ChatRequestHandle.State.STREAMING);
+                }
             }
 
             @Override
             public void onEvent(EventSource eventSource, @Nullable String id, @Nullable String type, String data) {
-                if(data.equals("[DONE]")){ // 回复完成
-                    Log.d("ChatApiClient", "onEvent: DONE");
-                    if(callingFuncName.isEmpty()) {
-                        listener.onFinished(true);
-                    } else {
-                        listener.onFunctionCall(callingFuncName, callingFuncArg);
-                    }
-                } else { // 正在回复
-//                    Log.d("ChatApiClient", "onEvent: " + data);
-                    JSONObject json = new JSONObject(data);
-                    if(json.containsKey("choices") && json.getJSONArray("choices").size() > 0) {
-                        JSONObject delta = ((JSONObject) json.getJSONArray("choices").get(0)).getJSONObject("delta");
-                        if (delta != null) {
-                            if (delta.containsKey("function_call")) { // GPT请求函数调用
-                                JSONObject functionCall = delta.getJSONObject("function_call");
-                                if (functionCall.containsKey("name"))
-                                    callingFuncName = functionCall.getStr("name");
-                                callingFuncArg += functionCall.getStr("arguments");
-                            } else if (delta.containsKey("content")) { // GPT返回普通消息
-                                String msg = delta.getStr("content");
-                                if (msg != null)
-                                    listener.onMsgReceive(msg);
+                synchronized (RequestTask.this) {
+                    if(!isLive(this) || !handle.isActive()) // 已取消或已被重试替代的请求不再回调
+                        return;
+                    lastEventTime = SystemClock.elapsedRealtime();
+                    if(!receivedData)
+                        firstDataLatency = lastEventTime - startTime;
+                    receivedData = true;
+                    if(!data.equals("[DONE]")) { // 正在回复
+//                        Log.d("ChatApiClient", "onEvent: " + data);
+                        deltaDecoder.decode(data, delta);
+                        boolean hasContent = delta.hasFunctionCall || (delta.content != null && !delta.content.isEmpty());
+                        if(hasContent && firstContentLatency < 0) {
+                            firstContentLatency = lastEventTime - startTime;
+                            EndpointPool.getInstance().recordFirstToken(endpoint, firstContentLatency);
+                        }
+                        if(hedge != null) { // 正在竞速，先收到回复内容的一方胜出
+                            if(!hasContent)
+                                return;
+                            settleRace(this);
+                        }
+                        if(hasContent)
+                            recorder.onChunk();
+                        if(delta.completionTokens >= 0) // 部分服务在最后的数据块中返回usage
+                            recorder.onUsage(delta.promptTokens, delta.completionTokens);
+                        if (delta.hasFunctionCall) { // GPT请求函数调用
+                            handle.moveTo(ChatRequestHandle.State.FUNCTION_CALL);
+                            if (delta.toolCallCount > 0) {
+                                for (int i = 0; i < delta.toolCallCount; i++) {
+                                    ChatDeltaDecoder.ToolCall toolCall = delta.toolCalls.get(i);
+                                    appendCall(toolCall.index, toolCall.id, toolCall.name, toolCall.arguments);
+                                }
+                            } else { // 旧版function_call格式只有一个调用
+                                appendCall(0, null, delta.functionName, delta.functionArgs);
                             }
+                        } else if (delta.content != null) { // GPT返回普通消息
+                            deliveredText.append(delta.content);
+                            listener.onMsgReceive(delta.content);
                         }
+                        return;
                     }
                 }
+                Log.d("ChatApiClient", "onEvent: DONE"); // 回复完成
+                onDone();
+            }
+
+            private void appendCall(int index, String id, String name, String args) {
+                PendingCall call = null;
+                for (PendingCall pending : callingFuncs) {
+                    if (pending.index == index)
+                        call = pending;
+                }
+                if (call == null) {
+                    call = new PendingCall(index);
+                    int pos = 0;
+                    while (pos < callingFuncs.size() && callingFuncs.get(pos).index < index)
+                        pos++;
+                    callingFuncs.add(pos, call);
+                }
+                if (id != null)
+                    call.id = id;
+                if (name != null)
+                    call.name = name;
+                if (args != null) {
+                    call.arguments.append(args);
+                    call.argsParser.feed(args);
+                }
             }
 
             @Override
             public void onClosed(EventSource eventSource) {
                 Log.d("ChatApiClient", "onClosed");
+                onDone(); // 部分中转服务不发送[DONE]，直接关闭连接
+            }
+
+            private void onDone() {
+                synchronized (RequestTask.this) {
+                    if(!isLive(this)) // 已被取消或在竞速中落败
+                        return;
+                    if(hedge != null) // 竞速中直接结束（空回复）也算胜出
+                        settleRace(this);
+                }
+                if(!finish(ChatRequestHandle.State.DONE))
+                    return;
+                EndpointPool.getInstance().reportSuccess(endpoint, firstDataLatency);
+                List<FunctionCall> calls = new ArrayList<>();
+                for(PendingCall call : callingFuncs) {
+                    if(!call.name.isEmpty()) // 没有ID的调用（旧版格式或部分中转服务）补上ID
+                        calls.add(new FunctionCall(call.id != null ? call.id : "call_" + UUID.randomUUID().toString().replace("-", ""),
+                                call.name, call.arguments.toString()));
+                }
+                if(calls.isEmpty()) {
+                    if(cacheKey != null && deliveredText.length() > 0)
+                        ResponseCache.getInstance(context).put(cacheKey, model, deliveredText.toString());
+                    listener.onFinished(true);
+                } else {
+                    Log.d("ChatApiClient", String.format("%d function call(s)", calls.size()));
+                    listener.onFunctionCall(calls);
+                }
             }
 
             @Override
             public void onFailure(EventSource eventSource, @Nullable Throwable throwable, @Nullable Response response) {
+                if(handle.getState() == ChatRequestHandle.State.CANCELLED) { // 请求被取消，不算错误
+                    cancelWatchdog();
+                    if(activeHandles.remove(handle)) {
+                        Log.d("ChatApiClient", "onFailure: Cancelled " + handle);
+                        listener.onFinished(false);
+                    }
+                    return;
+                }
+                synchronized (RequestTask.this) {
+                    if(!isLive(this)) // 已被卡住检测取消并重试，或在竞速中落败
+                        return;
+                    EndpointPool.getInstance().reportFailure(endpoint, response != null ? response.code() : 0);
+                    if(dropRacer(this)) // 由竞速的另一方继续
+                        return;
+                    if(response != null && response.code() == 401 && EndpointPool.getInstance().size() > 1) { // 密钥无效，换一个服务器重试
+                        if(scheduleRetry(endpoint, "HTTP 401", 0))
+                            return;
+                    } else if(response != null && (response.code() == 429 || response.code() >= 500)) { // 限流或服务器错误
+                        if(scheduleRetry(endpoint, "HTTP " + response.code(), parseRetryAfter(response)))
+                            return;
+                    } else if(throwable instanceof IOException && !(throwable instanceof SSLException)) { // 连接失败或中断
+                        if(scheduleRetry(endpoint, throwable.toString(), 0))
+                            return;
+                    }
+                }
+                if(!finish(ChatRequestHandle.State.FAILED))
+                    return;
                 if(throwable != null) {
-                    if(throwable instanceof StreamResetException) { // 请求被用户取消，不算错误
-                        Log.d("ChatApiClient", "onFailure: Cancelled");
+                    if(throwable instanceof StreamResetException) { // 请求被服务器中断
+                        Log.d("ChatApiClient", "onFailure: Stream reset");
                         listener.onFinished(false);
                     } else {
                         String err = throwable.toString();
@@ -233,61 +645,153 @@ public class ChatApiClient {
                     }
                 }
             }
-        });
+        }
+    }
+
+    // 读取Retry-After头（秒），没有则返回0
+    private static long parseRetryAfter(Response response) {
+        String retryAfter = response.header("Retry-After");
+        if(retryAfter == null)
+            return 0;
+        try {
+            return Math.max(0, (long) (Double.parseDouble(retryAfter.trim()) * 1000));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // 设置卡住检测的超时时间（毫秒）
+    public void setStallTimeout(long firstTokenTimeout, long stallTimeout) {
+        this.firstTokenTimeout = firstTokenTimeout;
+        this.stallTimeout = stallTimeout;
+    }
+
+    // 设置重试次数及退避延迟（毫秒）
+    public void setRetryPolicy(int maxRetries, long retryBaseDelay, long retryMaxDelay) {
+        this.maxRetries = maxRetries;
+        this.retryBaseDelay = retryBaseDelay;
+        this.retryMaxDelay = retryMaxDelay;
+    }
+
+    // 设置回复中断后是否继续回复
+    public void setResumePartialReply(boolean resumePartialReply) {
+        this.resumePartialReply = resumePartialReply;
+    }
+
+    // 设置是否对首字过慢的请求进行对冲
+    public void setHedging(boolean hedging) {
+        this.hedging = hedging;
+    }
+
+    // 设置是否发送stream_options请求usage，中转服务拒绝未知参数时关闭
+    public void setStreamUsage(boolean streamUsage) {
+        this.streamUsage = streamUsage;
+    }
+
+    // 设置是否以旧版functions参数发送函数，用于只支持旧版参数的中转服务（此时每次回复只能调用一个函数）
+    public void setLegacyFunctions(boolean legacyFunctions) {
+        this.legacyFunctions = legacyFunctions;
+    }
+
+    // 设置是否使用回复缓存
+    public void setResponseCaching(boolean responseCaching) {
+        this.responseCaching = responseCaching;
     }
 
     // 配置API信息
     public void setApiInfo(String url, String apiKey) {
-        if(this.url.equals(url) && this.apiKey.equals(apiKey)) {
-            return;
-        }
-        this.url = url;
+        this.url = url.isEmpty() || url.endsWith("/") ? url : url + "/";
         this.apiKey = apiKey;
-        chatGPT = new OpenAiStreamClient.Builder()
-            .apiKey(Arrays.asList(apiKey))
-            .apiHost(url)
-            .okHttpClient(httpClient)
-            .build();
+        EndpointPool.getInstance().update(this.url, apiKey, GlobalDataHolder.getGptExtraEndpoints()); // 主服务器与备用服务器一起参与负载均衡
     }
 
     // 获取当前是否正在请求GPT
     public boolean isStreaming() {
-        return httpClient.connectionPool().connectionCount() - httpClient.connectionPool().idleConnectionCount() > 0;
+        synchronized (activeHandles) {
+            for(ChatRequestHandle handle : activeHandles) {
+                if(handle.isActive())
+                    return true;
+            }
+        }
+        return false;
     }
 
-    // 中断当前请求
+    // 中断当前所有请求
     public void stop() {
-        httpClient.dispatcher().cancelAll();
+        ChatRequestHandle[] handles;
+        synchronized (activeHandles) {
+            handles = activeHandles.toArray(new ChatRequestHandle[0]);
+        }
+        for(ChatRequestHandle handle : handles) // 只取消本客户端发起的请求
+            handle.cancel();
+    }
+
+    // 消息被删除或编辑后，移除其转换缓存
+    public void invalidatePrompt(ChatMessage message) {
+        promptBuilder.invalidate(message);
+    }
+
+    // 清空消息转换缓存（如新建对话时）
+    public void clearPromptCache() {
+        promptBuilder.clear();
     }
 
     // 设置使用的模型
     public void setModel(String model) {
         this.model = model;
+        Tokenizers.preload(context, model);
+    }
+
+    public String getModel() {
+        return model;
+    }
+
+    public ImageElisionPolicy getImageElision() {
+        return imageElision;
+    }
+
+    // 估算发送消息列表及输入内容（可为null）所需的token数
+    public int countPromptTokens(List<ChatMessage> promptList, String input) {
+        boolean vision = GlobalUtils.checkVisionSupport(model);
+        int tokens = contextManager.countPrompt(promptList, model, vision, countFunctionTokens(vision ? null : functions, model));
+        if(input != null && !input.isEmpty())
+            tokens += contextManager.countText(input, model) + 3; // 输入作为一条新的用户消息
+        return tokens;
+    }
+
+    // 当前模型提问可用的token数
+    public int getPromptBudget() {
+        return ContextWindowManager.getPromptBudget(model);
+    }
+
+    // 函数定义占用的token数，functions为null（Vision模型不发送函数）时为0
+    private int countFunctionTokens(JSONArray functions, String model) {
+        if(functions == null || functions.isEmpty())
+            return 0;
+        return contextManager.countText(functions.toString(), model);
     }
 
     // 添加一个函数，有同名函数则覆盖
     public void addFunction(String name, String desc, String params, String[] required) {
         removeFunction(name); // 删除同名函数
 
-        Parameters parameters = Parameters.builder()
-                .type("object")
-                .properties(new JSONObject(params))
-                .required(Arrays.asList(required))
-                .build();
+        JSONObject parameters = new JSONObject()
+                .putOpt("type", "object")
+                .putOpt("properties", new JSONObject(params))
+                .putOpt("required", new JSONArray(required));
 
-        Functions functions = Functions.builder()
-                .name(name)
-                .description(desc)
-                .parameters(parameters)
-                .build();
+        JSONObject function = new JSONObject()
+                .putOpt("name", name)
+                .putOpt("description", desc)
+                .putOpt("parameters", parameters);
 
-        this.functions.add(functions);
+        this.functions.add(function);
     }
 
     // 删除一个函数
     public void removeFunction(String name) {
         for(int i = 0; i < this.functions.size(); i++) {
-            if(this.functions.get(i).getName().equals(name)) {
+            if(name.equals(this.functions.getJSONObject(i).getStr("name"))) {
                 this.functions.remove(i);
                 break;
             }
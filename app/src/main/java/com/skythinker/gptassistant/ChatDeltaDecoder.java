@@ -0,0 +1,476 @@
+package com.skythinker.gptassistant;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import cn.hutool.json.JSONArray;
+import cn.hutool.json.JSONObject;
+
+// 流式回复增量解码器，直接从SSE的data字符串中提取所需字段，避免每个数据块都构建完整的JSON对象
+public class ChatDeltaDecoder {
+    // 单个数据块的解码结果，可重复使用
+    public static class Delta {
+        public String content; // 回复内容增量
+        public boolean hasFunctionCall; // 是否包含函数调用（function_call或tool_calls）
+        public String functionName; // 函数名（仅第一个数据块中包含）
+        public String functionArgs; // 函数参数增量
+        public int toolCallCount; // toolCalls中有效的项数
+        public final List<ToolCall> toolCalls = new ArrayList<>(); // tool_calls格式的函数调用增量，对象可重复使用
+        public String finishReason; // 结束原因
+        public int promptTokens; // usage中的提问token数，没有usage时为-1
+        public int completionTokens; // usage中的回复token数，没有usage时为-1
+
+        public void reset() {
+            content = null;
+            hasFunctionCall = false;
+            functionName = null;
+            functionArgs = null;
+            toolCallCount = 0;
+            finishReason = null;
+            promptTokens = -1;
+            completionTokens = -1;
+        }
+
+        // 取得下一个可用的ToolCall对象
+        ToolCall addToolCall() {
+            if(toolCallCount == toolCalls.size())
+                toolCalls.add(new ToolCall());
+            ToolCall toolCall = toolCalls.get(toolCallCount++);
+            toolCall.index = 0;
+            toolCall.id = toolCall.name = toolCall.arguments = null;
+            return toolCall;
+        }
+    }
+
+    // tool_calls中一项的增量，同一次调用的各数据块通过index对应
+    public static class ToolCall {
+        public int index;
+        public String id; // 调用ID（仅第一个数据块中包含）
+        public String name; // 函数名（仅第一个数据块中包含）
+        public String arguments; // 函数参数增量
+    }
+
+    // 快速解析遇到无法识别的格式时抛出，使用单例避免分配
+    private static class UnrecognizedException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        UnrecognizedException() { super(null, null, false, false); }
+    }
+    private static final UnrecognizedException UNRECOGNIZED = new UnrecognizedException();
+
+    private String data = null;
+    private int pos = 0;
+    private int keyStart = 0, keyEnd = 0;
+    private final StringBuilder unescapeBuilder = new StringBuilder();
+
+    private long fastCount = 0; // 快速解析成功的次数
+    private long fallbackCount = 0; // 回退到完整JSON解析的次数
+
+    // 解码一个data字符串到out中，无法识别的格式回退到完整JSON解析
+    public Delta decode(String data, Delta out) {
+        out.reset();
+        try {
+            decodeFast(data, out);
+            fastCount++;
+        } catch (UnrecognizedException e) {
+            out.reset();
+            decodeByJson(data, out);
+            fallbackCount++;
+        } finally {
+            this.data = null;
+        }
+        return out;
+    }
+
+    public long getFastCount() { return fastCount; }
+
+    public long getFallbackCount() { return fallbackCount; }
+
+    // 使用完整JSON解析（兼容所有格式）
+    static void decodeByJson(String data, Delta out) {
+        JSONObject json = new JSONObject(data);
+        JSONObject usage = json.getJSONObject("usage");
+        if(usage != null) {
+            out.promptTokens = usage.getInt("prompt_tokens", -1);
+            out.completionTokens = usage.getInt("completion_tokens", -1);
+        }
+        if(json.containsKey("choices") && json.getJSONArray("choices").size() > 0) {
+            JSONObject choice = (JSONObject) json.getJSONArray("choices").get(0);
+            out.finishReason = choice.getStr("finish_reason");
+            JSONObject delta = choice.getJSONObject("delta");
+            if(delta != null) {
+                JSONObject functionCall = delta.getJSONObject("function_call");
+                if(functionCall != null) {
+                    out.hasFunctionCall = true;
+                    out.functionName = functionCall.getStr("name");
+                    out.functionArgs = functionCall.getStr("arguments");
+                } else if(delta.getJSONArray("tool_calls") != null) {
+                    JSONArray toolCalls = delta.getJSONArray("tool_calls");
+                    out.hasFunctionCall = true;
+                    for(int i = 0; i < toolCalls.size(); i++) {
+                        JSONObject item = toolCalls.getJSONObject(i);
+                        ToolCall toolCall = out.addToolCall();
+                        toolCall.index = item.getInt("index", i);
+                        toolCall.id = item.getStr("id");
+                        JSONObject function = item.getJSONObject("function");
+                        if(function != null) {
+                            toolCall.name = function.getStr("name");
+                            toolCall.arguments = function.getStr("arguments");
+                        }
+                    }
+                } else if(delta.containsKey("content")) {
+                    out.content = delta.getStr("content");
+                }
+            }
+        }
+    }
+
+    // 快速解析：顶层对象 -> choices[0] -> delta / finish_reason 及 usage，其余字段直接跳过
+    private void decodeFast(String data, Delta out) throws UnrecognizedException {
+        this.data = data;
+        pos = 0;
+        expect('{');
+        if(tryConsume('}'))
+            return;
+        do {
+            readKey();
+            expect(':');
+            if(keyEquals("choices")) {
+                readChoices(out);
+            } else if(keyEquals("usage")) {
+                readUsage(out);
+            } else {
+                skipValue();
+            }
+        } while(tryConsume(','));
+        expect('}');
+        skipWhitespace();
+        if(pos != data.length())
+            throw UNRECOGNIZED;
+    }
+
+    // 读取choices数组，只解析第一项
+    private void readChoices(Delta out) throws UnrecognizedException {
+        expect('[');
+        if(tryConsume(']'))
+            return;
+        expect('{');
+        if(!tryConsume('}')) {
+            do {
+                readKey();
+                expect(':');
+                if(keyEquals("delta")) {
+                    readDelta(out);
+                } else if(keyEquals("finish_reason")) {
+                    out.finishReason = readNullableString();
+                } else {
+                    skipValue();
+                }
+            } while(tryConsume(','));
+            expect('}');
+        }
+        while(tryConsume(',')) // 跳过其余的choices
+            skipValue();
+        expect(']');
+    }
+
+    // 读取delta对象
+    private void readDelta(Delta out) throws UnrecognizedException {
+        if(tryConsumeLiteral("null"))
+            return;
+        expect('{');
+        if(tryConsume('}'))
+            return;
+        String content = null;
+        do {
+            readKey();
+            expect(':');
+            if(keyEquals("content")) {
+                content = readNullableString();
+            } else if(keyEquals("function_call")) {
+                readFunctionCall(out);
+            } else if(keyEquals("tool_calls")) {
+                readToolCalls(out);
+            } else {
+                skipValue();
+            }
+        } while(tryConsume(','));
+        expect('}');
+        if(!out.hasFunctionCall) // 与完整解析保持一致：有函数调用时忽略content
+            out.content = content;
+    }
+
+    // 读取function_call对象
+    private void readFunctionCall(Delta out) throws UnrecognizedException {
+        if(tryConsumeLiteral("null")) // 部分中转服务会返回空的function_call
+            return;
+        expect('{');
+        out.hasFunctionCall = true;
+        if(tryConsume('}'))
+            return;
+        do {
+            readKey();
+            expect(':');
+            if(keyEquals("name")) {
+                out.functionName = readNullableString();
+            } else if(keyEquals("arguments")) {
+                out.functionArgs = readNullableString();
+            } else {
+                skipValue();
+            }
+        } while(tryConsume(','));
+        expect('}');
+    }
+
+    // 读取tool_calls数组
+    private void readToolCalls(Delta out) throws UnrecognizedException {
+        if(tryConsumeLiteral("null"))
+            return;
+        expect('[');
+        out.hasFunctionCall = true;
+        if(tryConsume(']'))
+            return;
+        do {
+            ToolCall toolCall = out.addToolCall();
+            toolCall.index = out.toolCallCount - 1; // 缺少index时按数组中的位置
+            expect('{');
+            if(tryConsume('}'))
+                continue;
+            do {
+                readKey();
+                expect(':');
+                if(keyEquals("index")) {
+                    toolCall.index = readInt();
+                } else if(keyEquals("id")) {
+                    toolCall.id = readNullableString();
+                } else if(keyEquals("function")) {
+                    readToolFunction(toolCall);
+                } else {
+                    skipValue();
+                }
+            } while(tryConsume(','));
+            expect('}');
+        } while(tryConsume(','));
+        expect(']');
+    }
+
+    // 读取tool_calls中的function对象
+    private void readToolFunction(ToolCall toolCall) throws UnrecognizedException {
+        if(tryConsumeLiteral("null"))
+            return;
+        expect('{');
+        if(tryConsume('}'))
+            return;
+        do {
+            readKey();
+            expect(':');
+            if(keyEquals("name")) {
+                toolCall.name = readNullableString();
+            } else if(keyEquals("arguments")) {
+                toolCall.arguments = readNullableString();
+            } else {
+                skipValue();
+            }
+        } while(tryConsume(','));
+        expect('}');
+    }
+
+    // 读取usage对象（部分服务在最后一个数据块中返回）
+    private void readUsage(Delta out) throws UnrecognizedException {
+        if(tryConsumeLiteral("null"))
+            return;
+        expect('{');
+        if(tryConsume('}'))
+            return;
+        do {
+            readKey();
+            expect(':');
+            if(keyEquals("prompt_tokens")) {
+                out.promptTokens = readInt();
+            } else if(keyEquals("completion_tokens")) {
+                out.completionTokens = readInt();
+            } else {
+                skipValue();
+            }
+        } while(tryConsume(','));
+        expect('}');
+    }
+
+    // 读取非负整数
+    private int readInt() throws UnrecognizedException {
+        skipWhitespace();
+        int start = pos;
+        long value = 0;
+        while(pos < data.length() && data.charAt(pos) >= '0' && data.charAt(pos) <= '9') {
+            value = value * 10 + (data.charAt(pos++) - '0');
+            if(value > Integer.MAX_VALUE)
+                throw UNRECOGNIZED;
+        }
+        if(pos == start)
+            throw UNRECOGNIZED;
+        return (int) value;
+    }
+
+    // 读取一个键名，仅记录其位置不分配字符串
+    private void readKey() throws UnrecognizedException {
+        skipWhitespace();
+        if(pos >= data.length() || data.charAt(pos) != '"')
+            throw UNRECOGNIZED;
+        keyStart = ++pos;
+        while(pos < data.length()) {
+            char c = data.charAt(pos);
+            if(c == '"') {
+                keyEnd = pos++;
+                return;
+            } else if(c == '\\') { // 键名含转义的情况很少见，直接交给完整解析
+                throw UNRECOGNIZED;
+            }
+            pos++;
+        }
+        throw UNRECOGNIZED;
+    }
+
+    private boolean keyEquals(String key) {
+        return keyEnd - keyStart == key.length() && data.regionMatches(keyStart, key, 0, key.length());
+    }
+
+    // 读取字符串或null
+    private String readNullableString() throws UnrecognizedException {
+        skipWhitespace();
+        if(tryConsumeLiteral("null"))
+            return null;
+        if(pos >= data.length() || data.charAt(pos) != '"')
+            throw UNRECOGNIZED;
+        int start = ++pos;
+        while(pos < data.length()) { // 无转义字符时直接截取子串
+            char c = data.charAt(pos);
+            if(c == '"') {
+                return data.substring(start, pos++);
+            } else if(c == '\\') {
+                break;
+            }
+            pos++;
+        }
+        if(pos >= data.length())
+            throw UNRECOGNIZED;
+        unescapeBuilder.setLength(0);
+        unescapeBuilder.append(data, start, pos);
+        while(pos < data.length()) {
+            char c = data.charAt(pos++);
+            if(c == '"') {
+                return unescapeBuilder.toString();
+            } else if(c != '\\') {
+                unescapeBuilder.append(c);
+                continue;
+            }
+            if(pos >= data.length())
+                throw UNRECOGNIZED;
+            char e = data.charAt(pos++);
+            switch(e) {
+                case '"': unescapeBuilder.append('"'); break;
+                case '\\': unescapeBuilder.append('\\'); break;
+                case '/': unescapeBuilder.append('/'); break;
+                case 'b': unescapeBuilder.append('\b'); break;
+                case 'f': unescapeBuilder.append('\f'); break;
+                case 'n': unescapeBuilder.append('\n'); break;
+                case 'r': unescapeBuilder.append('\r'); break;
+                case 't': unescapeBuilder.append('\t'); break;
+                case 'u':
+                    if(pos + 4 > data.length())
+                        throw UNRECOGNIZED;
+                    int code = 0;
+                    for(int i = 0; i < 4; i++) {
+                        int digit = Character.digit(data.charAt(pos++), 16);
+                        if(digit < 0)
+                            throw UNRECOGNIZED;
+                        code = (code << 4) | digit;
+                    }
+                    unescapeBuilder.append((char) code);
+                    break;
+                default:
+                    throw UNRECOGNIZED;
+            }
+        }
+        throw UNRECOGNIZED;
+    }
+
+    // 跳过任意一个JSON值
+    private void skipValue() throws UnrecognizedException {
+        skipWhitespace();
+        if(pos >= data.length())
+            throw UNRECOGNIZED;
+        char c = data.charAt(pos);
+        if(c == '"') {
+            skipString();
+        } else if(c == '{' || c == '[') {
+            int depth = 0;
+            while(pos < data.length()) {
+                char ch = data.charAt(pos);
+                if(ch == '"') {
+                    skipString();
+                    continue;
+                } else if(ch == '{' || ch == '[') {
+                    depth++;
+                } else if(ch == '}' || ch == ']') {
+                    if(--depth == 0) {
+                        pos++;
+                        return;
+                    }
+                }
+                pos++;
+            }
+            throw UNRECOGNIZED;
+        } else { // 数字、true、false、null
+            int start = pos;
+            while(pos < data.length()) {
+                char ch = data.charAt(pos);
+                if(ch == ',' || ch == '}' || ch == ']' || Character.isWhitespace(ch))
+                    break;
+                pos++;
+            }
+            if(pos == start)
+                throw UNRECOGNIZED;
+        }
+    }
+
+    private void skipString() throws UnrecognizedException {
+        pos++;
+        while(pos < data.length()) {
+            char c = data.charAt(pos++);
+            if(c == '\\') {
+                pos++;
+            } else if(c == '"') {
+                return;
+            }
+        }
+        throw UNRECOGNIZED;
+    }
+
+    private void skipWhitespace() {
+        while(pos < data.length() && Character.isWhitespace(data.charAt(pos)))
+            pos++;
+    }
+
+    private void expect(char c) throws UnrecognizedException {
+        if(!tryConsume(c))
+            throw UNRECOGNIZED;
+    }
+
+    private boolean tryConsume(char c) {
+        skipWhitespace();
+        if(pos < data.length() && data.charAt(pos) == c) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean tryConsumeLiteral(String literal) {
+        skipWhitespace();
+        if(data.startsWith(literal, pos)) {
+            pos += literal.length();
+            return true;
+        }
+        return false;
+    }
+}
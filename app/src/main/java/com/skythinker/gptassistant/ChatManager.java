@@ -6,19 +6,29 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
 import android.util.Base64;
 import android.util.Log;
 
 import androidx.annotation.Nullable;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.UUID;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import cn.hutool.crypto.digest.MD5;
 import cn.hutool.json.JSONArray;
@@ -30,7 +40,10 @@ public class ChatManager{
     // 用于存储一条聊天消息
     public static class ChatMessage {
         static private Context context;
-        static public void setContext(Context context) { ChatMessage.context = context; }
+        static public void setContext(Context context) {
+            ChatMessage.context = context;
+            ImageStore.setDirectory(new File(context.getFilesDir(), "images"));
+        }
 
         // 用于标记消息的角色
         public enum ChatRole {
@@ -51,9 +64,11 @@ public class ChatManager{
 
         public ChatRole role;
         public String contentText;
-        public String contentImageBase64;
-        private String imageUuid;
+        private String contentImageBase64; // 图片的base64，已保存到文件的图片在首次使用时才读取
+        private String imageKey; // 图片在ImageStore中的key（内容的SHA-256，旧版本保存的图片为uuid）
         public String functionName;
+        public String toolCallId; // 函数调用的ID，调用请求与其结果通过该ID对应
+        public String imageCaption; // 图片的简短描述，较早的图片可用描述代替原图发送
 
         public ChatMessage(ChatRole role) { this.role = role; }
 
@@ -67,83 +82,90 @@ public class ChatManager{
             return this;
         }
 
-        public ChatMessage setImage(String base64) {
+        public ChatMessage setToolCallId(String id) {
+            this.toolCallId = id;
+            return this;
+        }
+
+        public synchronized ChatMessage setImage(String base64) {
             this.contentImageBase64 = base64;
-            this.imageUuid = UUID.randomUUID().toString();
+            this.imageKey = ImageStore.keyOf(Base64.decode(base64, Base64.NO_WRAP)); // 相同的图片使用同一个文件
             return this;
         }
 
-        // 删除uuid对应的图片文件
-        public void deleteImageFile() {
-            if(imageUuid != null) {
-                File file = new File(getImagePath(imageUuid));
-                if(file.exists()) {
-                    file.delete();
-                }
-            }
+        // 设置仅保存在内存中的图片（发送用的临时消息等），不生成图片文件
+        public synchronized ChatMessage setTransientImage(String base64) {
+            this.contentImageBase64 = base64;
+            this.imageKey = null;
+            return this;
         }
 
-        // 保存base64到图片文件
-        public void saveImageFile() {
-            if(imageUuid != null && contentImageBase64 != null) {
-                try {
-                    File file = new File(getImagePath(imageUuid));
-                    if(!file.exists()) {
-                        file.getParentFile().mkdirs();
-                        file.createNewFile();
-                        FileOutputStream fos = new FileOutputStream(file);
-                        fos.write(Base64.decode(contentImageBase64, Base64.NO_WRAP));
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-            }
+        // 是否含有图片（图片文件已被删除时视为无图片）
+        public boolean hasImage() {
+            return contentImageBase64 != null || getImageFile() != null;
         }
 
-        // 根据uuid加载图片文件base64
-        public void loadImageFile() {
-            if(imageUuid != null) {
-                try {
-                    File file = new File(getImagePath(imageUuid));
-                    if(file.exists()) {
-                        FileInputStream fis = new FileInputStream(file);
-                        byte[] buffer = new byte[fis.available()];
-                        fis.read(buffer);
-                        contentImageBase64 = Base64.encodeToString(buffer, Base64.NO_WRAP);
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-            }
+        // 图片的引用，图片未被修改时保持为同一对象，用于检查缓存是否有效，不会读取图片文件
+        public Object getImageRef() {
+            return imageKey != null ? imageKey : contentImageBase64;
+        }
+
+        // 获取图片的base64，图片只在文件中时读取并缓存在消息中
+        public synchronized String getImageBase64() {
+            if(contentImageBase64 == null)
+                loadImageFile();
+            return contentImageBase64;
         }
 
-        // 根据uuid拼接图片文件路径
-        static public String getImagePath(String uuid) {
-            return context.getFilesDir().getAbsolutePath() + "/images/" + uuid + ".jpg";
+        // 获取图片的原始数据，不在消息中缓存base64（用于解码缩略图等），无图片时返回null
+        public byte[] readImageBytes() {
+            String base64 = contentImageBase64;
+            if(base64 != null)
+                return Base64.decode(base64, Base64.NO_WRAP);
+            File file = getImageFile();
+            return file != null ? ImageStore.read(file) : null;
         }
 
-        // 将消息转换为json
-        public JSONObject toJson() {
-            saveImageFile();
+        // 已保存的图片文件，不存在时返回null
+        public File getImageFile() {
+            if(imageKey == null)
+                return null;
+            File file = ImageStore.file(imageKey);
+            return file.exists() ? file : null;
+        }
 
-            JSONObject json = new JSONObject();
-            json.putOpt("role", role.name())
-                    .putOpt("text", contentText)
-                    .putOpt("image", imageUuid)
-                    .putOpt("function", functionName);
-            return json;
+        // 删除图片文件，只用于尚未迁移的旧版本会话，其图片以uuid命名，不会被其他消息引用
+        public void deleteImageFile() {
+            if(imageKey != null)
+                ImageStore.delete(imageKey);
         }
 
-        // 从json中读取消息
-        public static ChatMessage fromJson(JSONObject json, boolean loadImage) {
+        // 保存图片文件，相同内容的图片已保存时不再写入
+        public synchronized void saveImageFile() {
+            if(imageKey != null && contentImageBase64 != null && !ImageStore.contains(imageKey))
+                ImageStore.write(imageKey, Base64.decode(contentImageBase64, Base64.NO_WRAP));
+        }
+
+        // 从图片文件加载base64
+        private void loadImageFile() {
+            File file = getImageFile();
+            if(file != null) {
+                byte[] data = ImageStore.read(file);
+                if(data != null)
+                    contentImageBase64 = Base64.encodeToString(data, Base64.NO_WRAP);
+            }
+        }
+
+        public String getImageKey() { return imageKey; }
+
+        // 从json中读取消息（旧版本的保存格式），图片在使用时才从文件中读取
+        public static ChatMessage fromJson(JSONObject json) {
             ChatMessage msg = new ChatMessage(ChatRole.fromName(json.getStr("role", "USER")));
             msg.contentText = json.getStr("text", null);
-            msg.imageUuid = json.getStr("image", null);
+            msg.imageKey = json.getStr("image", null);
             msg.functionName = json.getStr("function", null);
-
-            if(loadImage) { // 从文件中读取图片数据
-                msg.loadImageFile();
-            }
+            msg.toolCallId = json.getStr("tool_call_id", null);
+            msg.imageCaption = json.getStr("caption", null);
             return msg;
         }
     }
@@ -157,18 +179,17 @@ public class ChatManager{
             }
         }
 
-        public JSONArray toJson() {
-            JSONArray json = new JSONArray();
-            for(ChatMessage msg : this) {
-                json.put(msg.toJson());
-            }
-            return json;
-        }
-
-        public static MessageList fromJson(JSONArray json, boolean loadImages) {
+        public static MessageList fromJson(JSONArray json) {
             MessageList list = new MessageList();
+            String lastCallId = null;
             for(int i = 0; i < json.size(); i++) {
-                list.add(ChatMessage.fromJson(json.getJSONObject(i), loadImages));
+                ChatMessage msg = ChatMessage.fromJson(json.getJSONObject(i));
+                if(msg.toolCallId == null && msg.functionName != null) { // 旧版本保存的函数调用没有ID，按顺序补上
+                    if(msg.role == ChatMessage.ChatRole.ASSISTANT)
+                        lastCallId = "call_" + i;
+                    msg.toolCallId = lastCallId;
+                }
+                list.add(msg);
             }
             return list;
         }
@@ -180,24 +201,105 @@ public class ChatManager{
         public LocalDateTime time;
         public String title;
         public MessageList messages;
+        public String summary; // 较早消息的摘要（长对话压缩），为null表示未压缩
+        public int summaryCount; // 摘要覆盖了messages中的前多少条消息
+        private final List<SavedMessage> savedMessages = new ArrayList<>(); // 已写入数据库的消息，保存时只写入新增或修改的消息
         public Conversation() {
             id = -1;
             time = LocalDateTime.now();
             title = "新会话";
             messages = new MessageList();
+            summary = null;
+            summaryCount = 0;
         }
         public void updateTime() {
             time = LocalDateTime.now();
         }
+        public void clearSummary() {
+            summary = null;
+            summaryCount = 0;
+        }
+        // 删除一条消息，若该消息已包含在摘要中，keepSummary为true时保留摘要并调整覆盖范围，否则丢弃摘要
+        public ChatMessage removeMessage(int index, boolean keepSummary) {
+            if(index < summaryCount) {
+                if(keepSummary)
+                    summaryCount--;
+                else
+                    clearSummary();
+            }
+            return messages.remove(index);
+        }
+    }
+
+    // 消息在某一时刻的内容，保存时在调用线程中记录，写入数据库后用于判断消息是否被修改
+    private static class SavedMessage {
+        final ChatMessage message;
+        final ChatMessage.ChatRole role;
+        final String text, functionName, toolCallId, caption;
+        final Object imageRef;
+        final String image; // 图片在ImageStore中的key
+
+        SavedMessage(ChatMessage message) {
+            this.message = message;
+            role = message.role;
+            text = message.contentText;
+            functionName = message.functionName;
+            toolCallId = message.toolCallId;
+            caption = message.imageCaption;
+            imageRef = message.getImageRef();
+            image = message.getImageKey();
+        }
+
+        boolean sameContent(SavedMessage other) {
+            return role == other.role && text == other.text && functionName == other.functionName
+                    && toolCallId == other.toolCallId && caption == other.caption && imageRef == other.imageRef;
+        }
+    }
+
+    // 一次等待写入的会话保存，内容在调用saveConversation时记录
+    private static class SaveRequest {
+        final Conversation conversation;
+        final String time, title, summary, preview;
+        final int summaryCount;
+        final List<SavedMessage> messages = new ArrayList<>();
+
+        SaveRequest(Conversation conversation) {
+            this.conversation = conversation;
+            time = conversation.time.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+            title = conversation.title;
+            summary = conversation.summary;
+            summaryCount = conversation.summaryCount;
+            preview = previewOf(conversation.messages);
+            for(ChatMessage message : conversation.messages)
+                messages.add(new SavedMessage(message));
+        }
+    }
+
+    public interface Callback<T> {
+        void onResult(T result);
+    }
+
+    // 历史记录列表中一个会话的摘要信息，不包含消息内容
+    public static class ConversationSummary {
+        public long id;
+        public LocalDateTime time;
+        public String title;
+        public String preview;
+        public int messageCount;
+        public String snippet; // 搜索时匹配消息的摘录，非搜索结果为null
     }
 
     // 数据库管理器
-    private class DatabaseHelper extends SQLiteOpenHelper {
+    private static class DatabaseHelper extends SQLiteOpenHelper {
         final static private String databaseName = "chat.db";
         final static private String tableName = "conversations";
-        final static private int version = 1;
+        final static private String messageTableName = "messages";
+        final static private String searchTableName = "message_fts";
+        final static private String imageTableName = "images";
+        final static private int version = 6;
         public DatabaseHelper(Context context) {
             super(context, databaseName, null, version);
+            setWriteAheadLoggingEnabled(true); // 后台写入时前台仍可读取
         }
 
         @Override
@@ -206,131 +308,656 @@ public class ChatManager{
                     "id INTEGER PRIMARY KEY AUTOINCREMENT," +
                     "time TEXT," +
                     "title TEXT," +
-                    "messages TEXT" +
+                    "messages TEXT," + // 旧版本保存的消息JSON，迁移到messages表后为NULL
+                    "summary TEXT," +
+                    "summary_count INTEGER DEFAULT 0," +
+                    "preview TEXT," + // 历史记录列表中显示的第一条回复
+                    "message_count INTEGER" + // 消息数量，为NULL表示preview尚未生成，为UNREADABLE_COUNT表示旧版本的JSON无法解析
                     ");";
             sqLiteDatabase.execSQL(sql);
+            createMessageTable(sqLiteDatabase);
+            createSearchTable(sqLiteDatabase);
+            createImageTable(sqLiteDatabase);
         }
 
         @Override
-        public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) { }
+        public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
+            if(oldVersion < 2) { // v2: 长对话摘要
+                sqLiteDatabase.execSQL("ALTER TABLE " + tableName + " ADD COLUMN summary TEXT");
+                sqLiteDatabase.execSQL("ALTER TABLE " + tableName + " ADD COLUMN summary_count INTEGER DEFAULT 0");
+            }
+            if(oldVersion < 3) { // v3: 消息按条保存到messages表，已有的JSON在后台迁移
+                createMessageTable(sqLiteDatabase);
+            }
+            if(oldVersion < 4) { // v4: 历史记录列表使用的摘要列，已有会话在后台补全
+                sqLiteDatabase.execSQL("ALTER TABLE " + tableName + " ADD COLUMN preview TEXT");
+                sqLiteDatabase.execSQL("ALTER TABLE " + tableName + " ADD COLUMN message_count INTEGER");
+            }
+            if(oldVersion < 5) { // v5: 消息全文搜索，已有消息在后台建立索引
+                if(oldVersion >= 3) // 更早的版本在上面直接创建了新版的messages表
+                    sqLiteDatabase.execSQL("ALTER TABLE " + messageTableName + " ADD COLUMN search_text TEXT");
+                createSearchTable(sqLiteDatabase);
+            }
+            if(oldVersion < 6) { // v6: 图片按内容保存并记录引用计数，已有的图片在后台生成缩略图
+                createImageTable(sqLiteDatabase);
+                sqLiteDatabase.execSQL("INSERT INTO " + imageTableName + " (key, refs) SELECT image, COUNT(*) FROM "
+                        + messageTableName + " WHERE image IS NOT NULL GROUP BY image");
+            }
+        }
+
+        private void createMessageTable(SQLiteDatabase sqLiteDatabase) {
+            sqLiteDatabase.execSQL("CREATE TABLE " + messageTableName + " (" +
+                    "conversation_id INTEGER NOT NULL," +
+                    "seq INTEGER NOT NULL," + // 消息在会话中的序号
+                    "role TEXT," +
+                    "text TEXT," +
+                    "image TEXT," +
+                    "function TEXT," +
+                    "tool_call_id TEXT," +
+                    "caption TEXT," +
+                    "search_text TEXT," + // 分词后用于全文搜索的文本，为NULL表示尚未建立索引
+                    "PRIMARY KEY (conversation_id, seq)" +
+                    ");");
+            sqLiteDatabase.execSQL("CREATE INDEX IF NOT EXISTS " + tableName + "_time ON " + tableName + " (time)");
+        }
+
+        // 以messages表为外部内容的FTS4索引，通过触发器与messages表同步
+        private void createSearchTable(SQLiteDatabase sqLiteDatabase) {
+            sqLiteDatabase.execSQL("CREATE VIRTUAL TABLE " + searchTableName + " USING fts4(content=\"" + messageTableName + "\", search_text)");
+            sqLiteDatabase.execSQL("CREATE TRIGGER " + messageTableName + "_bu BEFORE UPDATE ON " + messageTableName
+                    + " BEGIN DELETE FROM " + searchTableName + " WHERE docid=old.rowid; END");
+            sqLiteDatabase.execSQL("CREATE TRIGGER " + messageTableName + "_bd BEFORE DELETE ON " + messageTableName
+                    + " BEGIN DELETE FROM " + searchTableName + " WHERE docid=old.rowid; END");
+            sqLiteDatabase.execSQL("CREATE TRIGGER " + messageTableName + "_au AFTER UPDATE ON " + messageTableName
+                    + " BEGIN INSERT INTO " + searchTableName + "(docid, search_text) VALUES(new.rowid, new.search_text); END");
+            sqLiteDatabase.execSQL("CREATE TRIGGER " + messageTableName + "_ai AFTER INSERT ON " + messageTableName
+                    + " BEGIN INSERT INTO " + searchTableName + "(docid, search_text) VALUES(new.rowid, new.search_text); END");
+        }
+
+        // 图片的引用计数，通过触发器随messages表更新，计数为0的图片在写入后删除
+        private void createImageTable(SQLiteDatabase sqLiteDatabase) {
+            sqLiteDatabase.execSQL("CREATE TABLE " + imageTableName + " (" +
+                    "key TEXT PRIMARY KEY," +
+                    "refs INTEGER NOT NULL DEFAULT 0" +
+                    ");");
+            sqLiteDatabase.execSQL("CREATE TRIGGER " + imageTableName + "_ai AFTER INSERT ON " + messageTableName + " WHEN new.image IS NOT NULL"
+                    + " BEGIN INSERT OR IGNORE INTO " + imageTableName + " (key) VALUES(new.image);"
+                    + " UPDATE " + imageTableName + " SET refs=refs+1 WHERE key=new.image; END");
+            sqLiteDatabase.execSQL("CREATE TRIGGER " + imageTableName + "_ad AFTER DELETE ON " + messageTableName + " WHEN old.image IS NOT NULL"
+                    + " BEGIN UPDATE " + imageTableName + " SET refs=refs-1 WHERE key=old.image; END");
+            sqLiteDatabase.execSQL("CREATE TRIGGER " + imageTableName + "_au AFTER UPDATE OF image ON " + messageTableName
+                    + " BEGIN UPDATE " + imageTableName + " SET refs=refs-1 WHERE key=old.image;"
+                    + " INSERT OR IGNORE INTO " + imageTableName + " (key) SELECT new.image WHERE new.image IS NOT NULL;"
+                    + " UPDATE " + imageTableName + " SET refs=refs+1 WHERE key=new.image; END");
+        }
     }
 
-    private DatabaseHelper dbHelper;
-    private SQLiteDatabase db;
+    private static final int MIGRATE_BATCH_SIZE = 20; // 每个事务迁移的会话数，避免长时间阻塞前台的读写
+    private static final int INDEX_BATCH_SIZE = 500; // 每个事务建立索引的消息数
+    private static final int THUMBNAIL_BATCH_SIZE = 10; // 每批生成缩略图的图片数
+    private static final int PREVIEW_CHARS = 100;
+    private static final int UNREADABLE_COUNT = -1; // 无法解析的旧版本记录的message_count，保留原JSON不再迁移
+    private static final int SEARCH_LIMIT = 200; // 搜索结果的最大数量
+    private static final long FLUSH_TIMEOUT = 2000; // 界面销毁时等待保存写入的最长时间(ms)
+    private static final Map<String, Long> countCache = new HashMap<>(); // 按搜索词缓存的会话数量，写入数据库时清空
+
+    // 所有ChatManager共享同一个数据库连接，进程结束前不关闭；所有写入都在数据库线程中按提交顺序执行
+    private static DatabaseHelper dbHelper = null;
+    private static SQLiteDatabase db = null;
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ChatManager");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // 预编译的写入语句，只在数据库线程中使用
+    private static SQLiteStatement insertConversationStatement, updateConversationStatement;
+    private static SQLiteStatement insertMessageStatement, updateMessageStatement, deleteMessagesStatement;
+    private static final Map<Conversation, SaveRequest> pendingSaves = new LinkedHashMap<>(); // 等待写入的保存，同一会话只保留最新的内容
+    private static CompletableFuture<Void> pendingSaveFuture = null; // 等待写入的保存完成时结束
+    private static CompletableFuture<Void> writingSaveFuture = null; // 正在写入的保存完成时结束
+    private static long indexedRowId = 0; // 后台建立索引的进度
+    private static long thumbnailRowId = 0; // 后台生成缩略图的进度
 
     public ChatManager(Context context) {
-        dbHelper = new DatabaseHelper(context);
-        db = dbHelper.getWritableDatabase();
+        synchronized (ChatManager.class) {
+            if(db == null) {
+                dbHelper = new DatabaseHelper(context.getApplicationContext());
+                db = dbHelper.getWritableDatabase();
+                prepareStatements();
+                executor.execute(ImageStore::deleteTempFiles);
+                executor.execute(ChatManager::migrateStep);
+            }
+        }
+    }
+
+    // 界面销毁前调用，最多等待FLUSH_TIMEOUT使尚未写入的保存完成；数据库线程随进程存在，其余操作会继续执行
+    // 数据库由所有ChatManager共享，不在此关闭
+    public void destroy() {
+        CompletableFuture<Void> future;
+        synchronized (pendingSaves) {
+            future = pendingSaveFuture != null ? pendingSaveFuture : writingSaveFuture; // 单线程执行，等待中的保存总在正在写入的之后完成
+        }
+        if(future == null)
+            return;
+        try {
+            future.get(FLUSH_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            Log.w("ChatManager", "flush not finished: " + e);
+        }
+    }
+
+    // 在数据库线程中执行task，完成后通过handler回调；在之前提交的保存完成后执行，能读取到最新的内容
+    public <T> Future<T> execute(Callable<T> task, Handler handler, Callback<T> callback) {
+        return executor.submit(() -> {
+            T result;
+            try {
+                result = task.call();
+            } catch (Exception e) {
+                Log.e("ChatManager", "task failed: " + e);
+                throw e;
+            }
+            if(callback != null)
+                handler.post(() -> callback.onResult(result));
+            return result;
+        });
     }
 
-    public void destroy() { db.close(); }
+    private static void prepareStatements() {
+        insertConversationStatement = db.compileStatement("INSERT INTO " + DatabaseHelper.tableName
+                + " (time, title, summary, summary_count, preview, message_count, messages) VALUES (?, ?, ?, ?, ?, ?, NULL)");
+        updateConversationStatement = db.compileStatement("UPDATE " + DatabaseHelper.tableName
+                + " SET time=?, title=?, summary=?, summary_count=?, preview=?, message_count=?, messages=NULL WHERE id=?");
+        insertMessageStatement = db.compileStatement("INSERT INTO " + DatabaseHelper.messageTableName
+                + " (role, text, image, function, tool_call_id, caption, search_text, conversation_id, seq) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        updateMessageStatement = db.compileStatement("UPDATE " + DatabaseHelper.messageTableName
+                + " SET role=?, text=?, image=?, function=?, tool_call_id=?, caption=?, search_text=? WHERE conversation_id=? AND seq=?");
+        deleteMessagesStatement = db.compileStatement("DELETE FROM " + DatabaseHelper.messageTableName + " WHERE conversation_id=? AND seq>=?");
+    }
 
     // 转义like语句中的特殊字符
     private String escapeLikeText(String text) {
         return text.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
     }
 
-    // 获取数据库会话数量
+    // 获取数据库会话数量，结果会被缓存直到下一次写入
     public long getConversationCount(String filterTitleText) {
+        synchronized (countCache) {
+            Long count = countCache.get(filterTitleText);
+            if(count != null)
+                return count;
+        }
         String selection = (filterTitleText == null) ? null : "title LIKE ? ESCAPE '\\'";
         String[] selectionArgs = (filterTitleText == null) ? null : new String[]{"%" + escapeLikeText(filterTitleText) + "%"};
-        Cursor cursor = db.query(DatabaseHelper.tableName, new String[]{"COUNT(*)"}, selection, selectionArgs, null, null, null);
-        cursor.moveToFirst();
-        return cursor.getLong(0);
+        long count;
+        try (Cursor cursor = db.query(DatabaseHelper.tableName, new String[]{"COUNT(*)"}, selection, selectionArgs, null, null, null)) {
+            cursor.moveToFirst();
+            count = cursor.getLong(0);
+        }
+        synchronized (countCache) {
+            countCache.put(filterTitleText, count);
+        }
+        return count;
+    }
+
+    private static void invalidateCount() {
+        synchronized (countCache) {
+            countCache.clear();
+        }
     }
     public long getConversationCount() {
         return getConversationCount(null);
     }
 
     // 从数据库游标中读取会话信息
-    private Conversation getConversationByCursor(Cursor cursor, boolean loadImages) {
+    private Conversation getConversationByCursor(Cursor cursor) {
         Conversation conversation = new Conversation();
         conversation.id = cursor.getLong(cursor.getColumnIndex("id"));
         conversation.time = LocalDateTime.parse(cursor.getString(cursor.getColumnIndex("time")), DateTimeFormatter.ISO_LOCAL_DATE_TIME);
         conversation.title = cursor.getString(cursor.getColumnIndex("title"));
-        conversation.messages = MessageList.fromJson(new JSONArray(cursor.getString(cursor.getColumnIndex("messages"))), loadImages);
+        String json = cursor.getString(cursor.getColumnIndex("messages"));
+        if(json != null) { // 尚未迁移，首次保存时写入messages表
+            conversation.messages = MessageList.fromJson(new JSONArray(json));
+        } else {
+            conversation.messages = loadMessages(conversation.id);
+            for(ChatMessage message : conversation.messages)
+                conversation.savedMessages.add(new SavedMessage(message));
+        }
+        conversation.summary = cursor.getString(cursor.getColumnIndex("summary"));
+        conversation.summaryCount = cursor.getInt(cursor.getColumnIndex("summary_count"));
         return conversation;
     }
-    private Conversation getConversationByCursor(Cursor cursor) {
-        return getConversationByCursor(cursor, true);
-    }
 
-    // 根据会话ID获取会话
-    public Conversation getConversation(long id) {
-        Cursor cursor = db.query(DatabaseHelper.tableName, null, "id=?", new String[]{String.valueOf(id)}, null, null, null);
-        if (cursor.moveToFirst()) {
-            return getConversationByCursor(cursor);
+    // 从messages表中按顺序读取会话的消息
+    private static MessageList loadMessages(long conversationId) {
+        MessageList messages = new MessageList();
+        try (Cursor cursor = db.query(DatabaseHelper.messageTableName, null, "conversation_id=?",
+                new String[]{String.valueOf(conversationId)}, null, null, "seq")) {
+            while (cursor.moveToNext()) {
+                ChatMessage msg = new ChatMessage(ChatMessage.ChatRole.fromName(cursor.getString(cursor.getColumnIndex("role"))));
+                msg.contentText = cursor.getString(cursor.getColumnIndex("text"));
+                msg.imageKey = cursor.getString(cursor.getColumnIndex("image"));
+                msg.functionName = cursor.getString(cursor.getColumnIndex("function"));
+                msg.toolCallId = cursor.getString(cursor.getColumnIndex("tool_call_id"));
+                msg.imageCaption = cursor.getString(cursor.getColumnIndex("caption"));
+                messages.add(msg);
+            }
         }
-        return null;
+        return messages;
     }
 
-    // 根据会话在数据库中的位置获取会话（按时间倒序）
-    public Conversation getConversationAtPosition(int position, String filterTitleText) {
-        String selection = (filterTitleText == null) ? null : "title LIKE ? ESCAPE '\\'";
-        String[] selectionArgs = (filterTitleText == null) ? null : new String[]{"%" + escapeLikeText(filterTitleText) + "%"};
-        Cursor cursor = db.query(DatabaseHelper.tableName, null, selection, selectionArgs, null, null, "id DESC", String.valueOf(position) + ",1");
-        if (cursor.moveToFirst()) {
-            return getConversationByCursor(cursor);
+    // 在数据库线程中读取会话（在之前提交的保存之后），完成后通过handler回调，会话不存在时结果为null
+    public Future<Conversation> loadConversation(long id, Handler handler, Callback<Conversation> callback) {
+        return execute(() -> getConversation(id), handler, callback);
+    }
+
+    // 根据会话ID获取会话
+    public Conversation getConversation(long id) {
+        try (Cursor cursor = db.query(DatabaseHelper.tableName, null, "id=?", new String[]{String.valueOf(id)}, null, null, null)) {
+            if (cursor.moveToFirst()) {
+                return getConversationByCursor(cursor);
+            }
         }
         return null;
     }
-    public Conversation getConversationAtPosition(int position) {
-        return getConversationAtPosition(position, null);
-    }
 
     // 获取所有会话（按时间倒序）
     public List<Conversation> getAllConversations() {
-        Cursor cursor = db.query(DatabaseHelper.tableName, null, null, null, null, null, "id DESC");
         List<Conversation> conversations = new ArrayList<>();
-        while (cursor.moveToNext()) {
-            Conversation conversation = getConversationByCursor(cursor);
-            conversations.add(conversation);
+        try (Cursor cursor = db.query(DatabaseHelper.tableName, null, null, null, null, null, "time DESC, id DESC")) {
+            while (cursor.moveToNext()) {
+                Conversation conversation = getConversationByCursor(cursor);
+                conversations.add(conversation);
+            }
         }
         return conversations;
     }
 
-    // 添加会话到数据库
-    public long addConversation(Conversation conversation) {
-        ContentValues values = new ContentValues();
-        values.put("time", conversation.time.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
-        values.put("title", conversation.title);
-        values.put("messages", conversation.messages.toJson().toString());
-        conversation.id = db.insert(DatabaseHelper.tableName, null, values);
-        return conversation.id;
+    // 按时间倒序分页读取会话摘要，after为上一页的最后一项（为null时读取第一页），使用键集分页避免OFFSET扫描
+    public List<ConversationSummary> getConversationSummaries(ConversationSummary after, int limit) {
+        String selection = null;
+        String[] selectionArgs = null;
+        if(after != null) {
+            selection = "(time, id)<(?, ?)"; // 行值比较可直接使用time索引，无需额外排序
+            selectionArgs = new String[]{after.time.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME), String.valueOf(after.id)};
+        }
+        List<ConversationSummary> summaries = new ArrayList<>();
+        try (Cursor cursor = db.query(DatabaseHelper.tableName, new String[]{"id", "time", "title", "preview", "message_count"},
+                selection, selectionArgs, null, null, "time DESC, id DESC", String.valueOf(limit))) {
+            while (cursor.moveToNext()) {
+                ConversationSummary summary = new ConversationSummary();
+                summary.id = cursor.getLong(0);
+                summary.time = LocalDateTime.parse(cursor.getString(1), DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+                summary.title = cursor.getString(2);
+                if(cursor.isNull(4)) { // 尚未在后台补全，直接从消息中生成
+                    Conversation conversation = getConversation(summary.id);
+                    if(conversation != null) {
+                        summary.preview = previewOf(conversation.messages);
+                        summary.messageCount = conversation.messages.size();
+                    }
+                } else {
+                    summary.preview = cursor.getString(3);
+                    summary.messageCount = cursor.getInt(4);
+                }
+                summaries.add(summary);
+            }
+        }
+        return summaries;
+    }
+
+    // 历史记录列表中显示的预览：第一条回复的开头
+    private static String previewOf(List<ChatMessage> messages) {
+        for(ChatMessage message : messages) {
+            if (message.role == ChatMessage.ChatRole.ASSISTANT && message.functionName == null && message.contentText != null) {
+                String text = message.contentText.replaceAll("\n", " ");
+                return text.length() > PREVIEW_CHARS ? text.substring(0, PREVIEW_CHARS) : text;
+            }
+        }
+        return "";
+    }
+
+    // 保存会话（异步），未保存过的会话会被添加到数据库，会话内容在调用时记录
+    // 尚未写入的保存合并后在同一个事务中写入，同一会话只写入最新的内容；已保存的消息不再重复写入，每轮对话通常只需插入新增的消息
+    public Future<Void> saveConversation(Conversation conversation) {
+        SaveRequest request = new SaveRequest(conversation);
+        synchronized (pendingSaves) {
+            pendingSaves.put(conversation, request);
+            if(pendingSaveFuture == null) {
+                CompletableFuture<Void> future = new CompletableFuture<>();
+                pendingSaveFuture = future;
+                executor.execute(() -> writePendingSaves(future));
+            }
+            return pendingSaveFuture;
+        }
+    }
+
+    private static void writePendingSaves(CompletableFuture<Void> future) {
+        List<SaveRequest> requests;
+        synchronized (pendingSaves) {
+            requests = new ArrayList<>(pendingSaves.values());
+            pendingSaves.clear();
+            pendingSaveFuture = null;
+            writingSaveFuture = future;
+        }
+        try {
+            db.beginTransaction();
+            try {
+                for(SaveRequest request : requests)
+                    writeConversation(request);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            invalidateCount();
+            collectImages();
+            future.complete(null);
+        } catch (Exception e) {
+            Log.e("ChatManager", "save failed: " + e);
+            for(SaveRequest request : requests) // 事务已回滚，下次保存时重新写入所有消息
+                request.conversation.savedMessages.clear();
+            future.completeExceptionally(e);
+        }
+        synchronized (pendingSaves) {
+            if(writingSaveFuture == future)
+                writingSaveFuture = null;
+        }
+    }
+
+    // 写入一个会话，只在数据库线程的事务中调用
+    private static void writeConversation(SaveRequest request) {
+        Conversation conversation = request.conversation;
+        List<SavedMessage> saved = conversation.savedMessages;
+        List<SavedMessage> messages = request.messages;
+        boolean exists = false;
+        if(conversation.id >= 0) {
+            bindConversation(updateConversationStatement, request);
+            updateConversationStatement.bindLong(7, conversation.id);
+            exists = updateConversationStatement.executeUpdateDelete() > 0;
+        }
+        if(!exists) { // 新会话，或已在历史记录中被删除
+            bindConversation(insertConversationStatement, request);
+            conversation.id = insertConversationStatement.executeInsert();
+            saved.clear();
+        } else if(saved.isEmpty()) { // 旧版本格式的会话，或保存过空会话，重新写入所有消息
+            deleteMessages(conversation.id, 0);
+        }
+        int i = 0;
+        for(; i < saved.size() && i < messages.size() && saved.get(i).message == messages.get(i).message; i++) {
+            if(!saved.get(i).sameContent(messages.get(i))) { // 消息内容被修改（如生成了图片描述）
+                writeMessage(updateMessageStatement, conversation.id, i, messages.get(i));
+                saved.set(i, messages.get(i));
+            }
+        }
+        if(i < saved.size()) { // 之后的消息被删除或替换
+            deleteMessages(conversation.id, i);
+            saved.subList(i, saved.size()).clear();
+        }
+        for(; i < messages.size(); i++) {
+            writeMessage(insertMessageStatement, conversation.id, i, messages.get(i));
+            saved.add(messages.get(i));
+        }
+    }
+
+    private static void bindConversation(SQLiteStatement statement, SaveRequest request) {
+        statement.clearBindings();
+        bindText(statement, 1, request.time);
+        bindText(statement, 2, request.title);
+        bindText(statement, 3, request.summary);
+        statement.bindLong(4, request.summaryCount);
+        bindText(statement, 5, request.preview);
+        statement.bindLong(6, request.messages.size());
+    }
+
+    // 插入或更新messages表中的一行，同时保存图片文件及其缩略图
+    private static void writeMessage(SQLiteStatement statement, long conversationId, int seq, SavedMessage msg) {
+        if(msg.image != null) {
+            msg.message.saveImageFile();
+            ImageStore.ensureThumbnail(msg.image);
+        }
+        statement.clearBindings();
+        bindText(statement, 1, msg.role == null ? null : msg.role.name());
+        bindText(statement, 2, msg.text);
+        bindText(statement, 3, msg.image);
+        bindText(statement, 4, msg.functionName);
+        bindText(statement, 5, msg.toolCallId);
+        bindText(statement, 6, msg.caption);
+        bindText(statement, 7, searchTextOf(msg.role, msg.functionName, msg.text));
+        statement.bindLong(8, conversationId);
+        statement.bindLong(9, seq);
+        if(statement == insertMessageStatement)
+            statement.executeInsert();
+        else
+            statement.executeUpdateDelete();
+    }
+
+    private static void deleteMessages(long conversationId, int fromSeq) {
+        deleteMessagesStatement.bindLong(1, conversationId);
+        deleteMessagesStatement.bindLong(2, fromSeq);
+        deleteMessagesStatement.executeUpdateDelete();
+    }
+
+    // 删除引用计数为0的图片，在写入事务提交后调用
+    private static void collectImages() {
+        List<String> keys = new ArrayList<>();
+        try (Cursor cursor = db.query(DatabaseHelper.imageTableName, new String[]{"key"}, "refs<=0", null, null, null, null)) {
+            while (cursor.moveToNext())
+                keys.add(cursor.getString(0));
+        }
+        if(keys.isEmpty())
+            return;
+        for(String key : keys)
+            ImageStore.delete(key);
+        db.delete(DatabaseHelper.imageTableName, "refs<=0", null);
+    }
+
+    // bindString不接受null
+    private static void bindText(SQLiteStatement statement, int index, String value) {
+        if(value == null)
+            statement.bindNull(index);
+        else
+            statement.bindString(index, value);
+    }
+
+    // 只索引提问和回复，函数调用的参数和结果（如网页内容）不参与搜索
+    private static String searchTextOf(ChatMessage.ChatRole role, String functionName, String text) {
+        if((role == ChatMessage.ChatRole.USER || role == ChatMessage.ChatRole.ASSISTANT) && functionName == null)
+            return SearchTokenizer.index(text);
+        return "";
+    }
+
+    // 在数据库线程中将旧版本保存在messages列中的JSON分批迁移到messages表并生成preview等摘要列，之后为已有消息建立索引；
+    // 每批完成后重新提交，使前台的读写可以插在批次之间，迁移完成前读取时直接解析JSON
+    private static void migrateStep() {
+        try {
+            if(migrateBatch() > 0 || (indexedRowId = indexBatch(indexedRowId)) > 0
+                    || (thumbnailRowId = thumbnailBatch(thumbnailRowId)) > 0)
+                executor.execute(ChatManager::migrateStep);
+        } catch (Exception e) { // 下次启动时继续迁移
+            Log.e("ChatManager", "migration stopped: " + e);
+        }
+    }
+
+    // 需要迁移的会话：仍为JSON格式或缺少摘要列，跳过无法解析的记录
+    private static final String MIGRATE_SELECTION = "message_count IS NULL OR (messages IS NOT NULL AND message_count<>" + UNREADABLE_COUNT + ")";
+
+    // 迁移一批会话，返回处理的数量
+    private static int migrateBatch() {
+        List<Long> ids = new ArrayList<>();
+        try (Cursor cursor = db.query(DatabaseHelper.tableName, new String[]{"id"}, MIGRATE_SELECTION, null, null, null, null,
+                String.valueOf(MIGRATE_BATCH_SIZE))) {
+            while (cursor.moveToNext())
+                ids.add(cursor.getLong(0));
+        }
+        db.beginTransaction();
+        try {
+            for(long id : ids) {
+                String[] idArgs = new String[]{String.valueOf(id)};
+                MessageList messages = null;
+                try (Cursor cursor = db.query(DatabaseHelper.tableName, new String[]{"messages"}, "id=? AND (" + MIGRATE_SELECTION + ")", idArgs, null, null, null)) {
+                    if (!cursor.moveToFirst()) // 已被保存为新格式
+                        continue;
+                    if (!cursor.isNull(0)) { // 旧版本的JSON格式
+                        try {
+                            messages = MessageList.fromJson(new JSONArray(cursor.getString(0)));
+                        } catch (Exception e) { // 无法解析的记录保留原JSON，标记后跳过
+                            Log.e("ChatManager", "skip unreadable messages of conversation " + id + ": " + e);
+                            ContentValues values = new ContentValues();
+                            values.put("preview", "");
+                            values.put("message_count", UNREADABLE_COUNT);
+                            db.update(DatabaseHelper.tableName, values, "id=?", idArgs);
+                            continue;
+                        }
+                    }
+                }
+                if(messages != null) {
+                    deleteMessages(id, 0);
+                    for(int i = 0; i < messages.size(); i++)
+                        writeMessage(insertMessageStatement, id, i, new SavedMessage(messages.get(i)));
+                } else { // 已迁移但缺少摘要列
+                    messages = loadMessages(id);
+                }
+                ContentValues values = new ContentValues();
+                values.putNull("messages");
+                values.put("preview", previewOf(messages));
+                values.put("message_count", messages.size());
+                db.update(DatabaseHelper.tableName, values, "id=?", idArgs);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if(!ids.isEmpty()) {
+            invalidateCount();
+            collectImages();
+        }
+        return ids.size();
     }
 
-    public void updateConversation(Conversation conversation) {
-        ContentValues values = new ContentValues();
-        values.put("time", conversation.time.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
-        values.put("title", conversation.title);
-        values.put("messages", conversation.messages.toJson().toString());
-        db.update(DatabaseHelper.tableName, values, "id=?", new String[]{String.valueOf(conversation.id)});
+    // 为一批尚未建立索引的消息生成搜索文本（由触发器写入索引），返回最后处理的rowid，全部完成时返回0
+    private static long indexBatch(long afterRowId) {
+        List<Long> rowIds = new ArrayList<>();
+        List<String> searchTexts = new ArrayList<>();
+        try (Cursor cursor = db.query(DatabaseHelper.messageTableName, new String[]{"rowid", "role", "function", "text"},
+                "rowid>? AND search_text IS NULL", new String[]{String.valueOf(afterRowId)}, null, null, "rowid", String.valueOf(INDEX_BATCH_SIZE))) {
+            while (cursor.moveToNext()) {
+                rowIds.add(cursor.getLong(0));
+                searchTexts.add(searchTextOf(ChatMessage.ChatRole.fromName(cursor.getString(1)), cursor.getString(2), cursor.getString(3)));
+            }
+        }
+        if(rowIds.isEmpty())
+            return 0;
+        db.beginTransaction();
+        try {
+            for(int i = 0; i < rowIds.size(); i++) {
+                ContentValues values = new ContentValues();
+                values.put("search_text", searchTexts.get(i));
+                db.update(DatabaseHelper.messageTableName, values, "rowid=?", new String[]{String.valueOf(rowIds.get(i))});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return rowIds.get(rowIds.size() - 1);
     }
 
-    // 删除指定的会话
-    public void removeConversation(long id) {
-        Cursor cursor = db.query(DatabaseHelper.tableName, null, "id=?", new String[]{String.valueOf(id)}, null, null, null);
-        if (cursor.moveToFirst()) {
-            Conversation conversation = getConversationByCursor(cursor, false);
-            conversation.messages.deleteAllImageFiles();
+    // 为一批已保存的图片生成缩略图（已有缩略图的跳过），返回最后处理的rowid，全部完成时返回0
+    private static long thumbnailBatch(long afterRowId) {
+        List<String> keys = new ArrayList<>();
+        long lastRowId = 0;
+        try (Cursor cursor = db.query(DatabaseHelper.imageTableName, new String[]{"rowid", "key"}, "rowid>?",
+                new String[]{String.valueOf(afterRowId)}, null, null, "rowid", String.valueOf(THUMBNAIL_BATCH_SIZE))) {
+            while (cursor.moveToNext()) {
+                lastRowId = cursor.getLong(0);
+                keys.add(cursor.getString(1));
+            }
         }
-        db.delete(DatabaseHelper.tableName, "id=?", new String[]{String.valueOf(id)});
+        for(String key : keys)
+            ImageStore.ensureThumbnail(key);
+        return lastRowId;
     }
-    public void removeConversation(Conversation conversation) { removeConversation(conversation.id); }
 
-    // 删除所有会话
-    public void removeAllConversations() {
-        File imageDir = new File(ChatMessage.getImagePath("abc")).getParentFile(); // 删除所有图片文件
-        if(imageDir.exists()) {
-            for(File file : imageDir.listFiles()) {
-                file.delete();
+    // 搜索标题及消息内容，标题匹配的排在前面，其余按匹配的消息数和时间排序；
+    // 结果的snippet为最近一条匹配消息中关键词附近的内容
+    public List<ConversationSummary> searchConversations(String keyword) {
+        String match = SearchTokenizer.query(keyword);
+        String like = "%" + escapeLikeText(keyword) + "%";
+        String hits = match == null ? "SELECT NULL AS conversation_id, 0 AS hits, 0 AS seq WHERE 0"
+                : "SELECT m.conversation_id, COUNT(*) AS hits, MAX(m.seq) AS seq FROM " + DatabaseHelper.searchTableName
+                + " JOIN " + DatabaseHelper.messageTableName + " m ON m.rowid=" + DatabaseHelper.searchTableName + ".docid"
+                + " WHERE " + DatabaseHelper.searchTableName + " MATCH ? GROUP BY m.conversation_id";
+        String sql = "SELECT c.id, c.time, c.title, c.preview, c.message_count, h.hits,"
+                + " (SELECT text FROM " + DatabaseHelper.messageTableName + " WHERE conversation_id=c.id AND seq=h.seq) AS hit_text,"
+                + " c.title LIKE ? ESCAPE '\\' AS title_hit"
+                + " FROM " + DatabaseHelper.tableName + " c LEFT JOIN (" + hits + ") h ON h.conversation_id=c.id"
+                + " WHERE h.conversation_id IS NOT NULL OR c.title LIKE ? ESCAPE '\\'"
+                + " ORDER BY title_hit DESC, h.hits DESC, c.time DESC, c.id DESC LIMIT " + SEARCH_LIMIT;
+        String[] args = match == null ? new String[]{like, like} : new String[]{like, match, like}; // 按参数在语句中出现的顺序
+        List<String> terms = SearchTokenizer.terms(keyword);
+        List<ConversationSummary> summaries = new ArrayList<>();
+        long startTime = System.currentTimeMillis();
+        try (Cursor cursor = db.rawQuery(sql, args)) {
+            while (cursor.moveToNext()) {
+                ConversationSummary summary = new ConversationSummary();
+                summary.id = cursor.getLong(0);
+                summary.time = LocalDateTime.parse(cursor.getString(1), DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+                summary.title = cursor.getString(2);
+                summary.preview = cursor.getString(3);
+                summary.messageCount = cursor.getInt(4);
+                if(!cursor.isNull(6))
+                    summary.snippet = SearchTokenizer.snippet(cursor.getString(6), terms, PREVIEW_CHARS);
+                summaries.add(summary);
             }
         }
-        db.delete(DatabaseHelper.tableName, null, null);
+        Log.d("ChatManager", String.format("search \"%s\": %d results, %d ms", keyword, summaries.size(), System.currentTimeMillis() - startTime));
+        return summaries;
+    }
+
+    // 删除指定的会话（异步）
+    public Future<?> removeConversation(long id) {
+        return executor.submit(() -> {
+            String[] idArgs = new String[]{String.valueOf(id)};
+            try (Cursor cursor = db.query(DatabaseHelper.tableName, new String[]{"messages"}, "id=? AND messages IS NOT NULL", idArgs, null, null, null)) {
+                if (cursor.moveToFirst()) // 尚未迁移的旧版本会话，图片没有引用计数，直接删除
+                    MessageList.fromJson(new JSONArray(cursor.getString(0))).deleteAllImageFiles();
+            } catch (Exception e) {
+                Log.e("ChatManager", "delete images of conversation " + id + " failed: " + e);
+            }
+            db.beginTransaction();
+            try {
+                db.delete(DatabaseHelper.messageTableName, "conversation_id=?", idArgs);
+                db.delete(DatabaseHelper.tableName, "id=?", idArgs);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            invalidateCount();
+            collectImages(); // 删除不再被引用的图片
+        });
+    }
+    public Future<?> removeConversation(Conversation conversation) { return removeConversation(conversation.id); }
+
+    // 删除所有会话（异步）
+    public Future<?> removeAllConversations() {
+        return executor.submit(() -> {
+            ImageStore.clear(); // 删除所有图片文件
+            db.beginTransaction();
+            try {
+                db.delete(DatabaseHelper.messageTableName, null, null);
+                db.delete(DatabaseHelper.tableName, null, null);
+                db.delete(DatabaseHelper.imageTableName, null, null);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            invalidateCount();
+        });
     }
 
-    // 删除所有空会话
-    public void removeEmptyConversations() {
-        db.delete(DatabaseHelper.tableName, "messages=?", new String[]{"[]"});
+    // 删除所有空会话（异步）
+    public Future<?> removeEmptyConversations() {
+        return executor.submit(() -> {
+            db.delete(DatabaseHelper.tableName, "(messages IS NULL OR messages=?) AND NOT EXISTS (SELECT 1 FROM "
+                    + DatabaseHelper.messageTableName + " WHERE conversation_id=" + DatabaseHelper.tableName + ".id)", new String[]{"[]"});
+            invalidateCount();
+        });
     }
 }
@@ -0,0 +1,220 @@
+package com.skythinker.gptassistant;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import cn.hutool.json.JSONUtil;
+
+import com.skythinker.gptassistant.ChatManager.ChatMessage;
+import com.skythinker.gptassistant.ChatManager.ChatMessage.ChatRole;
+
+// 将聊天记录序列化为请求所需的JSON片段，已序列化过的消息按对象缓存，每轮只需序列化新增的消息
+// UI线程发送请求，重试时在后台线程构建请求，因此公开方法均需同步
+public class ChatPromptBuilder {
+    // 单条消息序列化后的片段，发送时依次写入head、图片文件的base64编码（如有）、tail
+    public static class MessageFragment {
+        String text, functionName, toolCallId; // 序列化时的消息内容，用于检查消息是否被修改
+        Object imageRef;
+        boolean vision, legacy;
+        boolean groupStart, groupEnd; // 是否为一组连续函数调用的第一条/最后一条（合并为一条tool_calls消息）
+
+        byte[] head;
+        File imageFile; // 需要从文件中读取的图片，为null则无图片或图片已包含在head中
+        long imageLength;
+        byte[] tail;
+
+        boolean matches(ChatMessage chat, boolean vision, boolean legacy, boolean groupStart, boolean groupEnd) {
+            return this.vision == vision && this.legacy == legacy && text == chat.contentText
+                    && imageRef == chat.getImageRef() && functionName == chat.functionName && toolCallId == chat.toolCallId
+                    && this.groupStart == groupStart && this.groupEnd == groupEnd;
+        }
+
+        // 片段写入后的总字节数
+        long length() {
+            return head.length + tail.length + (imageFile != null ? base64Length(imageLength) : 0);
+        }
+    }
+
+    private final Map<ChatMessage, MessageFragment> cache = new IdentityHashMap<>(); // 以消息对象本身为键
+    private int hitCount = 0, missCount = 0;
+
+    // 序列化消息列表，vision为true时使用带图片的消息格式，legacy为true时函数调用及结果使用旧版function_call格式
+    public synchronized List<MessageFragment> build(List<ChatMessage> promptList, boolean vision, boolean legacy) {
+        hitCount = missCount = 0;
+        List<MessageFragment> fragmentList = new ArrayList<>(promptList.size());
+        for(int i = 0; i < promptList.size(); i++) {
+            ChatMessage chat = promptList.get(i);
+            boolean groupStart = i == 0 || !isToolCall(promptList.get(i - 1));
+            boolean groupEnd = i == promptList.size() - 1 || !isToolCall(promptList.get(i + 1));
+            MessageFragment fragment = cache.get(chat);
+            if(fragment == null || !fragment.matches(chat, vision, legacy, groupStart, groupEnd) || !checkImageFile(fragment)) {
+                if(isToolCall(chat) && !legacy)
+                    fragment = fromJson((groupStart ? "{\"role\":\"assistant\",\"content\":null,\"tool_calls\":[" : "")
+                            + toolCallJson(chat) + (groupEnd ? "]}" : ""));
+                else
+                    fragment = vision ? toVisionFragment(chat, legacy) : toFragment(chat, legacy);
+                fragment.text = chat.contentText;
+                fragment.imageRef = chat.getImageRef();
+                fragment.functionName = chat.functionName;
+                fragment.toolCallId = chat.toolCallId;
+                fragment.vision = vision;
+                fragment.legacy = legacy;
+                fragment.groupStart = groupStart;
+                fragment.groupEnd = groupEnd;
+                cache.put(chat, fragment);
+                missCount++;
+            } else {
+                hitCount++;
+            }
+            if(fragment.head.length > 0)
+                fragmentList.add(fragment);
+        }
+        if(cache.size() > promptList.size()) // 清理已不在列表中的消息
+            retainOnly(promptList);
+        Log.d("ChatPromptBuilder", String.format("build: %d cached, %d encoded", hitCount, missCount));
+        return fragmentList;
+    }
+
+    // 消息被删除或编辑时移除对应的缓存
+    public synchronized void invalidate(ChatMessage chat) {
+        cache.remove(chat);
+    }
+
+    public synchronized void clear() {
+        cache.clear();
+    }
+
+    private void retainOnly(List<ChatMessage> promptList) {
+        Map<ChatMessage, MessageFragment> retained = new IdentityHashMap<>();
+        for(ChatMessage chat : promptList) {
+            MessageFragment fragment = cache.get(chat);
+            if(fragment != null)
+                retained.put(chat, fragment);
+        }
+        cache.clear();
+        cache.putAll(retained);
+    }
+
+    // 缓存的图片文件被删除或修改时需要重新序列化
+    private static boolean checkImageFile(MessageFragment fragment) {
+        return fragment.imageFile == null || fragment.imageFile.length() == fragment.imageLength;
+    }
+
+    // base64编码后的长度
+    static long base64Length(long length) {
+        return (length + 2) / 3 * 4;
+    }
+
+    // 转换为JSON字符串字面量
+    private static String quote(String str) {
+        return str == null ? "null" : JSONUtil.quote(str);
+    }
+
+    private static String roleName(ChatRole role) {
+        switch (role) {
+            case SYSTEM: return "system";
+            case USER: return "user";
+            case ASSISTANT: return "assistant";
+            case FUNCTION: return "function";
+        }
+        return null;
+    }
+
+    // 是否为tool_calls格式的函数调用请求，连续的多个调用合并为一条消息发送
+    private static boolean isToolCall(ChatMessage message) {
+        return message.role == ChatRole.ASSISTANT && message.functionName != null && message.toolCallId != null;
+    }
+
+    // tool_calls中的一项
+    private static String toolCallJson(ChatMessage message) {
+        return "{\"id\":" + quote(message.toolCallId) + ",\"type\":\"function\",\"function\":{\"name\":" + quote(message.functionName)
+                + ",\"arguments\":" + quote(message.contentText) + "}}";
+    }
+
+    // 函数调用请求（旧版function_call格式）
+    private static String functionCallJson(ChatMessage message) {
+        return "{\"role\":\"assistant\",\"content\":null,\"function_call\":{\"name\":" + quote(message.functionName)
+                + ",\"arguments\":" + quote(message.contentText) + "}}";
+    }
+
+    private static MessageFragment fromJson(String json) {
+        MessageFragment fragment = new MessageFragment();
+        fragment.head = json.getBytes(StandardCharsets.UTF_8);
+        fragment.tail = new byte[0];
+        return fragment;
+    }
+
+    // 转换为普通消息格式，legacy为true时函数结果以旧版function角色发送
+    private static MessageFragment toFragment(ChatMessage message, boolean legacy) {
+        if (message.role == ChatRole.FUNCTION && message.toolCallId != null && !legacy) {
+            return fromJson("{\"role\":\"tool\",\"tool_call_id\":" + quote(message.toolCallId) + ",\"content\":" + quote(message.contentText) + "}");
+        } else if (message.role == ChatRole.ASSISTANT && message.functionName != null) {
+            return fromJson(functionCallJson(message));
+        } else if (message.role == ChatRole.FUNCTION) {
+            return fromJson("{\"role\":\"function\",\"name\":" + quote(message.functionName) + ",\"content\":" + quote(message.contentText) + "}");
+        } else if (message.role != null) {
+            return fromJson("{\"role\":\"" + roleName(message.role) + "\",\"content\":" + quote(message.contentText) + "}");
+        }
+        return fromJson("");
+    }
+
+    // 转换为带图片的消息格式（Vision模型），图片尽量从文件中流式读取而不是拼接到字符串中
+    private static MessageFragment toVisionFragment(ChatMessage message, boolean legacy) {
+        if (message.role == null)
+            return fromJson("");
+        if (message.role == ChatRole.ASSISTANT && message.functionName != null || message.role == ChatRole.FUNCTION && message.toolCallId != null)
+            return toFragment(message, legacy); // 函数调用及其结果不含图片
+
+        StringBuilder head = new StringBuilder();
+        head.append("{\"role\":\"").append(roleName(message.role)).append("\"");
+        if (message.role == ChatRole.FUNCTION)
+            head.append(",\"name\":").append(quote(message.functionName));
+        head.append(",\"content\":[");
+        if (message.contentText != null)
+            head.append("{\"type\":\"text\",\"text\":").append(quote(message.contentText)).append("}");
+        File imageFile = message.getImageFile(); // 图片文件只在保存会话时写入（见ChatManager），此处不写入
+        if (imageFile != null && imageFile.length() == 0)
+            imageFile = null;
+        String imageBase64 = imageFile == null ? message.getImageBase64() : null; // 尚未保存或为临时图片时使用内存中的base64
+        if (imageFile == null && imageBase64 == null) {
+            head.append("]}");
+            return fromJson(head.toString());
+        }
+
+        if (message.contentText != null)
+            head.append(",");
+        head.append("{\"type\":\"image_url\",\"image_url\":{\"url\":\"data:")
+                .append(imageBase64 != null ? VisionImageEncoder.mimeTypeOfBase64(imageBase64) : VisionImageEncoder.mimeTypeOf(readHeader(imageFile)))
+                .append(";base64,"); // 图片可能为JPEG或WebP
+        MessageFragment fragment = new MessageFragment();
+        if (imageBase64 == null) { // 图片已保存到文件，发送时再编码，不读入内存
+            fragment.imageFile = imageFile;
+            fragment.imageLength = imageFile.length();
+        } else {
+            head.append(imageBase64);
+        }
+        fragment.head = head.toString().getBytes(StandardCharsets.UTF_8);
+        fragment.tail = "\"}}]}".getBytes(StandardCharsets.UTF_8);
+        return fragment;
+    }
+
+    // 读取文件开头用于判断图片格式
+    private static byte[] readHeader(File file) {
+        byte[] header = new byte[16];
+        try (FileInputStream input = new FileInputStream(file)) {
+            int length = input.read(header);
+            return length == header.length ? header : Arrays.copyOf(header, Math.max(0, length));
+        } catch (IOException e) {
+            return new byte[0];
+        }
+    }
+}
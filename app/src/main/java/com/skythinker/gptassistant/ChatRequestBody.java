@@ -0,0 +1,110 @@
+package com.skythinker.gptassistant;
+
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+
+import cn.hutool.json.JSONArray;
+import cn.hutool.json.JSONUtil;
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+
+import com.skythinker.gptassistant.ChatPromptBuilder.MessageFragment;
+
+// 流式写出的对话请求体，消息片段直接写入网络，图片在发送时才从文件读取并编码，不在内存中拼接完整的JSON
+public class ChatRequestBody extends RequestBody {
+    private static final MediaType JSON_TYPE = MediaType.parse("application/json; charset=utf-8");
+    private static final byte[] COMMA = {','};
+
+    private final byte[] prefix, suffix;
+    private final List<MessageFragment> fragments;
+    private final long contentLength;
+
+    // legacyFunctions为true时以旧版functions参数传入函数；includeUsage为true时要求服务器在最后一个数据块中返回usage（部分中转服务不支持该参数）
+    public ChatRequestBody(String model, List<MessageFragment> fragments, JSONArray functions, boolean legacyFunctions, boolean includeUsage) {
+        this.fragments = fragments;
+        prefix = ("{\"model\":" + JSONUtil.quote(model) + ",\"stream\":true,"
+                + (includeUsage ? "\"stream_options\":{\"include_usage\":true}," : "")
+                + "\"messages\":[").getBytes(StandardCharsets.UTF_8);
+        if(functions != null && !functions.isEmpty() && legacyFunctions) { // 旧版格式，每次回复只能调用一个函数
+            suffix = ("],\"functions\":" + functions + ",\"function_call\":\"auto\"}").getBytes(StandardCharsets.UTF_8);
+        } else if(functions != null && !functions.isEmpty()) { // 如果有函数列表，则以tools格式传入，允许一次回复中调用多个函数
+            StringBuilder tools = new StringBuilder("],\"tools\":[");
+            for(int i = 0; i < functions.size(); i++) {
+                if(i > 0)
+                    tools.append(',');
+                tools.append("{\"type\":\"function\",\"function\":").append(functions.get(i).toString()).append('}');
+            }
+            tools.append("],\"tool_choice\":\"auto\"}");
+            suffix = tools.toString().getBytes(StandardCharsets.UTF_8);
+        } else {
+            suffix = "]}".getBytes(StandardCharsets.UTF_8);
+        }
+
+        long length = prefix.length + suffix.length + Math.max(0, fragments.size() - 1);
+        for(MessageFragment fragment : fragments)
+            length += fragment.length();
+        contentLength = length;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return JSON_TYPE;
+    }
+
+    @Override
+    public long contentLength() {
+        return contentLength;
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        sink.write(prefix);
+        byte[] buffer = null;
+        for(int i = 0; i < fragments.size(); i++) {
+            MessageFragment fragment = fragments.get(i);
+            if(i > 0)
+                sink.write(COMMA);
+            sink.write(fragment.head);
+            if(fragment.imageFile != null) {
+                if(buffer == null)
+                    buffer = new byte[8192];
+                writeImageBase64(fragment, sink, buffer);
+            }
+            sink.write(fragment.tail);
+        }
+        sink.write(suffix);
+    }
+
+    // 边读取图片文件边进行base64编码
+    private static void writeImageBase64(MessageFragment fragment, BufferedSink sink, byte[] buffer) throws IOException {
+        OutputStream sinkStream = new FilterOutputStream(sink.outputStream()) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException { // 编码器关闭时只写出末尾数据，不关闭sink
+                flush();
+            }
+        };
+        long remaining = fragment.imageLength;
+        try (InputStream input = new FileInputStream(fragment.imageFile);
+             OutputStream encoder = Base64.getEncoder().wrap(sinkStream)) {
+            int len;
+            while(remaining > 0 && (len = input.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+                encoder.write(buffer, 0, len);
+                remaining -= len;
+            }
+        }
+        if(remaining > 0) // 文件在发送前被截断，长度与contentLength不符
+            throw new IOException("Image file changed: " + fragment.imageFile.getName());
+    }
+}
@@ -0,0 +1,127 @@
+package com.skythinker.gptassistant;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.sse.EventSource;
+
+// 单次对话请求的句柄，记录请求状态及每次状态切换的时间，可单独取消
+public class ChatRequestHandle {
+    public enum State {
+        QUEUED, // 已提交，等待调度
+        CONNECTING, // 正在建立连接并发送请求
+        STREAMING, // 正在接收回复
+        FUNCTION_CALL, // 正在接收函数调用参数
+        DONE,
+        FAILED,
+        CANCELLED;
+
+        public boolean isFinished() {
+            return this == DONE || this == FAILED || this == CANCELLED;
+        }
+    }
+
+    private static final AtomicInteger nextId = new AtomicInteger(1);
+
+    private final int id = nextId.getAndIncrement();
+    private final long createTime = SystemClock.elapsedRealtime();
+    private State state = State.QUEUED;
+    private final EnumMap<State, Long> timestamps = new EnumMap<>(State.class);
+    private EventSource eventSource = null; // 当前尝试的请求，等待重试时为null
+    private EventSource hedgeSource = null; // 对冲请求（与当前请求竞速），没有时为null
+    private int attempts = 0; // 已发起的请求次数（含重试）
+    private Runnable onIdleCancel = null; // 等待重试期间被取消时的回调
+
+    public ChatRequestHandle() {
+        timestamps.put(State.QUEUED, createTime);
+    }
+
+    // 切换到新状态，已结束的请求不再切换，返回是否切换成功
+    synchronized boolean moveTo(State next) {
+        if(state.isFinished() || state == next)
+            return false;
+        long now = SystemClock.elapsedRealtime();
+        Log.d("ChatRequestHandle", String.format("#%d %s -> %s (+%d ms)", id, state, next, now - createTime));
+        state = next;
+        timestamps.put(next, now);
+        return true;
+    }
+
+    // 关联一次新的请求尝试
+    synchronized void attach(EventSource eventSource) {
+        this.eventSource = eventSource;
+        this.hedgeSource = null;
+        if(eventSource != null)
+            attempts++;
+    }
+
+    // 关联与当前请求竞速的对冲请求，null表示移除
+    synchronized void attachHedge(EventSource hedgeSource) {
+        this.hedgeSource = hedgeSource;
+        if(hedgeSource != null)
+            attempts++;
+    }
+
+    // 对冲请求胜出，成为当前请求
+    synchronized void promoteHedge() {
+        eventSource = hedgeSource;
+        hedgeSource = null;
+    }
+
+    synchronized void setOnIdleCancel(Runnable onIdleCancel) {
+        this.onIdleCancel = onIdleCancel;
+    }
+
+    // 取消该请求，不影响其他请求
+    public void cancel() {
+        EventSource source, hedge;
+        Runnable idleCallback;
+        synchronized (this) {
+            if(!moveTo(State.CANCELLED))
+                return;
+            source = eventSource;
+            hedge = hedgeSource;
+            idleCallback = onIdleCancel;
+        }
+        if(hedge != null)
+            hedge.cancel();
+        if(source != null)
+            source.cancel();
+        else if(idleCallback != null) // 没有进行中的请求，不会再收到失败回调
+            idleCallback.run();
+    }
+
+    public int getId() { return id; }
+
+    public synchronized State getState() { return state; }
+
+    public synchronized int getAttempts() { return attempts; }
+
+    public synchronized boolean isActive() { return !state.isFinished(); }
+
+    public long getCreateTime() { return createTime; }
+
+    // 进入某状态的时间（SystemClock.elapsedRealtime），未经历该状态返回-1
+    public synchronized long getTimestamp(State state) {
+        Long time = timestamps.get(state);
+        return time == null ? -1 : time;
+    }
+
+    // 两个状态之间的耗时，任一状态未经历则返回-1
+    public synchronized long getElapsed(State from, State to) {
+        long start = getTimestamp(from), end = getTimestamp(to);
+        return start < 0 || end < 0 ? -1 : end - start;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder builder = new StringBuilder("#" + id + " attempts=" + attempts);
+        for(Map.Entry<State, Long> entry : timestamps.entrySet()) // 重试时记录的是最后一次进入各状态的时间
+            builder.append(' ').append(entry.getKey()).append("+").append(entry.getValue() - createTime);
+        return builder.toString();
+    }
+}
@@ -0,0 +1,137 @@
+package com.skythinker.gptassistant;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+
+// 连接预热：在用户唤起助手时提前建立到API服务器的连接（DNS+TCP+TLS），提问时直接复用共享连接池中已握手的连接
+public class ConnectionWarmer {
+    private static final long MIN_WARM_INTERVAL = 30 * 1000; // 同一主机的最小预热间隔
+
+    private static String warmHost = null; // 最近预热的主机
+    private static long lastWarmTime = 0;
+    private static boolean warming = false;
+    private static long handshakeMillis = -1; // 预热时测得的握手耗时
+    private static WeakReference<Connection> warmConnection = null; // 预热建立的连接
+    private static boolean reported = false; // 是否已统计过本次预热的效果
+
+    // 检查请求使用的连接是否为预热的连接，添加到对话请求的网络拦截器中
+    public static final Interceptor REUSE_CHECKER = chain -> {
+        onConnectionUsed(chain.request().url(), chain.connection());
+        return chain.proceed(chain.request());
+    };
+
+    // 预热设置中的API服务器（可在服务中调用，会确保全局数据已初始化）
+    public static void prewarm(Context context) {
+        if(!GlobalDataHolder.isInitialized())
+            GlobalDataHolder.init(context.getApplicationContext());
+        prewarm(GlobalDataHolder.getGptApiHost());
+    }
+
+    // 向主机发送一个HEAD请求以建立连接，连接随后保留在共享连接池中
+    public static synchronized void prewarm(String host) {
+        HttpUrl url = host == null ? null : HttpUrl.parse(host);
+        if(url == null)
+            return;
+        HttpUrl rootUrl = url.resolve("/");
+        String hostKey = rootUrl.scheme() + "://" + rootUrl.host() + ":" + rootUrl.port();
+        long now = SystemClock.elapsedRealtime();
+        if(warming || (hostKey.equals(warmHost) && now - lastWarmTime < MIN_WARM_INTERVAL))
+            return;
+        warming = true;
+        warmHost = hostKey;
+        lastWarmTime = now;
+
+        final long[] connectStart = {-1};
+        EventListener eventListener = new EventListener() { // 测量DNS到TLS握手完成的耗时
+            @Override
+            public void dnsStart(Call call, String domainName) {
+                connectStart[0] = SystemClock.elapsedRealtime();
+            }
+
+            @Override
+            public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+                if(connectStart[0] < 0)
+                    connectStart[0] = SystemClock.elapsedRealtime();
+            }
+
+            @Override
+            public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol) {
+                synchronized (ConnectionWarmer.class) {
+                    handshakeMillis = SystemClock.elapsedRealtime() - connectStart[0];
+                }
+            }
+
+            @Override
+            public void connectionAcquired(Call call, Connection connection) {
+                synchronized (ConnectionWarmer.class) {
+                    if(connectStart[0] < 0) { // 连接池中已有可用连接，无需预热
+                        handshakeMillis = 0;
+                    }
+                    warmConnection = new WeakReference<>(connection);
+                    reported = false;
+                }
+            }
+        };
+
+        Request request = new Request.Builder().url(rootUrl).head().build();
+        SharedHttpClient.get().newBuilder()
+                .eventListener(eventListener)
+                .build()
+                .newCall(request)
+                .enqueue(new Callback() {
+                    @Override
+                    public void onFailure(Call call, IOException e) {
+                        Log.d("ConnectionWarmer", "prewarm failed: " + e);
+                        synchronized (ConnectionWarmer.class) {
+                            warming = false;
+                            lastWarmTime = 0;
+                        }
+                    }
+
+                    @Override
+                    public void onResponse(Call call, Response response) {
+                        response.close();
+                        synchronized (ConnectionWarmer.class) {
+                            warming = false;
+                            Log.d("ConnectionWarmer", String.format("prewarmed %s in %d ms", warmHost, handshakeMillis));
+                        }
+                    }
+                });
+    }
+
+    // 对话请求获得连接后调用，统计预热节省的握手时间
+    private static synchronized void onConnectionUsed(HttpUrl url, Connection connection) {
+        if(warmConnection == null || reported)
+            return;
+        String hostKey = url.scheme() + "://" + url.host() + ":" + url.port();
+        if(!hostKey.equals(warmHost))
+            return;
+        reported = true;
+        if(connection != null && connection == warmConnection.get()) {
+            Log.d("ConnectionWarmer", String.format("request reused prewarmed connection, saved about %d ms of handshake", handshakeMillis));
+        } else {
+            Log.d("ConnectionWarmer", "prewarmed connection was not reused");
+        }
+    }
+
+    // 最近一次预热测得的握手耗时，-1表示尚未预热
+    public static synchronized long getHandshakeMillis() {
+        return handshakeMillis;
+    }
+}
@@ -0,0 +1,259 @@
+package com.skythinker.gptassistant;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.skythinker.gptassistant.ChatManager.ChatMessage;
+import com.skythinker.gptassistant.ChatManager.ChatMessage.ChatRole;
+
+// 按模型的上下文长度裁剪发送的消息列表：先省略旧的函数结果，再删除最早的对话轮次，最后截断最后一轮中过长的函数结果
+// 裁剪不修改原消息，替换用的副本按原消息缓存，使ChatPromptBuilder能继续命中缓存
+public class ContextWindowManager {
+    private static final int MESSAGE_OVERHEAD = 3; // 每条消息的格式开销（role等）
+    private static final int NAME_OVERHEAD = 1; // 带name字段的额外开销
+    private static final int REPLY_PRIMING = 3; // 回复开头的固定开销
+    private static final int IMAGE_TOKENS = 765; // 一张图片按1024x1024高清模式估算
+    private static final int MIN_FUNCTION_TOKENS = 64; // 截断函数结果时至少保留的token数
+    private static final String ELIDED_TEXT = "(Earlier function result omitted to fit the context window.)";
+    private static final String TRUNCATED_TEXT = "\n...(truncated to fit the context window)";
+
+    // 单条消息的token数缓存，内容或分词器变化时重新计算
+    private static class CountEntry {
+        String text, functionName;
+        Object imageRef;
+        BpeTokenizer tokenizer;
+        int tokens;
+    }
+
+    // 原消息的替换副本，limit为截断后保留的token数，-1表示整条省略
+    private static class Replacement {
+        String sourceText; // 生成副本时原消息的内容
+        int limit;
+        ChatMessage copy;
+    }
+
+    private final Context context;
+    private final Map<ChatMessage, CountEntry> countCache = new IdentityHashMap<>();
+    private final Map<ChatMessage, Replacement> replacements = new IdentityHashMap<>();
+
+    public ContextWindowManager(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    // 模型的上下文长度（token），未知模型按32k处理
+    public static int getContextWindow(String model) {
+        String name = model == null ? "" : model.toLowerCase();
+        if(name.startsWith("gpt-4.1"))
+            return 1047576;
+        if(name.startsWith("gpt-5"))
+            return 400000;
+        if(name.matches("^o\\d.*"))
+            return name.startsWith("o1-mini") || name.startsWith("o1-preview") ? 128000 : 200000;
+        if(name.startsWith("gpt-4o") || name.startsWith("chatgpt-4o") || name.startsWith("gpt-4-turbo") || name.startsWith("gpt-4.5")
+                || name.matches("^gpt-4-\\d{4}-preview.*"))
+            return 128000;
+        if(name.startsWith("gpt-4-32k"))
+            return 32768;
+        if(name.startsWith("gpt-4"))
+            return 8192;
+        if(name.startsWith("gpt-3.5-turbo-instruct"))
+            return 4096;
+        if(name.startsWith("gpt-3.5"))
+            return 16385;
+        if(name.startsWith("claude"))
+            return 200000;
+        return 32768;
+    }
+
+    // 提问可用的token数：上下文长度减去为回复预留的部分
+    public static int getPromptBudget(String model) {
+        int window = getContextWindow(model);
+        return window - Math.min(4096, window / 4);
+    }
+
+    // 计算文本的token数，分词器未加载时按字符估算
+    public int countText(String text, String model) {
+        return count(Tokenizers.get(context, model), text);
+    }
+
+    // 计算整个消息列表的token数，extraTokens为函数定义等额外内容
+    public synchronized int countPrompt(List<ChatMessage> promptList, String model, boolean vision, int extraTokens) {
+        BpeTokenizer tokenizer = Tokenizers.get(context, model);
+        int total = REPLY_PRIMING + extraTokens;
+        for(ChatMessage chat : promptList)
+            total += countMessage(tokenizer, chat, vision);
+        if(countCache.size() > promptList.size() * 2)
+            countCache.keySet().retainAll(identitySet(promptList));
+        return total;
+    }
+
+    // 裁剪消息列表使其不超过模型的token预算，未超出时直接返回原列表
+    public synchronized List<ChatMessage> fit(List<ChatMessage> promptList, String model, boolean vision, int extraTokens) {
+        BpeTokenizer tokenizer = Tokenizers.get(context, model);
+        int budget = getPromptBudget(model);
+        List<ChatMessage> result = new ArrayList<>(promptList);
+        List<ChatMessage> sources = new ArrayList<>(promptList); // result中各消息对应的原消息
+        List<Integer> counts = new ArrayList<>(promptList.size());
+        int total = REPLY_PRIMING + extraTokens;
+        for(ChatMessage chat : result) {
+            int tokens = countMessage(tokenizer, chat, vision);
+            counts.add(tokens);
+            total += tokens;
+        }
+        if(countCache.size() > promptList.size() * 2)
+            countCache.keySet().retainAll(identitySet(promptList));
+        if(total <= budget) {
+            replacements.clear();
+            return promptList;
+        }
+
+        int originalTotal = total, elided = 0, dropped = 0;
+        int lastUser = result.size();
+        for(int i = result.size() - 1; i >= 0; i--) {
+            if(result.get(i).role == ChatRole.USER) {
+                lastUser = i;
+                break;
+            }
+        }
+
+        // 1. 省略最后一轮之前的函数结果
+        for(int i = 0; i < lastUser && total > budget; i++) {
+            ChatMessage chat = result.get(i);
+            if(chat.role != ChatRole.FUNCTION)
+                continue;
+            ChatMessage copy = replace(tokenizer, chat, -1);
+            int tokens = countMessage(tokenizer, copy, vision);
+            if(tokens < counts.get(i)) {
+                result.set(i, copy);
+                total -= counts.get(i) - tokens;
+                counts.set(i, tokens);
+                elided++;
+            }
+        }
+
+        // 2. 删除最早的对话轮次，保留开头的系统消息和最后一轮；第一轮通常带有模板内容，放到最后删除
+        int first = 0;
+        while(first < lastUser && result.get(first).role == ChatRole.SYSTEM)
+            first++;
+        int secondTurn = nextTurn(result, first);
+        for(int start : new int[] {secondTurn, first}) {
+            while(total > budget && start < lastUser) {
+                int end = Math.min(nextTurn(result, start), lastUser);
+                for(int i = start; i < end; i++)
+                    total -= counts.get(i);
+                result.subList(start, end).clear();
+                sources.subList(start, end).clear();
+                counts.subList(start, end).clear();
+                dropped += end - start;
+                lastUser -= end - start;
+            }
+        }
+
+        // 3. 截断最后一轮中的函数结果，从最长的开始
+        while(total > budget) {
+            int longest = -1;
+            for(int i = lastUser; i < result.size(); i++) {
+                if(result.get(i).role == ChatRole.FUNCTION && counts.get(i) > MIN_FUNCTION_TOKENS + MESSAGE_OVERHEAD + NAME_OVERHEAD
+                        && (longest < 0 || counts.get(i) > counts.get(longest)))
+                    longest = i;
+            }
+            if(longest < 0)
+                break;
+            ChatMessage source = sources.get(longest);
+            int limit = Math.max(MIN_FUNCTION_TOKENS, counts.get(longest) - (total - budget) - 32); // 留出消息格式和截断提示的余量
+            ChatMessage copy = replace(tokenizer, source, limit);
+            int tokens = countMessage(tokenizer, copy, vision);
+            if(tokens >= counts.get(longest))
+                break;
+            result.set(longest, copy);
+            total -= counts.get(longest) - tokens;
+            counts.set(longest, tokens);
+            elided++;
+        }
+
+        replacements.keySet().retainAll(identitySet(promptList));
+        Log.d("ContextWindowManager", String.format("fit %s: %d -> %d tokens (budget %d), %d elided, %d dropped%s",
+                model, originalTotal, total, budget, elided, dropped, tokenizer == null ? ", estimated" : ""));
+        return result;
+    }
+
+    // 获取原消息的替换副本，内容未变时复用同一副本对象
+    private ChatMessage replace(BpeTokenizer tokenizer, ChatMessage source, int limit) {
+        Replacement replacement = replacements.get(source);
+        if(replacement != null && replacement.limit == limit && replacement.sourceText == source.contentText)
+            return replacement.copy;
+        String text;
+        if(limit < 0) {
+            text = ELIDED_TEXT;
+        } else if(source.contentText == null) {
+            text = null;
+        } else if(tokenizer != null) {
+            text = tokenizer.truncate(source.contentText, limit) + TRUNCATED_TEXT;
+        } else { // 按估算比例截断
+            int tokens = Math.max(1, estimate(source.contentText));
+            text = source.contentText.substring(0, (int) Math.min(source.contentText.length(), (long) source.contentText.length() * limit / tokens)) + TRUNCATED_TEXT;
+        }
+        replacement = new Replacement();
+        replacement.sourceText = source.contentText;
+        replacement.limit = limit;
+        replacement.copy = new ChatMessage(source.role).setText(text).setFunction(source.functionName).setToolCallId(source.toolCallId);
+        replacements.put(source, replacement);
+        return replacement.copy;
+    }
+
+    // 下一个用户消息的位置（即下一轮的开头）
+    private static int nextTurn(List<ChatMessage> list, int start) {
+        int i = start + 1;
+        while(i < list.size() && list.get(i).role != ChatRole.USER)
+            i++;
+        return i;
+    }
+
+    private int countMessage(BpeTokenizer tokenizer, ChatMessage chat, boolean vision) {
+        CountEntry entry = countCache.get(chat);
+        if(entry == null || entry.tokenizer != tokenizer || entry.text != chat.contentText
+                || entry.imageRef != chat.getImageRef() || entry.functionName != chat.functionName) {
+            entry = new CountEntry();
+            entry.text = chat.contentText;
+            entry.imageRef = chat.getImageRef();
+            entry.functionName = chat.functionName;
+            entry.tokenizer = tokenizer;
+            entry.tokens = MESSAGE_OVERHEAD + count(tokenizer, chat.contentText);
+            if(chat.functionName != null)
+                entry.tokens += NAME_OVERHEAD + count(tokenizer, chat.functionName);
+            countCache.put(chat, entry);
+        }
+        return entry.tokens + (vision && chat.getImageRef() != null ? IMAGE_TOKENS : 0);
+    }
+
+    private static int count(BpeTokenizer tokenizer, String text) {
+        if(text == null)
+            return 0;
+        return tokenizer != null ? tokenizer.count(text) : estimate(text);
+    }
+
+    // 分词器未加载时的估算：英文约4个字符一个token，其他字符约一个字符一个token
+    static int estimate(String text) {
+        int ascii = 0, other = 0;
+        for(int i = 0; i < text.length(); i++) {
+            if(text.charAt(i) < 0x80)
+                ascii++;
+            else if(!Character.isLowSurrogate(text.charAt(i)))
+                other++;
+        }
+        return (ascii + 3) / 4 + other;
+    }
+
+    private static Set<ChatMessage> identitySet(List<ChatMessage> list) {
+        Set<ChatMessage> set = Collections.newSetFromMap(new IdentityHashMap<>());
+        set.addAll(list);
+        return set;
+    }
+}
@@ -0,0 +1,180 @@
+package com.skythinker.gptassistant;
+
+import android.content.Context;
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.skythinker.gptassistant.ChatManager.ChatMessage;
+import com.skythinker.gptassistant.ChatManager.ChatMessage.ChatRole;
+import com.skythinker.gptassistant.ChatManager.Conversation;
+
+// 长对话压缩：历史消息超过阈值后，在后台将较早的轮次总结为一条系统消息，之后的请求只发送摘要和最近的轮次
+// 原始消息仍保留在会话中用于显示和保存，摘要随会话一起存入数据库
+public class ConversationCompactor {
+    private static final int COMPACT_TOKENS = 4000; // 历史消息超过该token数（或提问预算的一半）时开始压缩
+    private static final int KEEP_TURNS = 2; // 保留不压缩的最近轮次
+    private static final int MESSAGE_PREVIEW_CHARS = 4000; // 过长的消息只取开头部分参与总结
+    private static final int FUNCTION_PREVIEW_CHARS = 1000; // 函数结果只取开头部分参与总结
+
+    private static final String SUMMARY_PROMPT = "You maintain the memory of a long conversation between a user and an AI assistant. "
+            + "Merge the previous summary (if any) and the new messages into one concise summary written in the language of the conversation. "
+            + "Keep the user's goals, instructions about how to answer, decisions, facts, names, numbers and unresolved questions; drop greetings and repetition. "
+            + "Reply with the summary only.";
+    private static final String MEMORY_PREFIX = "Summary of the earlier part of this conversation:\n";
+
+    private final Context context;
+    private final Handler handler; // 压缩结果在该Handler线程中写回会话
+    private Conversation compacting = null; // 正在压缩的会话
+    private ChatApiClient summaryClient = null;
+    private int generation = 0; // 每次压缩递增，用于忽略已取消的压缩的回调
+
+    // 摘要消息按会话缓存，内容不变时复用同一对象以命中请求片段缓存
+    private Conversation memoryOwner = null;
+    private ChatMessage memoryMessage = null;
+
+    public ConversationCompactor(Context context, Handler handler) {
+        this.context = context;
+        this.handler = handler;
+    }
+
+    // 实际发送的消息列表：开头的系统消息 + 摘要 + 摘要之后的消息，没有摘要时直接返回原列表
+    public List<ChatMessage> buildPromptList(Conversation conversation) {
+        List<ChatMessage> messages = conversation.messages;
+        int lead = countLeadingSystem(messages);
+        if(conversation.summary == null || conversation.summaryCount <= lead || conversation.summaryCount > messages.size())
+            return messages;
+        if(memoryOwner != conversation || memoryMessage == null || !memoryMessage.contentText.equals(MEMORY_PREFIX + conversation.summary)) {
+            memoryOwner = conversation;
+            memoryMessage = new ChatMessage(ChatRole.SYSTEM).setText(MEMORY_PREFIX + conversation.summary);
+        }
+        List<ChatMessage> promptList = new ArrayList<>(messages.size() - conversation.summaryCount + lead + 1);
+        promptList.addAll(messages.subList(0, lead));
+        promptList.add(memoryMessage);
+        promptList.addAll(messages.subList(conversation.summaryCount, messages.size()));
+        return promptList;
+    }
+
+    // 回复完成后调用，发送内容超过阈值时在后台总结较早的轮次
+    public void compactIfNeeded(Conversation conversation, ChatApiClient chatClient, String model) {
+        if(compacting != null)
+            return;
+        int threshold = Math.min(COMPACT_TOKENS, chatClient.getPromptBudget() / 2);
+        if(chatClient.countPromptTokens(buildPromptList(conversation), null) <= threshold)
+            return;
+
+        List<ChatMessage> messages = conversation.messages;
+        int start = Math.max(countLeadingSystem(messages), conversation.summaryCount);
+        int end = messages.size(); // 压缩[start, end)，保留最近KEEP_TURNS轮
+        for(int turns = 0; end > start && turns < KEEP_TURNS; ) {
+            end--;
+            if(messages.get(end).role == ChatRole.USER)
+                turns++;
+        }
+        if(end <= start)
+            return;
+
+        String request = buildSummaryRequest(conversation.summary, messages.subList(start, end));
+        ChatMessage boundary = messages.get(end - 1);
+        int previousCount = conversation.summaryCount;
+        int newCount = end;
+        compacting = conversation;
+        int current = ++generation;
+        StringBuilder summary = new StringBuilder();
+        Log.d("ConversationCompactor", String.format("summarizing messages %d-%d with %s", start, end, model));
+
+        summaryClient = new ChatApiClient(context, GlobalDataHolder.getGptApiHost(), GlobalDataHolder.getGptApiKey(), model,
+                new ChatApiClient.OnReceiveListener() {
+                    @Override
+                    public void onMsgReceive(String message) {
+                        summary.append(message);
+                    }
+
+                    @Override
+                    public void onError(String message) {
+                        Log.e("ConversationCompactor", "summarize failed: " + message);
+                        handler.post(() -> {
+                            if(current == generation)
+                                release();
+                        });
+                    }
+
+                    @Override
+                    public void onFunctionCall(List<ChatApiClient.FunctionCall> calls) { }
+
+                    @Override
+                    public void onFinished(boolean completed) {
+                        handler.post(() -> {
+                            if(current != generation)
+                                return;
+                            release();
+                            String text = summary.toString().trim();
+                            // 总结期间消息被删除或摘要已变化时放弃本次结果
+                            if(!completed || text.isEmpty() || conversation.summaryCount != previousCount
+                                    || conversation.messages.size() < newCount || conversation.messages.get(newCount - 1) != boundary)
+                                return;
+                            conversation.summary = text;
+                            conversation.summaryCount = newCount;
+                            Log.d("ConversationCompactor", String.format("compacted %d messages into %d chars", newCount, text.length()));
+                        });
+                    }
+                });
+        summaryClient.setHedging(GlobalDataHolder.getGptHedgeRequests());
+        summaryClient.setStreamUsage(GlobalDataHolder.getGptStreamUsage());
+        List<ChatMessage> promptList = new ArrayList<>();
+        promptList.add(new ChatMessage(ChatRole.SYSTEM).setText(SUMMARY_PROMPT));
+        promptList.add(new ChatMessage(ChatRole.USER).setText(request));
+        summaryClient.sendPromptList(promptList);
+    }
+
+    // 停止正在进行的压缩（如新建会话时）
+    public void cancel() {
+        if(summaryClient != null)
+            summaryClient.stop();
+        generation++;
+        release();
+    }
+
+    private void release() {
+        summaryClient = null;
+        compacting = null;
+    }
+
+    private static int countLeadingSystem(List<ChatMessage> messages) {
+        int count = 0;
+        while(count < messages.size() && messages.get(count).role == ChatRole.SYSTEM)
+            count++;
+        return count;
+    }
+
+    // 将之前的摘要和待压缩的消息整理为纯文本
+    private static String buildSummaryRequest(String previousSummary, List<ChatMessage> messages) {
+        StringBuilder request = new StringBuilder();
+        if(previousSummary != null)
+            request.append("Previous summary:\n").append(previousSummary).append("\n\n");
+        request.append("New messages:\n");
+        for(ChatMessage message : messages) {
+            String text = message.contentText == null ? "" : message.contentText;
+            int maxChars = message.role == ChatRole.FUNCTION ? FUNCTION_PREVIEW_CHARS : MESSAGE_PREVIEW_CHARS;
+            if(text.length() > maxChars)
+                text = text.substring(0, maxChars) + "...";
+            if(message.role == ChatRole.USER) {
+                request.append("User: ").append(text);
+                if(message.getImageRef() != null)
+                    request.append(" [image]");
+            } else if(message.role == ChatRole.ASSISTANT && message.functionName != null) {
+                request.append("Assistant called ").append(message.functionName).append(": ").append(text);
+            } else if(message.role == ChatRole.ASSISTANT) {
+                request.append("Assistant: ").append(text);
+            } else if(message.role == ChatRole.FUNCTION) {
+                request.append("Result of ").append(message.functionName).append(": ").append(text);
+            } else {
+                request.append("System: ").append(text);
+            }
+            request.append("\n\n");
+        }
+        return request.toString();
+    }
+}
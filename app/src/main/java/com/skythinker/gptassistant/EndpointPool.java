@@ -0,0 +1,246 @@
+package com.skythinker.gptassistant;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Request;
+import okhttp3.Response;
+
+// 对话请求的API服务器池：设置中的主地址/密钥加上备用列表，每次请求选取一个，被限流或密钥无效的暂时移出并通过健康检查恢复
+public class EndpointPool {
+    private static final long THROTTLE_EJECT_TIME = 30 * 1000; // 429后首次暂停的时长，连续限流时加倍
+    private static final long MAX_EJECT_TIME = 10 * 60 * 1000;
+    private static final long UNAUTHORIZED_EJECT_TIME = 5 * 60 * 1000; // 401后暂停的时长
+    private static final long HEALTH_CHECK_GRACE = 15 * 1000; // 健康检查无结果（如网络错误）时额外暂停的时长
+    private static final long RECENT_THROTTLE_TIME = 60 * 1000; // 恢复后此时间内尽量避开，有其他服务器可用时不参与轮询
+    private static final long DEFAULT_HEDGE_DELAY = 3000; // 首字延迟样本不足时的对冲等待时间
+    private static final long MIN_HEDGE_DELAY = 800;
+    private static final int MIN_HEDGE_SAMPLES = 5; // 计算分位数所需的最少样本数
+
+    private static EndpointPool instance = null;
+
+    private final List<ApiEndpoint> endpoints = new ArrayList<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "EndpointPool-health");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public static synchronized EndpointPool getInstance() {
+        if(instance == null)
+            instance = new EndpointPool();
+        return instance;
+    }
+
+    // 根据设置更新服务器列表，保留未变化项的统计数据
+    public synchronized void update(String primaryHost, String primaryKey, List<String> extraLines) {
+        List<ApiEndpoint> newList = new ArrayList<>();
+        if(!primaryHost.isEmpty() && !primaryKey.isEmpty())
+            newList.add(new ApiEndpoint(primaryHost, primaryKey, 1));
+        for(String line : extraLines) {
+            ApiEndpoint endpoint = ApiEndpoint.parse(line);
+            if(endpoint != null)
+                newList.add(endpoint);
+        }
+        for(int i = 0; i < newList.size(); i++) {
+            for(ApiEndpoint old : endpoints) {
+                if(old.sameAs(newList.get(i))) {
+                    if(old.weight == newList.get(i).weight)
+                        newList.set(i, old);
+                    break;
+                }
+            }
+        }
+        endpoints.clear();
+        endpoints.addAll(newList);
+    }
+
+    public synchronized boolean isEmpty() {
+        return endpoints.isEmpty();
+    }
+
+    public synchronized int size() {
+        return endpoints.size();
+    }
+
+    // 是否有除exclude以外可用的服务器
+    public synchronized boolean hasAlternative(ApiEndpoint exclude) {
+        long now = SystemClock.elapsedRealtime();
+        for(ApiEndpoint endpoint : endpoints) {
+            if(endpoint != exclude && !endpoint.isEjected(now))
+                return true;
+        }
+        return false;
+    }
+
+    // 选取一个服务器：在可用的服务器中按平滑加权轮询选取，最近被限流的仅在没有其他服务器时参与，exclude为需要避开的服务器（可为null）
+    public ApiEndpoint acquire(ApiEndpoint exclude) {
+        return acquire(exclude, SystemClock.elapsedRealtime());
+    }
+
+    synchronized ApiEndpoint acquire(ApiEndpoint exclude, long now) {
+        List<ApiEndpoint> candidates = new ArrayList<>();
+        for(ApiEndpoint endpoint : endpoints) {
+            if(!endpoint.isEjected(now) && endpoint != exclude)
+                candidates.add(endpoint);
+        }
+        if(candidates.isEmpty()) { // 全部不可用时选择最早恢复的
+            ApiEndpoint earliest = null;
+            for(ApiEndpoint endpoint : endpoints) {
+                if(endpoint != exclude && (earliest == null || endpoint.ejectedUntil < earliest.ejectedUntil))
+                    earliest = endpoint;
+            }
+            return earliest != null ? earliest : (endpoints.isEmpty() ? null : endpoints.get(0));
+        }
+
+        List<ApiEndpoint> settled = new ArrayList<>();
+        for(ApiEndpoint endpoint : candidates) {
+            if(endpoint.lastThrottleTime == 0 || now - endpoint.lastThrottleTime >= RECENT_THROTTLE_TIME)
+                settled.add(endpoint);
+        }
+        if(!settled.isEmpty())
+            candidates = settled;
+        ApiEndpoint selected = null;
+        int totalWeight = 0;
+        for(ApiEndpoint endpoint : candidates) {
+            endpoint.currentWeight += endpoint.weight;
+            totalWeight += endpoint.weight;
+            if(selected == null || endpoint.currentWeight > selected.currentWeight)
+                selected = endpoint;
+        }
+        selected.currentWeight -= totalWeight;
+        return selected;
+    }
+
+    // 请求成功，latency为首个数据块的延迟（毫秒）
+    public synchronized void reportSuccess(ApiEndpoint endpoint, long latency) {
+        endpoint.successCount++;
+        endpoint.ejectCount = 0;
+        if(latency >= 0) {
+            endpoint.latencySum += latency;
+            endpoint.latencyCount++;
+        }
+    }
+
+    // 记录一次首字延迟（毫秒），竞速失败被取消的请求记录其已等待的时间
+    public synchronized void recordFirstToken(ApiEndpoint endpoint, long latency) {
+        endpoint.ttftSamples[endpoint.ttftSampleCount % endpoint.ttftSamples.length] = latency;
+        endpoint.ttftSampleCount++;
+    }
+
+    // 对冲等待时间：该服务器首字延迟的90分位数，样本不足时使用所有服务器的样本
+    public synchronized long getHedgeDelay(ApiEndpoint endpoint) {
+        long[] samples = copySamples(endpoint);
+        if(samples.length < MIN_HEDGE_SAMPLES) {
+            List<Long> all = new ArrayList<>();
+            for(ApiEndpoint other : endpoints) {
+                for(long sample : copySamples(other))
+                    all.add(sample);
+            }
+            if(all.size() < MIN_HEDGE_SAMPLES)
+                return DEFAULT_HEDGE_DELAY;
+            samples = new long[all.size()];
+            for(int i = 0; i < samples.length; i++)
+                samples[i] = all.get(i);
+        }
+        Arrays.sort(samples);
+        int index = (int) Math.ceil(samples.length * 0.9) - 1;
+        return Math.max(MIN_HEDGE_DELAY, samples[index]);
+    }
+
+    private static long[] copySamples(ApiEndpoint endpoint) {
+        return Arrays.copyOf(endpoint.ttftSamples, Math.min(endpoint.ttftSampleCount, endpoint.ttftSamples.length));
+    }
+
+    // 请求失败，code为HTTP状态码（无响应时为0），429和401会将服务器暂时移出
+    public synchronized void reportFailure(ApiEndpoint endpoint, int code) {
+        endpoint.failureCount++;
+        if(code != 429 && code != 401)
+            return;
+        endpoint.throttleCount++;
+        eject(endpoint, code);
+    }
+
+    // 将服务器暂时移出，到期前进行健康检查
+    private synchronized void eject(ApiEndpoint endpoint, int code) {
+        long now = SystemClock.elapsedRealtime();
+        endpoint.lastThrottleTime = now;
+        if(endpoint.isEjected(now) && !endpoint.healthChecking) // 已暂停并等待健康检查（如并发请求同时被限流）
+            return;
+        endpoint.healthChecking = false;
+        endpoint.unauthorized = code == 401;
+        long ejectTime = code == 401 ? UNAUTHORIZED_EJECT_TIME : Math.min(MAX_EJECT_TIME, THROTTLE_EJECT_TIME << Math.min(endpoint.ejectCount, 8));
+        endpoint.ejectCount++;
+        endpoint.ejectedUntil = now + ejectTime + HEALTH_CHECK_GRACE; // 正常情况下由健康检查提前恢复
+        Log.d("EndpointPool", String.format("eject %s %s for %d ms (HTTP %d)", endpoint.host, endpoint.getMaskedKey(), ejectTime, code));
+        scheduleHealthCheck(endpoint, ejectTime);
+    }
+
+    // 暂停到期后请求模型列表检查服务器是否恢复
+    private void scheduleHealthCheck(ApiEndpoint endpoint, long delay) {
+        scheduler.schedule(() -> {
+            synchronized (this) {
+                if(!endpoints.contains(endpoint)) // 已从设置中删除
+                    return;
+                endpoint.healthChecking = true;
+            }
+            Request request = new Request.Builder()
+                    .url(endpoint.host + "v1/models")
+                    .header("Authorization", "Bearer " + endpoint.key)
+                    .build();
+            SharedHttpClient.get().newCall(request).enqueue(new Callback() {
+                @Override
+                public void onFailure(Call call, IOException e) { // 网络错误时不改变服务器状态，暂停到期后自动恢复
+                    Log.d("EndpointPool", "health check failed: " + e);
+                    synchronized (EndpointPool.this) {
+                        endpoint.healthChecking = false;
+                    }
+                }
+
+                @Override
+                public void onResponse(Call call, Response response) {
+                    int code = response.code();
+                    response.close();
+                    synchronized (EndpointPool.this) {
+                        if(code == 429 || code == 401) { // 仍不可用，继续暂停（健康检查不计入请求统计）
+                            eject(endpoint, code);
+                        } else {
+                            Log.d("EndpointPool", String.format("restore %s %s (HTTP %d)", endpoint.host, endpoint.getMaskedKey(), code));
+                            endpoint.healthChecking = false;
+                            endpoint.ejectedUntil = 0;
+                            endpoint.unauthorized = false;
+                        }
+                    }
+                }
+            });
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    // 各服务器的状态快照，用于在设置中显示
+    public synchronized List<ApiEndpoint> snapshot() {
+        List<ApiEndpoint> list = new ArrayList<>();
+        for(ApiEndpoint endpoint : endpoints) {
+            ApiEndpoint copy = new ApiEndpoint(endpoint.host, endpoint.key, endpoint.weight);
+            copy.lastThrottleTime = endpoint.lastThrottleTime;
+            copy.ejectedUntil = endpoint.ejectedUntil;
+            copy.unauthorized = endpoint.unauthorized;
+            copy.successCount = endpoint.successCount;
+            copy.failureCount = endpoint.failureCount;
+            copy.throttleCount = endpoint.throttleCount;
+            copy.latencySum = endpoint.latencySum;
+            copy.latencyCount = endpoint.latencyCount;
+            list.add(copy);
+        }
+        return list;
+    }
+}
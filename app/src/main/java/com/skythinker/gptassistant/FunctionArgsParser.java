@@ -0,0 +1,107 @@
+package com.skythinker.gptassistant;
+
+// 函数调用参数的增量解析器：随流式数据逐块输入参数JSON，顶层的字符串字段一完整就立即回调，无需等待整个JSON接收完毕
+// 只识别顶层对象中值为字符串的字段，嵌套的对象和数组会被跳过
+public class FunctionArgsParser {
+    public interface OnFieldListener {
+        void onField(String key, String value);
+    }
+
+    private final OnFieldListener listener;
+    private int depth = 0; // 当前所在的对象/数组层数
+    private boolean inString = false;
+    private boolean escape = false;
+    private int unicodeRemaining = 0; // \\uXXXX转义中剩余的十六进制位数
+    private int unicodeValue = 0;
+    private boolean expectKey = false; // 顶层对象中下一个字符串是否为字段名
+    private String key = null; // 当前字段名
+    private final StringBuilder text = new StringBuilder(); // 正在接收的顶层字符串
+
+    public FunctionArgsParser(OnFieldListener listener) {
+        this.listener = listener;
+    }
+
+    // 输入一段参数数据
+    public void feed(String chunk) {
+        for(int i = 0; i < chunk.length(); i++) {
+            char c = chunk.charAt(i);
+            if(inString) {
+                if(unicodeRemaining > 0) {
+                    unicodeValue = unicodeValue * 16 + Character.digit(c, 16);
+                    if(--unicodeRemaining == 0)
+                        appendText((char) unicodeValue);
+                } else if(escape) {
+                    escape = false;
+                    switch(c) {
+                        case 'n': appendText('\n'); break;
+                        case 't': appendText('\t'); break;
+                        case 'r': appendText('\r'); break;
+                        case 'b': appendText('\b'); break;
+                        case 'f': appendText('\f'); break;
+                        case 'u': unicodeRemaining = 4; unicodeValue = 0; break;
+                        default: appendText(c); break; // \" \\ \/
+                    }
+                } else if(c == '\\') {
+                    escape = true;
+                } else if(c == '"') {
+                    inString = false;
+                    onStringEnd();
+                } else {
+                    appendText(c);
+                }
+                continue;
+            }
+            switch(c) {
+                case '{':
+                case '[':
+                    depth++;
+                    if(depth == 1)
+                        expectKey = c == '{';
+                    break;
+                case '}':
+                case ']':
+                    depth--;
+                    break;
+                case '"':
+                    inString = true;
+                    text.setLength(0);
+                    break;
+                case ':':
+                    if(depth == 1)
+                        expectKey = false;
+                    break;
+                case ',':
+                    if(depth == 1) {
+                        expectKey = true;
+                        key = null;
+                    }
+                    break;
+            }
+        }
+    }
+
+    // 清空状态以解析新的参数
+    public void reset() {
+        depth = 0;
+        inString = escape = expectKey = false;
+        unicodeRemaining = 0;
+        key = null;
+        text.setLength(0);
+    }
+
+    private void appendText(char c) {
+        if(depth == 1) // 嵌套内容无需保存
+            text.append(c);
+    }
+
+    private void onStringEnd() {
+        if(depth != 1)
+            return;
+        if(expectKey) {
+            key = text.toString();
+        } else if(key != null) {
+            listener.onField(key, text.toString());
+            key = null;
+        }
+    }
+}
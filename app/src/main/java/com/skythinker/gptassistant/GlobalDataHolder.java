@@ -25,16 +25,27 @@ public class GlobalDataHolder {
     private static boolean asrUseRealTime;
     private static String gptApiHost;
     private static String gptApiKey;
+    private static List<String> gptExtraEndpoints; // 备用服务器，每行为“地址 密钥 [权重]”
+    private static boolean gptHedgeRequests; // 首个回复过慢时同时向另一服务器发起请求
+    private static int gptMaxRequestsPerHost; // 同一服务器的最大并发请求数
+    private static int gptStallTimeout; // 回复中两个数据块之间的最长间隔（秒），超过则重试
+    private static int gptMaxRetries; // 请求失败或卡住时的最大重试次数
+    private static boolean gptResumePartialReply; // 回复中断后带上已收到的内容继续回复
+    private static boolean gptStreamUsage; // 流式请求中要求返回usage（stream_options）
+    private static boolean gptLegacyFunctions; // 使用旧版functions参数传入函数（只支持旧版参数的中转服务）
     private static String gptModel;
     private static List<String> customModels = null;
     private static boolean checkAccessOnStart;
     private static boolean defaultEnableTts;
     private static boolean defaultEnableMultiChat;
+    private static boolean compactHistory; // 长对话时将较早的消息压缩为摘要
+    private static String compactModel; // 生成摘要使用的模型，为空则使用对话模型
     private static int selectedTab;
     private static boolean enableInternetAccess;
     private static int webMaxCharCount;
     private static boolean onlyLatestWebResult;
     private static boolean limitVisionSize;
+    private static int visionMaxKb;
     private static boolean autoSaveHistory;
     private static SharedPreferences sp = null;
 
@@ -51,12 +62,16 @@ public class GlobalDataHolder {
         loadStartUpSetting();
         loadTtsSetting();
         loadMultiChatSetting();
+        loadCompactSetting();
         loadSelectedTab();
         loadFunctionSetting();
         loadVisionSetting();
         loadHistorySetting();
     }
 
+    // 服务可能先于主活动启动，使用前需检查是否已初始化
+    public static boolean isInitialized() { return sp != null; }
+
     public static List<PromptTabData> getTabDataList() {
         return tabDataList;
     }
@@ -134,6 +149,15 @@ public class GlobalDataHolder {
         gptModel = sp.getString("gpt_model", "gpt-4o");
         customModels = new ArrayList<>(Arrays.asList(sp.getString("custom_models", "").split(";")));
         customModels.removeIf(String::isEmpty);
+        gptExtraEndpoints = new ArrayList<>(Arrays.asList(sp.getString("gpt_endpoints", "").split("\n")));
+        gptExtraEndpoints.removeIf(line -> line.trim().isEmpty());
+        gptHedgeRequests = sp.getBoolean("gpt_hedge_requests", false);
+        gptMaxRequestsPerHost = sp.getInt("gpt_max_requests_per_host", SharedHttpClient.DEFAULT_MAX_REQUESTS_PER_HOST);
+        gptStallTimeout = sp.getInt("gpt_stall_timeout", (int) (ChatApiClient.DEFAULT_STALL_TIMEOUT / 1000));
+        gptMaxRetries = sp.getInt("gpt_max_retries", ChatApiClient.DEFAULT_MAX_RETRIES);
+        gptResumePartialReply = sp.getBoolean("gpt_resume_partial_reply", true);
+        gptStreamUsage = sp.getBoolean("gpt_stream_usage", true);
+        gptLegacyFunctions = sp.getBoolean("gpt_legacy_functions", false);
     }
 
     public static void saveGptApiInfo(String host, String key, String model, List<String> customModelList) {
@@ -149,6 +173,52 @@ public class GlobalDataHolder {
         editor.apply();
     }
 
+    public static void saveGptExtraEndpoints(List<String> endpointList) {
+        gptExtraEndpoints = endpointList;
+        SharedPreferences.Editor editor = sp.edit();
+        editor.putString("gpt_endpoints", String.join("\n", gptExtraEndpoints));
+        editor.apply();
+    }
+
+    public static void saveGptHedgeRequests(boolean hedge) {
+        gptHedgeRequests = hedge;
+        SharedPreferences.Editor editor = sp.edit();
+        editor.putBoolean("gpt_hedge_requests", gptHedgeRequests);
+        editor.apply();
+    }
+
+    public static void saveGptStreamSetting(int stallTimeout, int maxRetries, boolean resumePartialReply) {
+        gptStallTimeout = stallTimeout;
+        gptMaxRetries = maxRetries;
+        gptResumePartialReply = resumePartialReply;
+        SharedPreferences.Editor editor = sp.edit();
+        editor.putInt("gpt_stall_timeout", gptStallTimeout);
+        editor.putInt("gpt_max_retries", gptMaxRetries);
+        editor.putBoolean("gpt_resume_partial_reply", gptResumePartialReply);
+        editor.apply();
+    }
+
+    public static void saveGptStreamUsage(boolean streamUsage) {
+        gptStreamUsage = streamUsage;
+        SharedPreferences.Editor editor = sp.edit();
+        editor.putBoolean("gpt_stream_usage", gptStreamUsage);
+        editor.apply();
+    }
+
+    public static void saveGptLegacyFunctions(boolean legacyFunctions) {
+        gptLegacyFunctions = legacyFunctions;
+        SharedPreferences.Editor editor = sp.edit();
+        editor.putBoolean("gpt_legacy_functions", gptLegacyFunctions);
+        editor.apply();
+    }
+
+    public static void saveGptMaxRequestsPerHost(int maxRequests) {
+        gptMaxRequestsPerHost = maxRequests;
+        SharedPreferences.Editor editor = sp.edit();
+        editor.putInt("gpt_max_requests_per_host", gptMaxRequestsPerHost);
+        editor.apply();
+    }
+
     public static void loadStartUpSetting() {
         checkAccessOnStart = sp.getBoolean("check_access_on_start", true);
     }
@@ -182,6 +252,20 @@ public class GlobalDataHolder {
         editor.apply();
     }
 
+    public static void loadCompactSetting() {
+        compactHistory = sp.getBoolean("compact_history", false);
+        compactModel = sp.getString("compact_model", "");
+    }
+
+    public static void saveCompactSetting(boolean enable, String model) {
+        compactHistory = enable;
+        compactModel = model;
+        SharedPreferences.Editor editor = sp.edit();
+        editor.putBoolean("compact_history", compactHistory);
+        editor.putString("compact_model", compactModel);
+        editor.apply();
+    }
+
     public static void loadSelectedTab() {
         selectedTab = sp.getInt("selected_tab", -1);
     }
@@ -212,12 +296,15 @@ public class GlobalDataHolder {
 
     public static void loadVisionSetting() {
         limitVisionSize = sp.getBoolean("limit_vision_size", false);
+        visionMaxKb = sp.getInt("vision_max_kb", 512);
     }
 
-    public static void saveVisionSetting(boolean limitSize) {
+    public static void saveVisionSetting(boolean limitSize, int maxKb) {
         limitVisionSize = limitSize;
+        visionMaxKb = maxKb;
         SharedPreferences.Editor editor = sp.edit();
         editor.putBoolean("limit_vision_size", limitVisionSize);
+        editor.putInt("vision_max_kb", visionMaxKb);
         editor.apply();
     }
 
@@ -250,6 +337,22 @@ public class GlobalDataHolder {
 
     public static String getGptApiKey() { return gptApiKey; }
 
+    public static List<String> getGptExtraEndpoints() { return gptExtraEndpoints; }
+
+    public static boolean getGptHedgeRequests() { return gptHedgeRequests; }
+
+    public static int getGptMaxRequestsPerHost() { return gptMaxRequestsPerHost; }
+
+    public static int getGptStallTimeout() { return gptStallTimeout; }
+
+    public static int getGptMaxRetries() { return gptMaxRetries; }
+
+    public static boolean getGptResumePartialReply() { return gptResumePartialReply; }
+
+    public static boolean getGptStreamUsage() { return gptStreamUsage; }
+
+    public static boolean getGptLegacyFunctions() { return gptLegacyFunctions; }
+
     public static String getGptModel() { return gptModel; }
 
     public static List<String> getCustomModels() { return customModels; }
@@ -260,6 +363,10 @@ public class GlobalDataHolder {
 
     public static boolean getDefaultEnableMultiChat() { return defaultEnableMultiChat; }
 
+    public static boolean getCompactHistory() { return compactHistory; }
+
+    public static String getCompactModel() { return compactModel; }
+
     public static int getSelectedTab() { return selectedTab; }
 
     public static boolean getEnableInternetAccess() { return enableInternetAccess; }
@@ -270,5 +377,7 @@ public class GlobalDataHolder {
 
     public static boolean getLimitVisionSize() { return limitVisionSize; }
 
+    public static int getVisionMaxKb() { return visionMaxKb; }
+
     public static boolean getAutoSaveHistory() { return autoSaveHistory; }
 }
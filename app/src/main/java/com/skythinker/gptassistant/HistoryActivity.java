@@ -9,8 +9,13 @@ import android.app.Activity;
 import android.content.Intent;
 import android.graphics.Color;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.text.Editable;
+import android.text.Spannable;
+import android.text.SpannableString;
 import android.text.TextWatcher;
+import android.text.style.ForegroundColorSpan;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -21,20 +26,103 @@ import android.widget.TextView;
 
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 
 import com.google.android.material.internal.TextWatcherAdapter;
-import com.skythinker.gptassistant.ChatManager.Conversation;
-import com.skythinker.gptassistant.ChatManager.ChatMessage;
+import com.skythinker.gptassistant.ChatManager.ConversationSummary;
 
 public class HistoryActivity extends Activity {
 
     static private class HistoryListAdapter extends RecyclerView.Adapter<HistoryListAdapter.ViewHolder> {
+        private static final int PAGE_SIZE = 30;
+        private static final int PREFETCH_DISTANCE = 10; // 距离末尾不足该数量时加载下一页
+
         HistoryActivity historyActivity;
+        private final List<ConversationSummary> items = new ArrayList<>(); // 已加载的会话
+        private boolean hasMore = true, loading = false;
+        private int generation = 0; // 重新加载时递增，用于忽略之前发起的加载
+        private String keyword = null; // 当前列表的搜索词，为null时显示所有会话
+        private List<String> terms = new ArrayList<>(); // 需要高亮的搜索词
+
+        // 一次加载的结果
+        private static class Page {
+            List<ConversationSummary> items;
+            boolean hasMore;
+        }
 
         public HistoryListAdapter(HistoryActivity historyActivity) {
             this.historyActivity = historyActivity;
         }
 
+        // 清空列表并重新加载第一页（如搜索词变化时）
+        public void reload() {
+            generation++;
+            keyword = historyActivity.searchKeyword;
+            terms = SearchTokenizer.terms(keyword);
+            items.clear();
+            hasMore = true;
+            loading = false;
+            notifyDataSetChanged();
+            loadMore();
+        }
+
+        // 在数据库线程中加载下一页，在之前提交的删除之后执行
+        private void loadMore() {
+            if(loading || !hasMore)
+                return;
+            loading = true;
+            int current = generation;
+            String keyword = this.keyword;
+            ConversationSummary after = items.isEmpty() ? null : items.get(items.size() - 1);
+            ChatManager chatManager = historyActivity.chatManager;
+            int loaded = items.size();
+            chatManager.execute(() -> {
+                Page page = new Page();
+                if(keyword == null) {
+                    page.items = chatManager.getConversationSummaries(after, PAGE_SIZE);
+                    page.hasMore = page.items.size() == PAGE_SIZE && loaded + page.items.size() < chatManager.getConversationCount();
+                } else { // 搜索结果按相关度排序，一次读取
+                    page.items = chatManager.searchConversations(keyword);
+                    page.hasMore = false;
+                }
+                return page;
+            }, historyActivity.handler, page -> {
+                if(current != generation)
+                    return;
+                loading = false;
+                int start = items.size();
+                items.addAll(page.items);
+                hasMore = page.hasMore;
+                notifyItemRangeInserted(start, page.items.size());
+            });
+        }
+
+        // 列表中指定位置的会话ID
+        public long getConversationId(int position) {
+            return items.get(position).id;
+        }
+
+        // 从列表中移除（已从数据库删除）
+        public void remove(int position) {
+            items.remove(position);
+            notifyItemRemoved(position);
+        }
+
+        // 高亮文本中出现的搜索词
+        private static CharSequence highlight(String text, List<String> terms) {
+            if(text == null || terms.isEmpty())
+                return text;
+            SpannableString spannable = new SpannableString(text);
+            String lower = text.toLowerCase(Locale.ROOT);
+            for(String term : terms) {
+                for(int index = lower.indexOf(term); index >= 0; index = lower.indexOf(term, index + term.length()))
+                    spannable.setSpan(new ForegroundColorSpan(Color.parseColor("#1E88E5")), index, index + term.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            }
+            return spannable;
+        }
+
         @Override
         public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
             View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.history_list_item, parent, false);
@@ -43,25 +131,21 @@ public class HistoryActivity extends Activity {
 
         @Override
         public void onBindViewHolder(ViewHolder holder, int position) {
-            Conversation conversation = historyActivity.chatManager.getConversationAtPosition(position, historyActivity.searchKeyword);
-            holder.tvTitle.setText(conversation.title);
-            holder.tvDetail.setText("");
-            for(ChatMessage message : conversation.messages) {
-                if (message.role == ChatMessage.ChatRole.ASSISTANT && message.functionName == null) {
-                    holder.tvDetail.setText(message.contentText.replaceAll("\n", " "));
-                    break;
-                }
-            }
+            ConversationSummary conversation = items.get(position);
+            holder.tvTitle.setText(highlight(conversation.title, terms));
+            holder.tvDetail.setText(conversation.snippet != null ? highlight(conversation.snippet, terms) : conversation.preview);
             LocalDateTime now = LocalDateTime.now();
             if (now.getYear() == conversation.time.getYear() && now.getMonthValue() == conversation.time.getMonthValue() && now.getDayOfMonth() == conversation.time.getDayOfMonth())
                 holder.tvTime.setText(conversation.time.format(DateTimeFormatter.ofPattern("HH:mm")));
             else
                 holder.tvTime.setText(conversation.time.format(DateTimeFormatter.ofPattern("yyyy/MM/dd")));
+            if(position >= items.size() - PREFETCH_DISTANCE) // 提前加载下一页
+                loadMore();
         }
 
         @Override
         public int getItemCount() {
-            return (int) historyActivity.chatManager.getConversationCount(historyActivity.searchKeyword);
+            return items.size();
         }
 
         class ViewHolder extends RecyclerView.ViewHolder {
@@ -74,8 +158,11 @@ public class HistoryActivity extends Activity {
                 tvTime = itemView.findViewById(R.id.tv_history_item_time);
                 llOuter = itemView.findViewById(R.id.ll_history_item_outer);
                 llOuter.setOnClickListener((view) -> {
+                    int position = getAdapterPosition();
+                    if(position == RecyclerView.NO_POSITION)
+                        return;
                     Intent intent = new Intent();
-                    intent.putExtra("id", historyActivity.chatManager.getConversationAtPosition(getAdapterPosition(), historyActivity.searchKeyword).id);
+                    intent.putExtra("id", getConversationId(position));
                     historyActivity.setResult(RESULT_OK, intent);
                     historyActivity.finish();
                 });
@@ -83,10 +170,14 @@ public class HistoryActivity extends Activity {
         }
     }
 
+    private static final int SEARCH_DELAY = 200; // ms
+
     private ChatManager chatManager;
     private RecyclerView rvHistoryList;
     private HistoryListAdapter historyListAdapter;
     private String searchKeyword = null;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable searchRunnable = () -> historyListAdapter.reload();
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -108,6 +199,7 @@ public class HistoryActivity extends Activity {
         rvHistoryList.setLayoutManager(new LinearLayoutManager(this));
         historyListAdapter = new HistoryListAdapter(this);
         rvHistoryList.setAdapter(historyListAdapter);
+        historyListAdapter.reload();
 
         new ItemTouchHelper(new ItemTouchHelper.SimpleCallback(0, ItemTouchHelper.LEFT) { // 左滑删除
             @Override
@@ -118,8 +210,8 @@ public class HistoryActivity extends Activity {
             @Override
             public void onSwiped(@NonNull RecyclerView.ViewHolder viewHolder, int direction) {
                 int position = viewHolder.getAdapterPosition(); // 获取滑动的item的position
-                chatManager.removeConversation(chatManager.getConversationAtPosition(position, searchKeyword).id);
-                historyListAdapter.notifyItemRemoved(position);
+                chatManager.removeConversation(historyListAdapter.getConversationId(position)); // 在数据库线程中删除
+                historyListAdapter.remove(position);
             }
         }).attachToRecyclerView(rvHistoryList);
 
@@ -128,10 +220,11 @@ public class HistoryActivity extends Activity {
             @Override public void onTextChanged(CharSequence s, int start, int before, int count) { }
             @Override
             public void afterTextChanged(Editable editable) {
-                searchKeyword = editable.toString();
+                searchKeyword = editable.toString().trim();
                 if(searchKeyword.length() == 0)
                     searchKeyword = null;
-                historyListAdapter.notifyDataSetChanged();
+                handler.removeCallbacks(searchRunnable); // 输入停顿后再搜索
+                handler.postDelayed(searchRunnable, SEARCH_DELAY);
             }
         });
 
@@ -144,13 +237,15 @@ public class HistoryActivity extends Activity {
                     .setContent(getString(R.string.dialog_clear_history))
                     .setOnConfirmListener(() -> {
                         chatManager.removeAllConversations();
-                        historyListAdapter.notifyDataSetChanged();
+                        historyListAdapter.reload(); // 在删除完成后读取
                     }).show();
         });
     }
 
     @Override
     protected void onDestroy() {
+        handler.removeCallbacks(searchRunnable);
+        historyListAdapter.generation++; // 忽略尚未完成的加载
         chatManager.destroy();
         super.onDestroy();
     }
@@ -0,0 +1,149 @@
+package com.skythinker.gptassistant;
+
+import android.content.Context;
+import android.os.Handler;
+import android.util.Base64;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.skythinker.gptassistant.ChatManager.ChatMessage;
+import com.skythinker.gptassistant.ChatManager.ChatMessage.ChatRole;
+
+// 在后台为较早的图片生成简短描述，每张图片只生成一次，结果保存在消息中随会话一起保存
+// 所有方法都需在handler线程中调用，发送的图片为缩略图，在后台线程中读取
+public class ImageCaptioner {
+    private static final String CAPTION_PROMPT = "Describe this image in one or two short sentences for someone who cannot see it. "
+            + "Include any text, numbers or details that a later question might refer to. Reply with the description only.";
+    private static final int MAX_CAPTION_CHARS = 300;
+    private static final int THUMB_QUALITY = 80;
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ImageCaptioner");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static class Request {
+        ChatMessage message;
+        String model;
+    }
+
+    private final Context context;
+    private final Handler handler;
+    private final Deque<Request> queue = new ArrayDeque<>();
+    private ChatApiClient captionClient = null; // 正在生成描述的客户端，空闲时为null
+    private int generation = 0; // 每个请求及每次取消递增，用于忽略已结束或已取消请求的回调
+
+    public ImageCaptioner(Context context, Handler handler) {
+        this.context = context;
+        this.handler = handler;
+    }
+
+    // 请求为消息中的图片生成描述，model需支持识图
+    public void request(ChatMessage message, String model) {
+        if(message.imageCaption != null || message.getImageRef() == null)
+            return;
+        Request request = new Request();
+        request.message = message;
+        request.model = model;
+        queue.add(request);
+        if(captionClient == null)
+            next();
+    }
+
+    // 停止所有描述生成（如新建会话时）
+    public void cancel() {
+        queue.clear();
+        if(captionClient != null)
+            captionClient.stop();
+        captionClient = null;
+        generation++;
+    }
+
+    private void next() {
+        Request request = queue.poll();
+        if(request == null)
+            return;
+        ChatMessage message = request.message;
+        Object image = message.getImageRef();
+        if(message.imageCaption != null || image == null) {
+            next();
+            return;
+        }
+        int current = ++generation;
+        StringBuilder caption = new StringBuilder();
+        captionClient = new ChatApiClient(context, GlobalDataHolder.getGptApiHost(), GlobalDataHolder.getGptApiKey(), request.model,
+                new ChatApiClient.OnReceiveListener() {
+                    @Override
+                    public void onMsgReceive(String msg) {
+                        caption.append(msg);
+                    }
+
+                    @Override
+                    public void onError(String msg) {
+                        Log.e("ImageCaptioner", "caption failed: " + msg);
+                        handler.post(() -> finish(current));
+                    }
+
+                    @Override
+                    public void onFunctionCall(List<ChatApiClient.FunctionCall> calls) { }
+
+                    @Override
+                    public void onFinished(boolean completed) {
+                        handler.post(() -> {
+                            String text = caption.toString().trim().replaceAll("\\s+", " ");
+                            if(current == generation && completed && !text.isEmpty() && message.getImageRef() == image) { // 生成期间图片未被修改
+                                message.imageCaption = text.length() > MAX_CAPTION_CHARS ? text.substring(0, MAX_CAPTION_CHARS) + "..." : text;
+                                Log.d("ImageCaptioner", "caption: " + message.imageCaption);
+                            }
+                            finish(current);
+                        });
+                    }
+                });
+        captionClient.setHedging(GlobalDataHolder.getGptHedgeRequests());
+        captionClient.setStreamUsage(GlobalDataHolder.getGptStreamUsage());
+        ChatApiClient client = captionClient;
+        executor.execute(() -> {
+            String thumb = readThumbnail(message, request.model);
+            handler.post(() -> {
+                if(current != generation) // 读取期间已取消
+                    return;
+                if(thumb == null) { // 图片文件已被删除
+                    finish(current);
+                    return;
+                }
+                ChatMessage prompt = new ChatMessage(ChatRole.USER).setText(CAPTION_PROMPT)
+                        .setTransientImage(thumb); // 不保存图片文件
+                List<ChatMessage> promptList = new ArrayList<>();
+                promptList.add(prompt);
+                client.sendPromptList(promptList);
+            });
+        });
+    }
+
+    // 读取图片的缩略图（base64），已保存的图片使用预先生成的缩略图，无图片时返回null；在后台线程中调用
+    private static String readThumbnail(ChatMessage message, String model) {
+        String key = message.getImageKey();
+        byte[] stored = key == null ? null : ImageStore.readThumbnail(key);
+        if(stored != null)
+            return Base64.encodeToString(stored, Base64.NO_WRAP);
+        byte[] data = message.readImageBytes(); // 不在消息中缓存原图的base64
+        if(data == null)
+            return null;
+        String thumb = VisionImageEncoder.encodeThumbnail(data, model, ImageStore.THUMB_SIZE, THUMB_QUALITY);
+        return thumb != null ? thumb : Base64.encodeToString(data, Base64.NO_WRAP); // 图片已足够小
+    }
+
+    private void finish(int current) {
+        if(current != generation) // 已取消或已结束（错误后可能再次回调）
+            return;
+        generation++;
+        captionClient = null;
+        next();
+    }
+}
@@ -0,0 +1,148 @@
+package com.skythinker.gptassistant;
+
+import android.util.Base64;
+import android.util.Log;
+
+import java.io.File;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import com.skythinker.gptassistant.ChatManager.ChatMessage;
+import com.skythinker.gptassistant.ChatManager.ChatMessage.ChatRole;
+
+// 识图对话中历史图片的发送策略：仅最近几轮中的图片发送原图，更早的图片替换为缩略图、文字描述或直接省略，避免每轮重复上传
+// 替换不修改原消息，替换用的副本按原消息缓存，内容不变时复用同一对象，使ChatPromptBuilder能继续命中缓存
+public class ImageElisionPolicy {
+    public enum Mode {
+        FULL, // 所有图片都发送原图
+        THUMB, // 较早的图片发送缩略图
+        CAPTION, // 较早的图片发送文字描述（描述生成前发送缩略图）
+        NONE; // 较早的图片直接省略
+
+        // 解析模板参数，无法识别时返回null
+        public static Mode fromName(String name) {
+            for(Mode mode : values()) {
+                if(mode.name().equalsIgnoreCase(name))
+                    return mode;
+            }
+            return null;
+        }
+    }
+
+    public static final Mode DEFAULT_MODE = Mode.THUMB;
+    public static final int DEFAULT_FULL_TURNS = 2; // 默认发送原图的最近轮数
+    private static final int THUMB_SIZE = 512; // 缩略图长边，OpenAI按一个512x512分块计费
+    private static final int THUMB_QUALITY = 60;
+    private static final String CAPTION_FORMAT = "\n[Earlier image: %s]";
+    private static final String OMITTED_TEXT = "\n[Earlier image omitted]";
+
+    // 需要为图片生成描述时回调，可能在后台线程中调用
+    public interface CaptionRequester {
+        void requestCaption(ChatMessage message);
+    }
+
+    // 原消息的替换副本
+    private static class Replacement {
+        String sourceText, caption; // 生成副本时原消息的内容
+        Object sourceImage;
+        Mode mode;
+        ChatMessage copy;
+    }
+
+    private Mode mode = DEFAULT_MODE;
+    private int fullTurns = DEFAULT_FULL_TURNS;
+    private CaptionRequester captionRequester = null;
+    private final Map<ChatMessage, Replacement> replacements = new IdentityHashMap<>();
+    private final Set<ChatMessage> captionRequested = Collections.newSetFromMap(new IdentityHashMap<>()); // 已请求过描述的消息
+
+    public synchronized void setPolicy(Mode mode, int fullTurns) {
+        this.mode = mode;
+        this.fullTurns = Math.max(0, fullTurns);
+    }
+
+    public synchronized void setCaptionRequester(CaptionRequester requester) {
+        this.captionRequester = requester;
+    }
+
+    // 返回实际发送的消息列表，无需替换时直接返回原列表
+    public synchronized List<ChatMessage> apply(List<ChatMessage> messages, String model) {
+        if(mode == Mode.FULL)
+            return messages;
+        List<ChatMessage> result = null;
+        Map<ChatMessage, Replacement> used = new IdentityHashMap<>();
+        int replaced = 0;
+        int turns = 0; // 从末尾数起当前消息所在的轮次
+        for(int i = messages.size() - 1; i >= 0; i--) {
+            ChatMessage chat = messages.get(i);
+            if(chat.role == ChatRole.USER)
+                turns++;
+            if(chat.getImageRef() == null || turns <= fullTurns)
+                continue;
+            ChatMessage copy = replace(chat, model);
+            used.put(chat, replacements.get(chat));
+            if(copy == chat)
+                continue;
+            if(result == null)
+                result = new ArrayList<>(messages);
+            result.set(i, copy);
+            replaced++;
+        }
+        replacements.clear(); // 只保留本次用到的副本
+        replacements.putAll(used);
+        captionRequested.retainAll(used.keySet());
+        if(result == null)
+            return messages;
+        Log.d("ImageElisionPolicy", String.format(Locale.US, "%s: %d earlier images replaced", mode, replaced));
+        return result;
+    }
+
+    private ChatMessage replace(ChatMessage source, String model) {
+        Mode mode = this.mode;
+        if(mode == Mode.CAPTION && source.imageCaption == null) { // 描述生成前先发送缩略图
+            if(captionRequester != null && captionRequested.add(source))
+                captionRequester.requestCaption(source);
+            mode = Mode.THUMB;
+        }
+        Replacement replacement = replacements.get(source);
+        if(replacement != null && replacement.mode == mode && replacement.sourceText == source.contentText
+                && replacement.sourceImage == source.getImageRef() && replacement.caption == source.imageCaption)
+            return replacement.copy;
+
+        ChatMessage copy = new ChatMessage(source.role).setFunction(source.functionName).setToolCallId(source.toolCallId);
+        String text = source.contentText == null ? "" : source.contentText;
+        if(mode == Mode.THUMB) {
+            String thumb;
+            File file = source.getImageFile();
+            byte[] stored = file == null ? null : ImageStore.readThumbnail(source.getImageKey());
+            if(stored != null) { // 已保存的图片直接使用预先生成的缩略图，无需解码原图
+                thumb = stored.length < file.length() ? Base64.encodeToString(stored, Base64.NO_WRAP) : null;
+            } else {
+                byte[] data = source.readImageBytes(); // 直接读取文件，不在原消息中缓存原图的base64
+                thumb = data == null ? null : VisionImageEncoder.encodeThumbnail(data, model, THUMB_SIZE, THUMB_QUALITY);
+            }
+            if(thumb == null) { // 图片无法解码或已足够小，发送原图
+                copy = source;
+            } else {
+                copy.setText(source.contentText).setTransientImage(thumb); // 副本不保存图片文件
+            }
+        } else if(mode == Mode.CAPTION) {
+            copy.setText(text + String.format(CAPTION_FORMAT, source.imageCaption));
+        } else {
+            copy.setText(text + OMITTED_TEXT);
+        }
+        replacement = new Replacement();
+        replacement.sourceText = source.contentText;
+        replacement.sourceImage = source.getImageRef();
+        replacement.caption = source.imageCaption;
+        replacement.mode = mode;
+        replacement.copy = copy;
+        replacements.put(source, replacement);
+        return copy;
+    }
+}
@@ -0,0 +1,154 @@
+package com.skythinker.gptassistant;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.net.Uri;
+import android.os.Handler;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.skythinker.gptassistant.ChatManager.ChatMessage;
+
+// 从相册、相机或分享读取图片：先读取尺寸，按目标大小降采样解码，并根据EXIF旋转
+// 解码在后台线程中进行，避免大图片导致界面卡顿或内存不足
+public class ImageIngestor {
+    public interface Callback {
+        void onLoadResult(Bitmap bitmap);
+        void onLoadFail(String message);
+    }
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ImageIngestor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private interface Decoder {
+        Bitmap decode() throws IOException;
+    }
+
+    // 在后台读取图片，缩放到maxSize x maxSize以内，完成后通过handler回调，可通过返回的Future取消
+    public static Future<?> load(Context context, Uri uri, int maxSize, Handler handler, Callback callback) {
+        ContentResolver resolver = context.getApplicationContext().getContentResolver();
+        return submit(() -> decode(resolver, uri, maxSize), handler, callback);
+    }
+
+    // 在后台读取消息中的图片（如编辑或重试已发送的提问），保存时已旋转，无需读取EXIF
+    public static Future<?> load(ChatMessage message, int maxSize, Handler handler, Callback callback) {
+        return submit(() -> {
+            byte[] data = message.readImageBytes();
+            Bitmap bitmap = data == null ? null : ImageThumbnailCache.decode(data, maxSize);
+            if(bitmap == null)
+                throw new IOException("image not available");
+            return bitmap;
+        }, handler, callback);
+    }
+
+    private static Future<?> submit(Decoder decoder, Handler handler, Callback callback) {
+        return executor.submit(() -> {
+            Bitmap bitmap = null;
+            String error = null;
+            try {
+                bitmap = decoder.decode();
+            } catch (Exception | OutOfMemoryError e) {
+                e.printStackTrace();
+                error = e.toString();
+            }
+            if(Thread.currentThread().isInterrupted()) // 已取消
+                return;
+            Bitmap result = bitmap;
+            String message = error;
+            handler.post(() -> {
+                if(result != null)
+                    callback.onLoadResult(result);
+                else
+                    callback.onLoadFail(message);
+            });
+        });
+    }
+
+    public static Bitmap decode(ContentResolver resolver, Uri uri, int maxSize) throws IOException {
+        long startTime = System.currentTimeMillis();
+
+        // 仅读取尺寸
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try (InputStream input = resolver.openInputStream(uri)) {
+            BitmapFactory.decodeStream(input, null, options);
+        }
+        int width = options.outWidth, height = options.outHeight;
+        if(width <= 0 || height <= 0)
+            throw new IOException("unsupported image: " + uri);
+
+        // 降采样到不小于目标大小的最小2的幂，再利用density缩放在解码时直接得到目标大小
+        int longSide = Math.max(width, height);
+        int sampleSize = 1;
+        while(longSide / (sampleSize * 2) >= maxSize)
+            sampleSize *= 2;
+        options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        if(longSide / sampleSize > maxSize) {
+            options.inScaled = true;
+            options.inDensity = longSide / sampleSize;
+            options.inTargetDensity = maxSize;
+        }
+        Bitmap bitmap;
+        try (InputStream input = resolver.openInputStream(uri)) {
+            bitmap = BitmapFactory.decodeStream(input, null, options);
+        }
+        if(bitmap == null)
+            throw new IOException("decode failed: " + uri);
+        if(Math.max(bitmap.getWidth(), bitmap.getHeight()) > maxSize) { // 部分格式不支持解码时缩放
+            float scale = (float) maxSize / Math.max(bitmap.getWidth(), bitmap.getHeight());
+            Bitmap scaled = Bitmap.createScaledBitmap(bitmap, Math.max(1, Math.round(bitmap.getWidth() * scale)),
+                    Math.max(1, Math.round(bitmap.getHeight() * scale)), true);
+            if(scaled != bitmap)
+                bitmap.recycle();
+            bitmap = scaled;
+        }
+
+        // 根据EXIF方向旋转（相机拍摄的照片通常需要）
+        int orientation = ExifInterface.ORIENTATION_NORMAL;
+        try (InputStream input = resolver.openInputStream(uri)) {
+            orientation = new ExifInterface(input).getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+        } catch (IOException e) { // 无EXIF信息的格式
+            Log.w("ImageIngestor", "read exif failed: " + e);
+        }
+        Matrix matrix = orientationMatrix(orientation);
+        if(matrix != null) {
+            Bitmap rotated = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+            if(rotated != bitmap)
+                bitmap.recycle();
+            bitmap = rotated;
+        }
+
+        Log.d("ImageIngestor", String.format("%dx%d -> %dx%d (sample %d, orientation %d), %d ms", width, height,
+                bitmap.getWidth(), bitmap.getHeight(), sampleSize, orientation, System.currentTimeMillis() - startTime));
+        return bitmap;
+    }
+
+    // EXIF方向对应的变换，无需变换时返回null
+    private static Matrix orientationMatrix(int orientation) {
+        Matrix matrix = new Matrix();
+        switch(orientation) {
+            case ExifInterface.ORIENTATION_ROTATE_90: matrix.postRotate(90); break;
+            case ExifInterface.ORIENTATION_ROTATE_180: matrix.postRotate(180); break;
+            case ExifInterface.ORIENTATION_ROTATE_270: matrix.postRotate(270); break;
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL: matrix.postScale(-1, 1); break;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL: matrix.postScale(1, -1); break;
+            case ExifInterface.ORIENTATION_TRANSPOSE: matrix.postRotate(90); matrix.postScale(-1, 1); break;
+            case ExifInterface.ORIENTATION_TRANSVERSE: matrix.postRotate(270); matrix.postScale(-1, 1); break;
+            default: return null;
+        }
+        return matrix;
+    }
+}
@@ -0,0 +1,123 @@
+package com.skythinker.gptassistant;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import cn.hutool.crypto.digest.DigestUtil;
+
+// 内容寻址的图片存储：图片文件以内容的SHA-256命名，相同的图片只保存一份，何时删除由数据库中的引用计数决定（见ChatManager）
+// 文件先写入临时文件再重命名，读取时不会看到写了一半的文件；每张图片另存一份缩略图，聊天列表只解码缩略图
+// 旧版本保存的图片以uuid命名，同样作为key使用
+public class ImageStore {
+    public static final int THUMB_SIZE = 480; // 缩略图长边，不小于聊天列表中图片的显示大小
+    private static final int THUMB_QUALITY = 80;
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static File dir;
+
+    public static void setDirectory(File directory) { dir = directory; }
+
+    // 图片内容对应的key
+    public static String keyOf(byte[] data) {
+        return DigestUtil.sha256Hex(data);
+    }
+
+    public static File file(String key) {
+        return new File(dir, key + ".jpg");
+    }
+
+    public static File thumbnailFile(String key) {
+        return new File(dir, key + ".thumb.jpg");
+    }
+
+    public static boolean contains(String key) {
+        return file(key).exists();
+    }
+
+    // 保存图片，已存在相同内容的图片时直接返回
+    public static boolean write(String key, byte[] data) {
+        return contains(key) || writeAtomically(file(key), data);
+    }
+
+    // 读取文件，失败时返回null
+    public static byte[] read(File file) {
+        try {
+            return Files.readAllBytes(file.toPath());
+        } catch (IOException e) {
+            Log.e("ImageStore", "read failed: " + e);
+            return null;
+        }
+    }
+
+    // 读取缩略图，尚未生成时返回null
+    public static byte[] readThumbnail(String key) {
+        File file = thumbnailFile(key);
+        return file.exists() ? read(file) : null;
+    }
+
+    // 为已保存的图片生成缩略图（已生成时直接返回），需解码原图，应在后台线程中调用
+    public static void ensureThumbnail(String key) {
+        File thumbnail = thumbnailFile(key);
+        if(thumbnail.exists() || !contains(key))
+            return;
+        byte[] data = read(file(key));
+        Bitmap bitmap = data == null ? null : ImageThumbnailCache.decode(data, THUMB_SIZE);
+        if(bitmap == null)
+            return;
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.JPEG, THUMB_QUALITY, output);
+        bitmap.recycle();
+        writeAtomically(thumbnail, output.toByteArray());
+    }
+
+    // 删除图片及其缩略图
+    public static void delete(String key) {
+        file(key).delete();
+        thumbnailFile(key).delete();
+    }
+
+    // 删除所有图片
+    public static void clear() {
+        File[] files = dir.listFiles();
+        if(files != null) {
+            for(File file : files)
+                file.delete();
+        }
+    }
+
+    // 删除写入中途退出时残留的临时文件
+    public static void deleteTempFiles() {
+        File[] files = dir.listFiles((directory, name) -> name.endsWith(TEMP_SUFFIX));
+        if(files != null) {
+            for(File file : files)
+                file.delete();
+        }
+    }
+
+    // 先写入同一目录下的临时文件，同步到磁盘后重命名为目标文件
+    private static boolean writeAtomically(File target, byte[] data) {
+        File temp = null;
+        try {
+            dir.mkdirs();
+            temp = File.createTempFile(target.getName(), TEMP_SUFFIX, dir);
+            try (FileOutputStream output = new FileOutputStream(temp)) {
+                output.write(data);
+                output.getFD().sync();
+            }
+            if(temp.renameTo(target))
+                return true;
+            Log.e("ImageStore", "rename failed: " + target.getName());
+        } catch (IOException e) {
+            Log.e("ImageStore", "write failed: " + e);
+        }
+        if(temp != null)
+            temp.delete();
+        return false;
+    }
+}
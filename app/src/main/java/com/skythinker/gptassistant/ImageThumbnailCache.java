@@ -0,0 +1,110 @@
+package com.skythinker.gptassistant;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.skythinker.gptassistant.ChatManager.ChatMessage;
+
+// 聊天列表中图片的缩略图缓存：已保存的图片从ImageStore预先生成的缩略图解码，不在内存中保留原图，按占用的内存限制缓存大小
+// 读取和解码都在后台线程中进行，界面线程只查询已缓存的缩略图
+public class ImageThumbnailCache {
+    public interface Callback {
+        void onLoaded(Bitmap bitmap);
+    }
+
+    private static final int MAX_CACHE_BYTES = 16 * 1024 * 1024;
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ImageThumbnailCache");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final LruCache<String, Bitmap> cache = new LruCache<String, Bitmap>(
+            (int) Math.min(MAX_CACHE_BYTES, Runtime.getRuntime().maxMemory() / 16)) {
+        @Override
+        protected int sizeOf(String key, Bitmap bitmap) {
+            return bitmap.getByteCount();
+        }
+    };
+
+    // 获取已缓存的缩略图（长宽不超过maxSize），未缓存或无图片时返回null，不读取文件
+    public static Bitmap getCached(ChatMessage message, int maxSize) {
+        String key = cacheKey(message, maxSize);
+        return key == null ? null : cache.get(key);
+    }
+
+    // 在后台读取并解码缩略图，完成后通过handler回调，无图片或解码失败时回调null
+    public static void load(ChatMessage message, int maxSize, Handler handler, Callback callback) {
+        executor.execute(() -> {
+            Bitmap bitmap = read(message, maxSize);
+            handler.post(() -> callback.onLoaded(bitmap));
+        });
+    }
+
+    private static Bitmap read(ChatMessage message, int maxSize) {
+        String key = cacheKey(message, maxSize);
+        if(key == null)
+            return null;
+        Bitmap bitmap = cache.get(key);
+        if(bitmap != null)
+            return bitmap;
+        byte[] data;
+        String imageKey = message.getImageKey();
+        if(imageKey != null && ImageStore.contains(imageKey)) { // 已保存的图片只解码缩略图，尚未生成时先生成
+            ImageStore.ensureThumbnail(imageKey);
+            data = maxSize <= ImageStore.THUMB_SIZE ? ImageStore.readThumbnail(imageKey) : null;
+        } else { // 尚未保存的图片在内存中
+            data = message.readImageBytes();
+        }
+        bitmap = data == null ? null : decode(data, maxSize);
+        if(bitmap != null)
+            cache.put(key, bitmap);
+        return bitmap;
+    }
+
+    private static String cacheKey(ChatMessage message, int maxSize) {
+        Object ref = message.getImageRef();
+        if(ref == null)
+            return null;
+        return (message.getImageKey() != null ? message.getImageKey() : "@" + System.identityHashCode(ref)) + "#" + maxSize;
+    }
+
+    // 降采样解码，再缩放到maxSize x maxSize以内
+    public static Bitmap decode(byte[] data, int maxSize) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        int longSide = Math.max(options.outWidth, options.outHeight);
+        if(longSide <= 0)
+            return null;
+        int sampleSize = 1;
+        while(longSide / (sampleSize * 2) >= maxSize)
+            sampleSize *= 2;
+        options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        } catch (OutOfMemoryError e) {
+            Log.e("ImageThumbnailCache", "decode failed: " + e);
+            return null;
+        }
+        if(bitmap == null)
+            return null;
+        float scale = (float) maxSize / Math.max(bitmap.getWidth(), bitmap.getHeight());
+        if(scale < 1) {
+            Bitmap scaled = Bitmap.createScaledBitmap(bitmap, Math.max(1, Math.round(bitmap.getWidth() * scale)),
+                    Math.max(1, Math.round(bitmap.getHeight() * scale)), true);
+            if(scaled != bitmap)
+                bitmap.recycle();
+            bitmap = scaled;
+        }
+        return bitmap;
+    }
+}
@@ -12,10 +12,10 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Color;
 import android.graphics.Rect;
 import android.graphics.Typeface;
+import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.PaintDrawable;
 import android.net.Uri;
 import android.os.Bundle;
@@ -25,11 +25,12 @@ import android.provider.MediaStore;
 import android.provider.Settings;
 import android.speech.tts.TextToSpeech;
 import android.speech.tts.UtteranceProgressListener;
+import android.text.Editable;
 import android.text.Spannable;
 import android.text.SpannableString;
+import android.text.TextWatcher;
 import android.text.method.LinkMovementMethod;
 import android.text.style.ImageSpan;
-import android.util.Base64;
 import android.util.Log;
 import android.util.TypedValue;
 import android.view.Gravity;
@@ -60,15 +61,19 @@ import androidx.core.content.FileProvider;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.net.URLDecoder;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Future;
+import java.util.function.Function;
 
 import cn.hutool.json.JSONArray;
 import cn.hutool.json.JSONException;
@@ -102,6 +107,7 @@ public class MainActivity extends Activity {
     private int selectedTab = 0;
     private TextView tvGptReply;
     private EditText etUserInput;
+    private TextView tvTokenCount;
     private ImageButton btSend, btImage;
     private ScrollView svChatArea;
     private LinearLayout llChatList;
@@ -109,13 +115,14 @@ public class MainActivity extends Activity {
     private Handler handler;
     private MarkdownRenderer markdownRenderer;
     private long asrStartTime = 0;
+    private final Runnable tokenCountUpdater = this::updateTokenCount; // 输入停顿后再计算token数
     BroadcastReceiver localReceiver = null;
 
     private static boolean isAlive = false;
     private static boolean isRunning = false;
 
     ChatApiClient chatApiClient = null;
-    private String chatApiBuffer = "";
+    private StreamingReplyBuffer replyBuffer = null; // GPT回复缓冲区（网络线程写入，UI线程按10Hz取出渲染）
 
     private TextToSpeech tts = null;
     private boolean ttsEnabled = true;
@@ -127,6 +134,8 @@ public class MainActivity extends Activity {
     ChatManager chatManager = null;
     private Conversation currentConversation = null; // 当前会话信息
     private MessageList multiChatList = null; // 指向currentConversation.messages
+    private ConversationCompactor compactor = null; // 长对话压缩
+    private ImageCaptioner imageCaptioner = null; // 为较早的图片生成描述
 
     private boolean multiVoice = false;
 
@@ -135,10 +144,20 @@ public class MainActivity extends Activity {
     AsrClientBase asrClient = null;
     AsrClientBase.IAsrCallback asrCallback = null;
 
-    WebScraper webScraper = null;
+    WebScraperPool webScraperPool = null;
+    private final Map<String, WebScraperPool.Task> webPrefetches = new LinkedHashMap<>(); // 根据未接收完的函数参数提前加载的网页
+    private FunctionCallBatch functionCallBatch = null; // 正在执行的函数调用
+    private static final long FUNCTION_CALL_TIMEOUT = 30 * 1000; // 单个函数调用（网页加载）的最长等待时间
 
     Bitmap selectedImageBitmap = null;
     Uri photoUri = null;
+    private VisionImageEncoder.Result encodedImage = null; // selectedImageBitmap编码后的结果
+    private String encodedImageKey = null; // 编码时的模型和设置，改变后需重新编码
+    private Future<?> imageEncodeTask = null;
+    private Runnable pendingSend = null; // 等待图片编码完成后再发送的提问
+    private Future<?> imageIngestTask = null; // 正在后台读取的图片
+    private int imageIngestId = 0; // 用于忽略已被替换的读取结果
+    private AlertDialog imagePreviewDialog = null;
 
     @SuppressLint("ClickableViewAccessibility")
     @Override
@@ -208,6 +227,7 @@ public class MainActivity extends Activity {
         tvGptReply.setTextIsSelectable(true);
         tvGptReply.setMovementMethod(LinkMovementMethod.getInstance());
         etUserInput = findViewById(R.id.et_user_input);
+        tvTokenCount = findViewById(R.id.tv_token_count);
         btSend = findViewById(R.id.bt_send);
         btImage = findViewById(R.id.bt_image);
         svChatArea = findViewById(R.id.sv_chat_list);
@@ -227,24 +247,9 @@ public class MainActivity extends Activity {
                 if(type != null && type.startsWith("image/")) {
                     Uri imageUri = activityIntent.getParcelableExtra(Intent.EXTRA_STREAM); // 获取图片Uri
                     if(imageUri != null) {
-                        try {
-                            // 获取图片Bitmap并缩放
-                            Bitmap bitmap = (Bitmap) BitmapFactory.decodeStream(getContentResolver().openInputStream(imageUri));
-                            selectedImageBitmap = bitmap;
-                            if(GlobalDataHolder.getLimitVisionSize()) {
-                                if (bitmap.getWidth() < bitmap.getHeight())
-                                    selectedImageBitmap = resizeBitmap(bitmap, 512, 2048);
-                                else
-                                    selectedImageBitmap = resizeBitmap(bitmap, 2048, 512);
-                            } else {
-                                selectedImageBitmap = resizeBitmap(bitmap, 2048, 2048);
-                            }
-                            btImage.setImageResource(R.drawable.image_enabled);
-                            if(!GlobalUtils.checkVisionSupport(GlobalDataHolder.getGptModel()))
-                                Toast.makeText(this, R.string.toast_use_vision_model, Toast.LENGTH_LONG).show();
-                        } catch (FileNotFoundException e) {
-                            e.printStackTrace();
-                        }
+                        ingestImage(imageUri);
+                        if(!GlobalUtils.checkVisionSupport(GlobalDataHolder.getGptModel()))
+                            Toast.makeText(this, R.string.toast_use_vision_model, Toast.LENGTH_LONG).show();
                     }
                 } else if(type != null && type.equals("text/plain")) { // 分享文本
                     String text = activityIntent.getStringExtra(Intent.EXTRA_TEXT);
@@ -264,7 +269,41 @@ public class MainActivity extends Activity {
 //            conversation.messages.add(new ChatMessage(ChatRole.ASSISTANT).setText("你好，有什么可以帮您？" + i));
 //        }
 
-        webScraper = new WebScraper(this, findViewById(R.id.ll_main_base)); // 初始化网页抓取器
+        webScraperPool = new WebScraperPool(this, findViewById(R.id.ll_main_base)); // 初始化网页抓取器
+
+        // 初始化GPT回复缓冲区，限制最高渲染频率10Hz
+        replyBuffer = new StreamingReplyBuffer(handler, 100, reply -> {
+            boolean isBottom = svChatArea.getChildAt(0).getBottom()
+                    <= svChatArea.getHeight() + svChatArea.getScrollY(); // 判断消息布局是否在底部
+
+            markdownRenderer.render(tvGptReply, reply); // 渲染Markdown
+
+            if(isBottom){
+                scrollChatAreaToBottom(); // 渲染前在底部则渲染后滚动到底部
+            }
+
+            if(currentTemplateParams.getBool("speak", ttsEnabled)) { // 处理TTS
+                String wholeText = tvGptReply.getText().toString(); // 获取可朗读的文本
+                if(ttsSentenceEndIndex < wholeText.length()) {
+                    int nextSentenceEndIndex = wholeText.length();
+                    boolean found = false;
+                    for(String separator : ttsSentenceSeparator) { // 查找最后一个断句分隔符
+                        int index = wholeText.indexOf(separator, ttsSentenceEndIndex);
+                        if(index != -1 && index < nextSentenceEndIndex) {
+                            nextSentenceEndIndex = index + separator.length();
+                            found = true;
+                        }
+                    }
+                    if(found) { // 找到断句分隔符则添加到朗读队列
+                        String sentence = wholeText.substring(ttsSentenceEndIndex, nextSentenceEndIndex);
+                        ttsSentenceEndIndex = nextSentenceEndIndex;
+                        String id = UUID.randomUUID().toString();
+                        tts.speak(sentence, TextToSpeech.QUEUE_ADD, null, id);
+                        ttsLastId = id;
+                    }
+                }
+            }
+        });
 
         // 初始化GPT客户端
         chatApiClient = new ChatApiClient(this,
@@ -272,51 +311,19 @@ public class MainActivity extends Activity {
                 GlobalDataHolder.getGptApiKey(),
                 GlobalDataHolder.getGptModel(),
                 new ChatApiClient.OnReceiveListener() {
-                    private long lastRenderTime = 0;
-
                     @Override
                     public void onMsgReceive(String message) { // 收到GPT回复（增量）
-                        chatApiBuffer += message;
-                        handler.post(() -> {
-                            if(System.currentTimeMillis() - lastRenderTime > 100) { // 限制最高渲染频率10Hz
-                                boolean isBottom = svChatArea.getChildAt(0).getBottom()
-                                        <= svChatArea.getHeight() + svChatArea.getScrollY(); // 判断消息布局是否在底部
-
-                                markdownRenderer.render(tvGptReply, chatApiBuffer); // 渲染Markdown
-
-                                if(isBottom){
-                                    scrollChatAreaToBottom(); // 渲染前在底部则渲染后滚动到底部
-                                }
-                                lastRenderTime = System.currentTimeMillis();
-                            }
-
-                            if(currentTemplateParams.getBool("speak", ttsEnabled)) { // 处理TTS
-                                String wholeText = tvGptReply.getText().toString(); // 获取可朗读的文本
-                                if(ttsSentenceEndIndex < wholeText.length()) {
-                                    int nextSentenceEndIndex = wholeText.length();
-                                    boolean found = false;
-                                    for(String separator : ttsSentenceSeparator) { // 查找最后一个断句分隔符
-                                        int index = wholeText.indexOf(separator, ttsSentenceEndIndex);
-                                        if(index != -1 && index < nextSentenceEndIndex) {
-                                            nextSentenceEndIndex = index + separator.length();
-                                            found = true;
-                                        }
-                                    }
-                                    if(found) { // 找到断句分隔符则添加到朗读队列
-                                        String sentence = wholeText.substring(ttsSentenceEndIndex, nextSentenceEndIndex);
-                                        ttsSentenceEndIndex = nextSentenceEndIndex;
-                                        String id = UUID.randomUUID().toString();
-                                        tts.speak(sentence, TextToSpeech.QUEUE_ADD, null, id);
-                                        ttsLastId = id;
-                                    }
-                                }
-                            }
-                        });
+                        replyBuffer.append(message);
                     }
 
                     @Override
                     public void onFinished(boolean completed) { // GPT回复完成
                         handler.post(() -> {
+                            replyBuffer.cancelPendingFlush(); // 最终内容在此处统一渲染
+                            if(!completed)
+                                cancelPrefetch();
+                            Log.d("MainActivity", String.format("reply finished: %d deltas, %d renders", replyBuffer.getReceivedCount(), replyBuffer.getFlushCount()));
+                            String reply = replyBuffer.toString();
                             String referenceStr = "\n\n" + getString(R.string.text_ref_web_prefix);
                             int referenceCount = 0;
                             if(completed) { // 如果是完整回复则添加参考网页
@@ -324,21 +331,24 @@ public class MainActivity extends Activity {
                                 while(questionIndex >= 0 && multiChatList.get(questionIndex).role != ChatRole.USER) { // 找到上一个提问消息
                                     questionIndex--;
                                 }
+                                Set<String> referenceUrls = new LinkedHashSet<>();
                                 for(int i = questionIndex + 1; i < multiChatList.size(); i++) { // 依次检查函数调用，并获取网页URL
-                                    if(multiChatList.get(i).role == ChatRole.FUNCTION
-                                        && multiChatList.get(i-1).role == ChatRole.ASSISTANT
-                                        && multiChatList.get(i-1).functionName != null) {
-                                        String funcName = multiChatList.get(i-1).functionName;
-                                        String funcArgs = multiChatList.get(i-1).contentText;
-                                        if(funcName.equals("get_html_text")) {
-                                            String url = new JSONObject(funcArgs).getStr("url");
-                                            referenceStr += String.format("[[%s]](%s) ", ++referenceCount, url);
+                                    ChatMessage chat = multiChatList.get(i);
+                                    if(chat.role == ChatRole.ASSISTANT && "get_html_text".equals(chat.functionName)) {
+                                        try {
+                                            String url = new JSONObject(chat.contentText).getStr("url");
+                                            if(url != null)
+                                                referenceUrls.add(url);
+                                        } catch (JSONException e) {
+                                            e.printStackTrace();
                                         }
                                     }
                                 }
+                                for(String url : referenceUrls)
+                                    referenceStr += String.format("[[%s]](%s) ", ++referenceCount, url);
                             }
                             try {
-                                markdownRenderer.render(tvGptReply, chatApiBuffer); // 渲染Markdown
+                                markdownRenderer.render(tvGptReply, reply); // 渲染Markdown
                                 String ttsText = tvGptReply.getText().toString();
                                 if(currentTemplateParams.getBool("speak", ttsEnabled) && ttsText.length() > ttsSentenceEndIndex) { // 如果TTS开启则朗读剩余文本
                                     String id = UUID.randomUUID().toString();
@@ -346,11 +356,18 @@ public class MainActivity extends Activity {
                                     ttsLastId = id;
                                 }
                                 if(referenceCount > 0)
-                                    chatApiBuffer += referenceStr; // 添加参考网页
-                                multiChatList.add(new ChatMessage(ChatRole.ASSISTANT).setText(chatApiBuffer)); // 保存回复内容到聊天数据列表
+                                    reply += referenceStr; // 添加参考网页
+                                multiChatList.add(new ChatMessage(ChatRole.ASSISTANT).setText(reply)); // 保存回复内容到聊天数据列表
                                 ((LinearLayout) tvGptReply.getParent()).setTag(multiChatList.get(multiChatList.size() - 1)); // 绑定该聊天数据到布局
-                                markdownRenderer.render(tvGptReply, chatApiBuffer); // 再次渲染Markdown添加参考网页
+                                markdownRenderer.render(tvGptReply, reply); // 再次渲染Markdown添加参考网页
                                 btSend.setImageResource(R.drawable.send_btn);
+                                saveConversation(); // 每轮对话结束后保存，只写入新增的消息
+                                if(completed && currentTemplateParams.getBool("chat", multiChat) && GlobalDataHolder.getCompactHistory()) { // 对话过长时在后台压缩较早的消息
+                                    String compactModel = GlobalDataHolder.getCompactModel();
+                                    compactor.compactIfNeeded(currentConversation, chatApiClient,
+                                            compactModel.isEmpty() ? currentTemplateParams.getStr("model", GlobalDataHolder.getGptModel()) : compactModel);
+                                }
+                                postTokenCountUpdate();
                             } catch (Exception e) {
                                 e.printStackTrace();
                             }
@@ -360,6 +377,8 @@ public class MainActivity extends Activity {
                     @Override
                     public void onError(String message) {
                         handler.post(() -> {
+                            replyBuffer.cancelPendingFlush(); // 避免错误信息被未完成的渲染覆盖
+                            cancelPrefetch();
                             String errText = String.format(getString(R.string.text_gpt_error_prefix) + "%s", message);
                             if(tvGptReply != null){
                                 tvGptReply.setText(errText);
@@ -371,49 +390,37 @@ public class MainActivity extends Activity {
                     }
 
                     @Override
-                    public void onFunctionCall(String name, String arg) { // 收到函数调用请求
-                        Log.d("FunctionCall", String.format("%s: %s", name, arg));
-                        multiChatList.add(new ChatMessage(ChatRole.ASSISTANT).setFunction(name).setText(arg)); // 保存请求到聊天数据列表
-                        if (name.equals("get_html_text")) { // 调用联网函数
-                            try {
-                                JSONObject argJson = new JSONObject(arg);
-                                String url = argJson.getStr("url"); // 获取URL
-                                runOnUiThread(() -> {
-                                    markdownRenderer.render(tvGptReply, String.format(getString(R.string.text_visiting_web_prefix) + "[%s](%s)", URLDecoder.decode(url), url));
-                                    webScraper.load(url, new WebScraper.Callback() { // 抓取网页内容
-                                        @Override
-                                        public void onLoadResult(String result) {
-                                            postSendFunctionReply(name, result); // 返回网页内容给GPT
-//                                            Log.d("FunctionCall", String.format("Response: %s", result));
-                                        }
-
-                                        @Override
-                                        public void onLoadFail(String message) {
-                                            postSendFunctionReply(name, "Failed to get response of this url.");
-                                        }
-                                    });
-                                    Log.d("FunctionCall", String.format("Loading url: %s", url));
-                                });
-                            } catch (JSONException e) {
-                                e.printStackTrace();
-                                postSendFunctionReply(name, "Error when getting response.");
+                    public void onFunctionCall(List<ChatApiClient.FunctionCall> calls) { // 收到函数调用请求
+                        runOnUiThread(() -> {
+                            for(ChatApiClient.FunctionCall call : calls) { // 保存请求到聊天数据列表
+                                Log.d("FunctionCall", String.format("%s: %s", call.name, call.arguments));
+                                multiChatList.add(new ChatMessage(ChatRole.ASSISTANT).setFunction(call.name).setText(call.arguments).setToolCallId(call.id));
                             }
-                        } else if(name.equals("exit_voice_chat")){
-                            if(multiVoice)
-                                runOnUiThread(() -> findViewById(R.id.cv_voice_chat).performClick());
-                        } else {
-                            postSendFunctionReply(name, "Function not found.");
-                            Log.d("FunctionCall", String.format("Function not found: %s", name));
-                        }
+                            functionCallBatch = new FunctionCallBatch(calls);
+                            functionCallBatch.start();
+                        });
+                    }
+
+                    @Override
+                    public void onFunctionArgument(String name, String key, String value) { // 函数参数中的URL已接收完整，不等参数结束就开始加载网页
+                        if(name.equals("get_html_text") && key.equals("url"))
+                            runOnUiThread(() -> startPrefetch(value));
                     }
                 });
+        applyStreamSettings();
+        compactor = new ConversationCompactor(this, handler);
+        imageCaptioner = new ImageCaptioner(this, handler);
+        chatApiClient.getImageElision().setCaptionRequester(message -> { // 使用当前的识图模型生成描述
+            String model = chatApiClient.getModel();
+            handler.post(() -> imageCaptioner.request(message, model));
+        });
 
         // 发送按钮点击事件
         btSend.setOnClickListener(view -> {
             if (chatApiClient.isStreaming()) {
                 chatApiClient.stop();
-            }else if(webScraper.isLoading()){
-                webScraper.stopLoading();
+            }else if(webScraperPool.isLoading()){
+                cancelFunctionCalls();
                 if(tvGptReply != null)
                     tvGptReply.setText(R.string.text_cancel_web);
                 btSend.setImageResource(R.drawable.send_btn);
@@ -426,20 +433,23 @@ public class MainActivity extends Activity {
 
         // 图片选择按钮点击事件
         btImage.setOnClickListener(view -> {
-            if (selectedImageBitmap != null) { // 当前已选中图片，弹出预览窗口
+            if (selectedImageBitmap != null || imageIngestTask != null) { // 当前已选中图片，弹出预览窗口
                 AlertDialog.Builder builder = new AlertDialog.Builder(this);
                 LayoutInflater inflater = LayoutInflater.from(this);
                 View dialogView = inflater.inflate(R.layout.image_preview_dialog, null);
                 AlertDialog dialog = builder.create();
                 dialog.show();
                 dialog.getWindow().setContentView(dialogView);
-                ((ImageView) dialogView.findViewById(R.id.iv_image_preview)).setImageBitmap(selectedImageBitmap);
-                ((TextView) dialogView.findViewById(R.id.tv_image_preview_size)).setText(String.format("%s x %s", selectedImageBitmap.getWidth(), selectedImageBitmap.getHeight()));
+                dialog.setOnDismissListener(dialogInterface -> {
+                    if(imagePreviewDialog == dialog)
+                        imagePreviewDialog = null;
+                });
+                imagePreviewDialog = dialog;
+                updateImagePreview();
                 dialogView.findViewById(R.id.bt_image_preview_cancel).setOnClickListener(view1 -> dialog.dismiss());
                 dialogView.findViewById(R.id.bt_image_preview_del).setOnClickListener(view1 -> { // 移除当前选择的图片
                     dialog.dismiss();
-                    selectedImageBitmap = null;
-                    btImage.setImageResource(R.drawable.image);
+                    clearSelectedImage();
                 });
                 dialogView.findViewById(R.id.bt_image_preview_reselect).setOnClickListener(view1 -> { // 重新选择图片
                     dialogView.findViewById(R.id.bt_image_preview_del).performClick();
@@ -482,6 +492,20 @@ public class MainActivity extends Activity {
             return true;
         });
 
+        // 输入内容变化时更新token数
+        etUserInput.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence charSequence, int i, int i1, int i2) { }
+
+            @Override
+            public void onTextChanged(CharSequence charSequence, int i, int i1, int i2) { }
+
+            @Override
+            public void afterTextChanged(Editable editable) {
+                postTokenCountUpdate();
+            }
+        });
+
         etUserInput.setOnTouchListener((view, motionEvent) -> {
             if(motionEvent.getAction() == MotionEvent.ACTION_UP){
                 if("recording".equals(view.getTag())){
@@ -509,13 +533,14 @@ public class MainActivity extends Activity {
         (findViewById(R.id.cv_new_chat)).setOnClickListener(view -> {
             clearChatListView();
 
-            if(currentConversation != null &&
-                    ((multiChatList.size() > 0 && multiChatList.get(0).role != ChatRole.SYSTEM) || (multiChatList.size() > 1 && multiChatList.get(0).role == ChatRole.SYSTEM)) &&
-                    GlobalDataHolder.getAutoSaveHistory()) // 包含有效对话则保存当前对话
-                chatManager.addConversation(currentConversation);
+            saveConversation();
 
+            compactor.cancel();
+            imageCaptioner.cancel();
             currentConversation = new Conversation();
             multiChatList = currentConversation.messages;
+            chatApiClient.clearPromptCache();
+            postTokenCountUpdate();
         });
 
         View menuView = LayoutInflater.from(this).inflate(R.layout.main_popup_menu, null);
@@ -752,6 +777,7 @@ public class MainActivity extends Activity {
 
             // 更新GPT客户端相关设置
             chatApiClient.setApiInfo(GlobalDataHolder.getGptApiHost(), GlobalDataHolder.getGptApiKey());
+            applyStreamSettings();
             chatApiClient.setModel(currentTemplateParams.getStr("model", GlobalDataHolder.getGptModel()));
 
             // 更新所使用的语音识别接口
@@ -773,30 +799,18 @@ public class MainActivity extends Activity {
             setNetworkEnabled(currentTemplateParams.getBool("network", GlobalDataHolder.getEnableInternetAccess())); // 更新GPT联网设置
         } else if((requestCode == 1 || requestCode == 2) && resultCode == RESULT_OK) { // 从相册或相机返回
             Uri uri = requestCode == 1 ? photoUri : data.getData(); // 获取图片Uri
-            try {
-                // 获取Bitmap并缩放
-                Bitmap bitmap = (Bitmap) BitmapFactory.decodeStream(getContentResolver().openInputStream(uri));
-                selectedImageBitmap = bitmap;
-                if(GlobalDataHolder.getLimitVisionSize()) {
-                    if (bitmap.getWidth() < bitmap.getHeight())
-                        selectedImageBitmap = resizeBitmap(bitmap, 512, 2048);
-                    else
-                        selectedImageBitmap = resizeBitmap(bitmap, 2048, 512);
-                } else {
-                    selectedImageBitmap = resizeBitmap(bitmap, 2048, 2048);
-                }
-                btImage.setImageResource(R.drawable.image_enabled); // 高亮显示图片按钮
-            } catch (FileNotFoundException e) {
-                e.printStackTrace();
-            }
+            ingestImage(uri);
         } else if(requestCode == 3 && resultCode == RESULT_OK) { // 从聊天历史界面返回
             if(data.hasExtra("id")) {
                 long id = data.getLongExtra("id", -1);
                 Log.d("MainActivity", "onActivityResult 3: id=" + id);
-                Conversation conversation = chatManager.getConversation(id);
-                chatManager.removeConversation(id);
-                conversation.updateTime();
-                reloadConversation(conversation);
+                saveConversation(); // 先保存当前对话再读取，打开的可能是同一个会话（读取在保存写入后执行）
+                chatManager.loadConversation(id, handler, conversation -> {
+                    if(conversation == null || !isAlive)
+                        return;
+                    conversation.updateTime(); // 保存时更新时间，使其排在历史记录的最前面
+                    reloadConversation(conversation);
+                });
             }
         }
     }
@@ -986,14 +1000,19 @@ public class MainActivity extends Activity {
         currentTemplateParams = GlobalDataHolder.getTabDataList().get(selectedTab).parseParams();
         Log.d("MainActivity", "switch template: params=" + currentTemplateParams);
         chatApiClient.setModel(currentTemplateParams.getStr("model", GlobalDataHolder.getGptModel()));
+        chatApiClient.setResponseCaching(currentTemplateParams.getBool("cache", false));
+        ImageElisionPolicy.Mode imageMode = ImageElisionPolicy.Mode.fromName(currentTemplateParams.getStr("images", ""));
+        chatApiClient.getImageElision().setPolicy(imageMode != null ? imageMode : ImageElisionPolicy.DEFAULT_MODE,
+                currentTemplateParams.getInt("imageturns", ImageElisionPolicy.DEFAULT_FULL_TURNS)); // 历史图片的发送策略
         setNetworkEnabled(currentTemplateParams.getBool("network", GlobalDataHolder.getEnableInternetAccess()));
         updateTabListView();
         updateTemplateParamsView();
         updateImageButtonVisible();
+        postTokenCountUpdate();
     }
 
-    // 添加一条聊天记录到聊天列表布局
-    private LinearLayout addChatView(ChatRole role, String content, String imageBase64) {
+    // 添加一条聊天记录到聊天列表布局，imageSource为图片所在的消息（可为null）
+    private LinearLayout addChatView(ChatRole role, String content, ChatMessage imageSource) {
         ViewGroup.MarginLayoutParams iconParams = new ViewGroup.MarginLayoutParams(dpToPx(30), dpToPx(30)); // 头像布局参数
         iconParams.setMargins(dpToPx(4), dpToPx(12), dpToPx(4), dpToPx(12));
 
@@ -1018,13 +1037,24 @@ public class MainActivity extends Activity {
         TextView tvContent = new TextView(this); // 设置内容
         SpannableString spannableString = null;
         if(role == ChatRole.USER) {
-            if (imageBase64 != null) { // 如有图片则在末尾添加ImageSpan
+            if (imageSource != null && imageSource.getImageRef() != null) { // 如有图片则在末尾添加ImageSpan
                 spannableString = new SpannableString(content + "\n ");
-                Bitmap bitmap = base64ToBitmap(imageBase64);
-                int maxSize = dpToPx(120);
-                bitmap = resizeBitmap(bitmap, maxSize, maxSize);
-                ImageSpan imageSpan = new ImageSpan(this, bitmap);
-                spannableString.setSpan(imageSpan, content.length() + 1, content.length() + 2, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+                Bitmap image = ImageThumbnailCache.getCached(imageSource, dpToPx(120));
+                if (image != null) {
+                    spannableString.setSpan(new ImageSpan(this, image), content.length() + 1, content.length() + 2, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+                } else { // 缩略图在后台解码，完成前显示占位
+                    ColorDrawable placeholder = new ColorDrawable(Color.parseColor("#10000000"));
+                    placeholder.setBounds(0, 0, dpToPx(120), dpToPx(120));
+                    ImageSpan placeholderSpan = new ImageSpan(placeholder);
+                    spannableString.setSpan(placeholderSpan, content.length() + 1, content.length() + 2, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+                    SpannableString text = spannableString;
+                    ImageThumbnailCache.load(imageSource, dpToPx(120), handler, bitmap -> {
+                        text.removeSpan(placeholderSpan);
+                        if (bitmap != null)
+                            text.setSpan(new ImageSpan(this, bitmap), content.length() + 1, content.length() + 2, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+                        tvContent.setText(text);
+                    });
+                }
             } else {
                 spannableString = new SpannableString(content);
             }
@@ -1055,10 +1085,12 @@ public class MainActivity extends Activity {
             ChatMessage chat = (ChatMessage) llOuter.getTag(); // 获取布局上绑定的聊天记录数据
             if(chat != null) {
                 int index = multiChatList.indexOf(chat);
-                multiChatList.remove(chat);
+                if(index >= 0)
+                    currentConversation.removeMessage(index, false); // 删除已压缩的消息时摘要失效
+                chatApiClient.invalidatePrompt(chat);
                 while(--index > 0 && (multiChatList.get(index).role == ChatRole.FUNCTION
                         || multiChatList.get(index).functionName != null && multiChatList.get(index).functionName.equals("get_html_text"))) // 将上方联网数据也删除
-                    multiChatList.remove(index);
+                    chatApiClient.invalidatePrompt(currentConversation.removeMessage(index, false));
             }
             if(tvContent == tvGptReply) { // 删除的是GPT正在回复的消息框，停止回复和TTS
                 if(chatApiClient.isStreaming())
@@ -1090,14 +1122,12 @@ public class MainActivity extends Activity {
                 popupWindow.dismiss();
                 ChatMessage chat = (ChatMessage) llOuter.getTag(); // 获取布局上绑定的聊天记录数据
                 String text = chat.contentText;
-                if(chat.contentImageBase64 != null) { // 若含有图片则设置为选中的图片
+                if(chat.hasImage()) { // 若含有图片则设置为选中的图片
                     if(text.endsWith("\n "))
                         text = text.substring(0, text.length() - 2);
-                    selectedImageBitmap = base64ToBitmap(chat.contentImageBase64);
-                    btImage.setImageResource(R.drawable.image_enabled);
+                    ingestImage(chat); // 在后台读取图片
                 } else {
-                    selectedImageBitmap = null;
-                    btImage.setImageResource(R.drawable.image);
+                    clearSelectedImage();
                 }
                 etUserInput.setText(text); // 添加文本内容到输入框
                 cvDelBelow.performClick(); // 删除下方所有对话
@@ -1110,15 +1140,15 @@ public class MainActivity extends Activity {
                 popupWindow.dismiss();
                 ChatMessage chat = (ChatMessage) llOuter.getTag(); // 获取布局上绑定的聊天记录数据
                 String text = chat.contentText;
-                if(chat.contentImageBase64 != null) { // 若含有图片则设置为选中的图片
+                if(chat.hasImage()) { // 若含有图片则设置为选中的图片
                     if(text.endsWith("\n "))
                         text = text.substring(0, text.length() - 2);
-                    selectedImageBitmap = base64ToBitmap(chat.contentImageBase64);
+                    ingestImage(chat); // 在后台读取图片
                 } else {
-                    selectedImageBitmap = null;
+                    clearSelectedImage();
                 }
                 cvDelBelow.performClick(); // 删除下方所有对话
-                sendQuestion(text); // 重新发送问题
+                sendQuestion(text, false); // 重新发送问题（不使用缓存的回复）
             });
             llPopup.addView(cvRetry);
         }
@@ -1155,6 +1185,25 @@ public class MainActivity extends Activity {
 
     // 发送一个提问，input为null时则从输入框获取
     private void sendQuestion(String input){
+        sendQuestion(input, true);
+    }
+
+    // allowCache为false时忽略模板的回复缓存，重新请求
+    private void sendQuestion(String input, boolean allowCache){
+        sendQuestion(input, (input == null) ? etUserInput.getText().toString() : input, allowCache);
+    }
+
+    // userInput为提问文本，input为null表示由用户输入触发
+    private void sendQuestion(String input, String userInput, boolean allowCache){
+        if(imageIngestTask != null || (selectedImageBitmap != null && (encodedImage == null || !imageEncodeKey().equals(encodedImageKey)))) { // 图片尚未读取或编码完成，完成后再发送
+            if(pendingSend != null)
+                return;
+            if(selectedImageBitmap != null && (imageEncodeTask == null || !imageEncodeKey().equals(encodedImageKey)))
+                startImageEncoding();
+            pendingSend = () -> sendQuestion(input, userInput, allowCache);
+            return;
+        }
+
         boolean isMultiChat = currentTemplateParams.getBool("chat", multiChat);
 
         if(!isMultiChat) { // 若为单次对话模式则新建一个聊天
@@ -1162,7 +1211,6 @@ public class MainActivity extends Activity {
         }
 
         // 处理提问文本内容
-        String userInput = (input == null) ? etUserInput.getText().toString() : input;
         if(multiChatList.size() == 0 && input == null) { // 由用户输入触发的第一次对话需要添加模板内容
             PromptTabData tabData = GlobalDataHolder.getTabDataList().get(selectedTab);
             String template = tabData.getFormattedPrompt(getTemplateParamsFromView());
@@ -1184,11 +1232,7 @@ public class MainActivity extends Activity {
         }
 
         if(selectedImageBitmap != null) { // 若有选中的图片则添加到聊天记录数据中
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            selectedImageBitmap.compress(Bitmap.CompressFormat.JPEG, 100, baos);
-            byte[] bytes = baos.toByteArray();
-            String base64 = Base64.encodeToString(bytes, Base64.NO_WRAP);
-            multiChatList.get(multiChatList.size() - 1).setImage(base64);
+            multiChatList.get(multiChatList.size() - 1).setImage(encodedImage.base64);
         }
 
         if(llChatList.getChildCount() > 0 && llChatList.getChildAt(0) instanceof TextView) { // 若有占位TextView则删除
@@ -1200,7 +1244,7 @@ public class MainActivity extends Activity {
             TextView tvFirst = (TextView) llFirst.getChildAt(1);
             ChatMessage firstChat = (ChatMessage) llFirst.getTag();
             if(firstChat.role == ChatRole.USER) {
-                if (firstChat.contentImageBase64 != null && tvFirst.getText().toString().endsWith("\n ")) { // 若有附加图片则也要一并添加
+                if (firstChat.getImageRef() != null && tvFirst.getText().toString().endsWith("\n ")) { // 若有附加图片则也要一并添加
                     SpannableString oldText = (SpannableString) tvFirst.getText();
                     ImageSpan imgSpan = oldText.getSpans(oldText.length() - 1, oldText.length(), ImageSpan.class)[0];
                     SpannableString newText = new SpannableString(firstChat.contentText + "\n ");
@@ -1216,10 +1260,10 @@ public class MainActivity extends Activity {
             for (int i = 0; i < multiChatList.size(); i++) {
                 ChatMessage chatItem = multiChatList.get(i);
                 if (chatItem.role == ChatRole.FUNCTION) {
-                    multiChatList.remove(i);
+                    currentConversation.removeMessage(i, true);
                     i--;
                     if(i > 0 && multiChatList.get(i).role == ChatRole.ASSISTANT) { // 也要删除调用Function的Assistant记录
-                        multiChatList.remove(i);
+                        currentConversation.removeMessage(i, true);
                         i--;
                     }
                 }
@@ -1227,7 +1271,7 @@ public class MainActivity extends Activity {
         }
 
         // 添加对话布局
-        LinearLayout llInput = addChatView(ChatRole.USER, isMultiChat ? multiChatList.get(multiChatList.size() - 1).contentText : userInput, multiChatList.get(multiChatList.size() - 1).contentImageBase64);
+        LinearLayout llInput = addChatView(ChatRole.USER, isMultiChat ? multiChatList.get(multiChatList.size() - 1).contentText : userInput, multiChatList.get(multiChatList.size() - 1));
         LinearLayout llReply = addChatView(ChatRole.ASSISTANT, getString(R.string.text_waiting_reply), null);
 
         llInput.setTag(multiChatList.get(multiChatList.size() - 1)); // 将对话数据绑定到布局上
@@ -1236,24 +1280,321 @@ public class MainActivity extends Activity {
 
         scrollChatAreaToBottom();
 
-        chatApiBuffer = "";
+        replyBuffer.clear();
         ttsSentenceEndIndex = 0;
-        chatApiClient.sendPromptList(multiChatList);
+        chatApiClient.sendPromptList(getPromptList(), allowCache);
 //        markdownRenderer.render(tvGptReply, etUserInput.getText().toString());
-        btImage.setImageResource(R.drawable.image);
-        selectedImageBitmap = null;
+        clearSelectedImage();
         btSend.setImageResource(R.drawable.cancel_btn);
+        postTokenCountUpdate();
+    }
+
+    // 当前提问使用的模型
+    private String currentModel() {
+        return chatApiClient != null ? chatApiClient.getModel() : GlobalDataHolder.getGptModel();
+    }
+
+    // 编码图片所用的模型和设置
+    private String imageEncodeKey() {
+        return currentModel() + "|" + GlobalDataHolder.getLimitVisionSize() + "|" + GlobalDataHolder.getVisionMaxKb();
+    }
+
+    // 在后台编码选中的图片，选中图片后即开始，发送时通常已编码完成
+    private void startImageEncoding() {
+        if(imageEncodeTask != null)
+            imageEncodeTask.cancel(true);
+        encodedImage = null;
+        Bitmap bitmap = selectedImageBitmap;
+        String key = imageEncodeKey();
+        encodedImageKey = key;
+        imageEncodeTask = VisionImageEncoder.encodeAsync(bitmap, currentModel(), handler, result -> {
+            if(bitmap != selectedImageBitmap || !key.equals(encodedImageKey)) // 图片已更换
+                return;
+            imageEncodeTask = null;
+            encodedImage = result;
+            updateImagePreview();
+            if(pendingSend != null) {
+                Runnable send = pendingSend;
+                pendingSend = null;
+                send.run();
+            }
+        });
+    }
+
+    // 清除编码结果，若有等待图片的提问则直接发送
+    private void clearEncodedImage() {
+        if(imageEncodeTask != null)
+            imageEncodeTask.cancel(true);
+        imageEncodeTask = null;
+        encodedImage = null;
+        encodedImageKey = null;
+        if(pendingSend != null && selectedImageBitmap == null && imageIngestTask == null) {
+            Runnable send = pendingSend;
+            pendingSend = null;
+            send.run();
+        }
+    }
+
+    // 在后台读取选中的图片，读取完成前图片按钮半透明显示，预览窗口显示占位
+    private void ingestImage(Uri uri) {
+        ingestImage(callback -> ImageIngestor.load(this, uri, 2048, handler, callback)); // 按模型进一步缩放在编码时进行
+    }
+
+    // 在后台读取已发送消息中的图片作为选中的图片
+    private void ingestImage(ChatMessage chat) {
+        ingestImage(callback -> ImageIngestor.load(chat, 2048, handler, callback));
+    }
+
+    private void ingestImage(Function<ImageIngestor.Callback, Future<?>> loader) {
+        if(imageIngestTask != null)
+            imageIngestTask.cancel(true);
+        int id = ++imageIngestId;
+        selectedImageBitmap = null;
+        imageIngestTask = loader.apply(new ImageIngestor.Callback() {
+            @Override
+            public void onLoadResult(Bitmap bitmap) {
+                if(id != imageIngestId)
+                    return;
+                imageIngestTask = null;
+                setSelectedImage(bitmap);
+            }
+
+            @Override
+            public void onLoadFail(String message) {
+                if(id != imageIngestId)
+                    return;
+                imageIngestTask = null;
+                if(imagePreviewDialog != null)
+                    imagePreviewDialog.dismiss();
+                clearSelectedImage();
+                Toast.makeText(MainActivity.this, R.string.toast_image_load_fail, Toast.LENGTH_SHORT).show();
+            }
+        });
+        clearEncodedImage();
+        btImage.setImageResource(R.drawable.image_enabled);
+        btImage.setAlpha(0.5f);
+        updateImagePreview();
+    }
+
+    // 设置选中的图片并开始编码
+    private void setSelectedImage(Bitmap bitmap) {
+        if(imageIngestTask != null) {
+            imageIngestTask.cancel(true);
+            imageIngestTask = null;
+            imageIngestId++;
+        }
+        selectedImageBitmap = bitmap;
+        startImageEncoding();
+        btImage.setImageResource(R.drawable.image_enabled); // 高亮显示图片按钮
+        btImage.setAlpha(1f);
+        updateImagePreview();
+    }
+
+    // 移除选中的图片
+    private void clearSelectedImage() {
+        if(imageIngestTask != null) {
+            imageIngestTask.cancel(true);
+            imageIngestTask = null;
+            imageIngestId++;
+        }
+        selectedImageBitmap = null;
+        clearEncodedImage();
+        btImage.setImageResource(R.drawable.image);
+        btImage.setAlpha(1f);
+    }
+
+    // 更新图片预览窗口，图片读取完成前显示占位
+    private void updateImagePreview() {
+        if(imagePreviewDialog == null)
+            return;
+        ImageView ivPreview = imagePreviewDialog.findViewById(R.id.iv_image_preview);
+        TextView tvSize = imagePreviewDialog.findViewById(R.id.tv_image_preview_size);
+        if(selectedImageBitmap == null) {
+            ivPreview.setImageResource(R.drawable.image);
+            tvSize.setText(R.string.img_preview_loading);
+        } else {
+            ivPreview.setImageBitmap(selectedImageBitmap);
+            if(encodedImage != null) // 显示实际发送的分辨率和大小
+                tvSize.setText(String.format(Locale.US, "%d x %d | %s %.1fKB | %dms",
+                        encodedImage.width, encodedImage.height, encodedImage.mimeType.replace("image/", "").toUpperCase(),
+                        encodedImage.byteCount / 1024f, encodedImage.encodeTime));
+            else
+                tvSize.setText(String.format("%s x %s", selectedImageBitmap.getWidth(), selectedImageBitmap.getHeight()));
+        }
+    }
+
+    // 一次回复中的所有函数调用，同时执行，全部完成（或超时）后将结果一并发送给GPT
+    private class FunctionCallBatch {
+        final List<ChatApiClient.FunctionCall> calls;
+        final String[] results;
+        final List<WebScraperPool.Task> tasks = new ArrayList<>();
+        final List<Runnable> timeouts = new ArrayList<>();
+        int remaining;
+        boolean needReply = false; // 仅有exit_voice_chat时无需回复
+        boolean finished = false;
+
+        FunctionCallBatch(List<ChatApiClient.FunctionCall> calls) {
+            this.calls = calls;
+            this.results = new String[calls.size()];
+            this.remaining = calls.size();
+        }
+
+        void start() {
+            List<String> urls = new ArrayList<>();
+            for(int i = 0; i < calls.size() && !finished; i++) {
+                ChatApiClient.FunctionCall call = calls.get(i);
+                int index = i;
+                if(call.name.equals("get_html_text")) { // 调用联网函数
+                    needReply = true;
+                    String url;
+                    try {
+                        url = new JSONObject(call.arguments).getStr("url"); // 获取URL
+                    } catch (JSONException e) {
+                        e.printStackTrace();
+                        complete(index, "Error when getting response.");
+                        continue;
+                    }
+                    if(url == null) {
+                        complete(index, "Error when getting response.");
+                        continue;
+                    }
+                    urls.add(url);
+                    WebScraperPool.Task task = webPrefetches.remove(url); // 已提前开始加载则复用
+                    if(task == null)
+                        task = webScraperPool.load(url, null);
+                    else
+                        Log.d("FunctionCall", String.format("Reusing prefetch: %s", url));
+                    tasks.add(task);
+                    WebScraperPool.Task loadTask = task;
+                    Runnable timeout = () -> { // 超时则放弃该网页，不影响其他调用
+                        loadTask.cancel();
+                        complete(index, "Timeout when getting response of this url.");
+                    };
+                    timeouts.add(timeout);
+                    handler.postDelayed(timeout, FUNCTION_CALL_TIMEOUT);
+                    task.setCallback(new WebScraper.Callback() { // 抓取网页内容
+                        @Override
+                        public void onLoadResult(String result) {
+                            complete(index, result);
+                        }
+
+                        @Override
+                        public void onLoadFail(String message) {
+                            complete(index, "Failed to get response of this url.");
+                        }
+                    });
+                } else if(call.name.equals("exit_voice_chat")) {
+                    if(multiVoice)
+                        findViewById(R.id.cv_voice_chat).performClick();
+                    complete(index, "OK");
+                } else {
+                    needReply = true;
+                    Log.d("FunctionCall", String.format("Function not found: %s", call.name));
+                    complete(index, "Function not found.");
+                }
+            }
+            cancelPrefetch(); // 未被使用的提前加载
+            if(!urls.isEmpty() && !finished) {
+                StringBuilder links = new StringBuilder(getString(R.string.text_visiting_web_prefix));
+                for(String url : urls)
+                    links.append(String.format("[%s](%s) ", URLDecoder.decode(url), url));
+                markdownRenderer.render(tvGptReply, links.toString());
+            }
+        }
+
+        void complete(int index, String result) {
+            if(finished || results[index] != null)
+                return;
+            results[index] = result;
+            if(--remaining > 0)
+                return;
+            finished = true;
+            clearTimeouts();
+            if(functionCallBatch == this)
+                functionCallBatch = null;
+            if(!needReply)
+                return;
+            for(int i = 0; i < calls.size(); i++) // 所有结果在同一次请求中返回给GPT
+                multiChatList.add(new ChatMessage(ChatRole.FUNCTION).setFunction(calls.get(i).name).setText(results[i]).setToolCallId(calls.get(i).id));
+            postSendFunctionReply();
+        }
+
+        void cancel() {
+            finished = true;
+            clearTimeouts();
+            for(WebScraperPool.Task task : tasks)
+                task.cancel();
+        }
+
+        private void clearTimeouts() {
+            for(Runnable timeout : timeouts)
+                handler.removeCallbacks(timeout);
+        }
+    }
+
+    // 提前加载函数参数中的网页，函数调用确认后由FunctionCallBatch复用或取消
+    private void startPrefetch(String url) {
+        if(webPrefetches.containsKey(url) || !chatApiClient.isStreaming()) // 已在加载，或请求已结束
+            return;
+        Log.d("FunctionCall", String.format("Prefetching url: %s", url));
+        webPrefetches.put(url, webScraperPool.load(url, null));
+        StringBuilder links = new StringBuilder(getString(R.string.text_visiting_web_prefix));
+        for(String prefetchUrl : webPrefetches.keySet())
+            links.append(String.format("[%s](%s) ", URLDecoder.decode(prefetchUrl), prefetchUrl));
+        markdownRenderer.render(tvGptReply, links.toString());
+    }
+
+    // 放弃提前加载的网页
+    private void cancelPrefetch() {
+        for(WebScraperPool.Task task : webPrefetches.values())
+            task.cancel();
+        webPrefetches.clear();
+    }
+
+    // 停止所有函数调用及网页加载
+    private void cancelFunctionCalls() {
+        if(functionCallBatch != null) {
+            functionCallBatch.cancel();
+            functionCallBatch = null;
+        }
+        cancelPrefetch();
+        webScraperPool.stopAll();
     }
 
     // 向GPT返回Function结果
-    private void postSendFunctionReply(String funcName, String reply) {
+    private void postSendFunctionReply() {
         handler.post(() -> {
-            Log.d("FunctionCall", "postSendFunctionReply: " + funcName);
-            multiChatList.add(new ChatMessage(ChatRole.FUNCTION).setFunction(funcName).setText(reply));
-            chatApiClient.sendPromptList(multiChatList);
+            Log.d("FunctionCall", "postSendFunctionReply");
+            chatApiClient.sendPromptList(getPromptList());
         });
     }
 
+    // 发送给GPT的消息列表，开启长对话压缩时较早的消息由摘要代替
+    private List<ChatMessage> getPromptList() {
+        return GlobalDataHolder.getCompactHistory() ? compactor.buildPromptList(currentConversation) : multiChatList;
+    }
+
+    private void postTokenCountUpdate() {
+        handler.removeCallbacks(tokenCountUpdater);
+        handler.postDelayed(tokenCountUpdater, 300);
+    }
+
+    // 更新输入框旁显示的token数，连续对话时包含历史消息，超出模型上下文长度时标红
+    private void updateTokenCount() {
+        if(chatApiClient == null || multiChatList == null || currentTemplateParams == null)
+            return;
+        String input = etUserInput.getText().toString();
+        List<ChatMessage> history = currentTemplateParams.getBool("chat", multiChat) ? getPromptList() : new ArrayList<>();
+        if(input.isEmpty() && history.isEmpty()) {
+            tvTokenCount.setVisibility(View.GONE);
+            return;
+        }
+        int tokens = chatApiClient.countPromptTokens(history, input);
+        tvTokenCount.setText(String.format(getString(R.string.format_token_count), tokens));
+        tvTokenCount.setTextColor(Color.parseColor(tokens > chatApiClient.getPromptBudget() ? "#D32F2F" : "#838383"));
+        tvTokenCount.setVisibility(View.VISIBLE);
+    }
+
     // 将聊天记录恢复到界面上
     private void reloadConversation(Conversation conversation) {
         (findViewById(R.id.cv_new_chat)).performClick(); // 新建一个聊天
@@ -1264,7 +1605,7 @@ public class MainActivity extends Activity {
         llChatList.removeViewAt(0); // 删除占位TextView
         for(ChatMessage chatItem : multiChatList) { // 依次添加对话布局
             if(chatItem.role == ChatRole.USER || (chatItem.role == ChatRole.ASSISTANT && chatItem.functionName == null)) {
-                LinearLayout llChatItem = addChatView(chatItem.role, chatItem.contentText, chatItem.contentImageBase64);
+                LinearLayout llChatItem = addChatView(chatItem.role, chatItem.contentText, chatItem); // 缩略图在后台按需解码
                 llChatItem.setTag(chatItem);
             }
         }
@@ -1288,25 +1629,27 @@ public class MainActivity extends Activity {
         llChatList.addView(tv);
     }
 
-    // 转换dp为px
-    private int dpToPx(int dp) {
-        return (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, dp, getResources().getDisplayMetrics());
+    // 包含有效对话时保存当前对话
+    private void saveConversation() {
+        if(currentConversation != null &&
+                ((multiChatList.size() > 0 && multiChatList.get(0).role != ChatRole.SYSTEM) || (multiChatList.size() > 1 && multiChatList.get(0).role == ChatRole.SYSTEM)) &&
+                GlobalDataHolder.getAutoSaveHistory())
+            chatManager.saveConversation(currentConversation);
     }
 
-    // 等比缩放Bitmap到给定的尺寸范围内
-    private Bitmap resizeBitmap(Bitmap bitmap, int maxWidth, int maxHeight) {
-        int width = bitmap.getWidth();
-        int height = bitmap.getHeight();
-        float scale = 1;
-        if(width > maxWidth || height > maxHeight)
-            scale = Math.min((float)maxWidth / width, (float)maxHeight / height);
-        return Bitmap.createScaledBitmap(bitmap, (int)(width * scale), (int)(height * scale), true);
+    // 将设置中的请求选项（对冲、卡住检测、重试、继续回复、usage、函数参数格式）应用到对话客户端
+    private void applyStreamSettings() {
+        chatApiClient.setHedging(GlobalDataHolder.getGptHedgeRequests());
+        chatApiClient.setStallTimeout(ChatApiClient.DEFAULT_FIRST_TOKEN_TIMEOUT, GlobalDataHolder.getGptStallTimeout() * 1000L);
+        chatApiClient.setRetryPolicy(GlobalDataHolder.getGptMaxRetries(), ChatApiClient.DEFAULT_RETRY_BASE_DELAY, ChatApiClient.DEFAULT_RETRY_MAX_DELAY);
+        chatApiClient.setResumePartialReply(GlobalDataHolder.getGptResumePartialReply());
+        chatApiClient.setStreamUsage(GlobalDataHolder.getGptStreamUsage());
+        chatApiClient.setLegacyFunctions(GlobalDataHolder.getGptLegacyFunctions());
     }
 
-    // 将Base64编码转换为Bitmap
-    private Bitmap base64ToBitmap(String base64) {
-        byte[] bytes = Base64.decode(base64, Base64.NO_WRAP);
-        return BitmapFactory.decodeByteArray(bytes, 0, bytes.length);
+    // 转换dp为px
+    private int dpToPx(int dp) {
+        return (int) TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_DIP, dp, getResources().getDisplayMetrics());
     }
 
     // onDestroy->false onCreate->true
@@ -1346,6 +1689,7 @@ public class MainActivity extends Activity {
         super.onResume();
         isRunning = true;
         Log.d("main activity", "back to main activity");
+        ConnectionWarmer.prewarm(GlobalDataHolder.getGptApiHost()); // 预先连接API服务器
     }
 
     @Override
@@ -1362,12 +1706,10 @@ public class MainActivity extends Activity {
         asrClient.destroy();
         tts.stop();
         tts.shutdown();
-        webScraper.destroy();
-        if(((multiChatList.size() > 0 && multiChatList.get(0).role != ChatRole.SYSTEM) || (multiChatList.size() > 1 && multiChatList.get(0).role == ChatRole.SYSTEM)) &&
-                GlobalDataHolder.getAutoSaveHistory()) // 包含有效对话则保存当前对话
-            chatManager.addConversation(currentConversation);
+        webScraperPool.destroy();
+        saveConversation();
         chatManager.removeEmptyConversations();
-        chatManager.destroy();
+        chatManager.destroy(); // 短暂等待保存写入数据库
         super.onDestroy();
     }
 
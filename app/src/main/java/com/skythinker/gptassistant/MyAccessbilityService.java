@@ -76,6 +76,7 @@ public class MyAccessbilityService extends AccessibilityService {
                 isPressing = true;
                 handler.postDelayed(() -> { // 等待长按时间后进行长按判定
                     if(isPressing) { // 长按时间后仍然处于按下状态，判定为一次长按
+                        ConnectionWarmer.prewarm(this); // 在语音识别的同时预先连接API服务器
                         if(!MainActivity.isAlive() || !MainActivity.isRunning()) { // 主活动未运行则唤起
                             Intent intent = new Intent(this, MainActivity.class);
                             intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK|Intent.FLAG_ACTIVITY_CLEAR_TOP);
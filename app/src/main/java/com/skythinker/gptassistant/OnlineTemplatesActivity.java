@@ -141,7 +141,7 @@ public class OnlineTemplatesActivity extends Activity {
         });
 
         new Thread(() -> {
-            OkHttpClient client = new OkHttpClient();
+            OkHttpClient client = SharedHttpClient.get();
             Request request = new Request.Builder()
                     .url(getString(R.string.shared_templates_url))
                     .build();
@@ -48,9 +48,13 @@ public class PromptTabData implements Serializable {
                     if (name == null || value == null)
                         continue;
                     value = value.trim();
-                    if (name.equals("model")) { // 文本型参数
+                    if (name.equals("model") || name.equals("images")) { // 文本型参数
                         params.putOpt(name, value);
-                    } else if (Arrays.asList("system", "speak", "chat", "network").contains(name)) { // 布尔型参数
+                    } else if (name.equals("imageturns")) { // 整数型参数
+                        try {
+                            params.putOpt(name, Integer.parseInt(value));
+                        } catch (NumberFormatException ignored) { }
+                    } else if (Arrays.asList("system", "speak", "chat", "network", "cache").contains(name)) { // 布尔型参数
                         params.putOpt(name, value.equals("true"));
                     } else if (name.equals("input")) { // 输入型参数 {inputName: {type: "text"}}
                         inputObject.putOpt(value, new JSONObject().putOpt("type", "text"));
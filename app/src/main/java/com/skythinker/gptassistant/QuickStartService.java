@@ -13,6 +13,7 @@ public class QuickStartService extends TileService {
     public void onClick() { // 状态栏快捷按钮点击事件
         super.onClick();
         Log.d("QuickStartService", "onClick");
+        ConnectionWarmer.prewarm(this); // 预先连接API服务器
         if(!MainActivity.isAlive() || !MainActivity.isRunning()) {
             Intent intent = new Intent(this, MainActivity.class);
             intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TOP);
@@ -0,0 +1,180 @@
+package com.skythinker.gptassistant;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import cn.hutool.json.JSONObject;
+
+import com.skythinker.gptassistant.ChatManager.ChatMessage;
+
+// 磁盘上的回复缓存（LRU），开启缓存的模板以相同内容再次提问时直接返回之前的回复
+// 每条回复保存为一个文件，文件的修改时间即最近使用时间
+public class ResponseCache {
+    private static final long MAX_AGE = 7L * 24 * 60 * 60 * 1000; // 缓存有效期
+    private static final long MAX_SIZE = 4 * 1024 * 1024; // 缓存总大小上限
+
+    private static ResponseCache instance = null;
+
+    private final File dir;
+    private final LinkedHashMap<String, Long> index = new LinkedHashMap<>(16, 0.75f, true); // key -> 文件大小，按使用顺序排列
+    private long totalSize = 0;
+    private boolean loaded = false;
+
+    public static synchronized ResponseCache getInstance(Context context) {
+        if(instance == null)
+            instance = new ResponseCache(new File(context.getApplicationContext().getCacheDir(), "responses"));
+        return instance;
+    }
+
+    private ResponseCache(File dir) {
+        this.dir = dir;
+    }
+
+    // 根据模型、消息列表及函数定义计算缓存的key，消息文本去除首尾空白并统一换行符
+    public static String keyOf(String model, List<ChatMessage> messages, String functions) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        update(digest, model);
+        update(digest, functions);
+        for(ChatMessage message : messages) {
+            update(digest, message.role == null ? null : message.role.name());
+            update(digest, message.functionName);
+            update(digest, message.contentText == null ? null : message.contentText.replace("\r\n", "\n").trim());
+            update(digest, message.getImageKey() != null ? message.getImageKey() : message.getImageBase64()); // 已保存的图片使用内容摘要，不读取图片文件
+        }
+        StringBuilder key = new StringBuilder();
+        for(byte b : digest.digest())
+            key.append(String.format("%02x", b));
+        return key.toString();
+    }
+
+    // 写入带长度前缀的字符串，避免不同的分段方式得到相同的摘要
+    private static void update(MessageDigest digest, String value) {
+        if(value == null) {
+            digest.update((byte) 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        digest.update((byte) 1);
+        digest.update(new byte[] {(byte) (bytes.length >>> 24), (byte) (bytes.length >>> 16), (byte) (bytes.length >>> 8), (byte) bytes.length});
+        digest.update(bytes);
+    }
+
+    // 读取缓存的回复（需读取文件，应在后台线程中调用），不存在或已过期返回null
+    public synchronized String get(String key) {
+        ensureLoaded();
+        if(!index.containsKey(key))
+            return null;
+        File file = new File(dir, key);
+        try {
+            JSONObject json = new JSONObject(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+            if(System.currentTimeMillis() - json.getLong("time", 0L) > MAX_AGE) {
+                remove(key);
+                return null;
+            }
+            file.setLastModified(System.currentTimeMillis());
+            return json.getStr("text");
+        } catch (Exception e) {
+            Log.e("ResponseCache", "read " + key + " failed: " + e);
+            remove(key);
+            return null;
+        }
+    }
+
+    // 保存一条回复，超出大小上限时删除最久未使用的回复
+    public synchronized void put(String key, String model, String text) {
+        ensureLoaded();
+        byte[] bytes = new JSONObject()
+                .putOpt("time", System.currentTimeMillis())
+                .putOpt("model", model)
+                .putOpt("text", text)
+                .toString().getBytes(StandardCharsets.UTF_8);
+        if(bytes.length > MAX_SIZE / 4) // 过长的回复不缓存
+            return;
+        dir.mkdirs();
+        File tempFile = new File(dir, key + ".tmp");
+        try (OutputStream output = new FileOutputStream(tempFile)) {
+            output.write(bytes);
+        } catch (IOException e) {
+            Log.e("ResponseCache", "write " + key + " failed: " + e);
+            tempFile.delete();
+            return;
+        }
+        remove(key);
+        if(!tempFile.renameTo(new File(dir, key))) {
+            tempFile.delete();
+            return;
+        }
+        index.put(key, (long) bytes.length);
+        totalSize += bytes.length;
+        Iterator<Map.Entry<String, Long>> iterator = index.entrySet().iterator();
+        while(totalSize > MAX_SIZE && iterator.hasNext()) {
+            Map.Entry<String, Long> eldest = iterator.next();
+            if(eldest.getKey().equals(key))
+                continue;
+            new File(dir, eldest.getKey()).delete();
+            totalSize -= eldest.getValue();
+            iterator.remove();
+        }
+    }
+
+    // 删除所有缓存文件，应在后台线程中调用
+    public synchronized void clear() {
+        ensureLoaded();
+        for(String key : index.keySet())
+            new File(dir, key).delete();
+        index.clear();
+        totalSize = 0;
+    }
+
+    // 缓存的回复数，首次调用时需扫描目录，应在后台线程中调用
+    public synchronized int size() {
+        ensureLoaded();
+        return index.size();
+    }
+
+    private void remove(String key) {
+        Long size = index.remove(key);
+        if(size != null)
+            totalSize -= size;
+        new File(dir, key).delete();
+    }
+
+    // 首次使用时扫描缓存目录，按最近使用时间建立索引
+    private void ensureLoaded() {
+        if(loaded)
+            return;
+        loaded = true;
+        File[] files = dir.listFiles();
+        if(files == null)
+            return;
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for(File file : files) {
+            if(file.getName().endsWith(".tmp") // 写入时被中断
+                    || System.currentTimeMillis() - file.lastModified() > MAX_AGE) { // 长期未使用，必然已过期
+                file.delete();
+                continue;
+            }
+            index.put(file.getName(), file.length());
+            totalSize += file.length();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.skythinker.gptassistant;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+// 全文搜索的分词：SQLite自带的分词器会把连续的中文当作一个词，无法搜索其中的部分内容，
+// 因此在写入索引前将中日韩文字切分为重叠的双字词，其余文字按单词切分，统一转为小写并以空格分隔
+public class SearchTokenizer {
+    private static final int SNIPPET_BEFORE = 20; // 摘录中匹配位置之前保留的字数
+
+    // 生成写入索引的文本，如"大模型 GPT4" -> "大模 模型 型 gpt4"
+    public static String index(String text) {
+        if(text == null)
+            return "";
+        StringBuilder builder = new StringBuilder();
+        for(List<String> tokens : split(text, true)) {
+            for(String token : tokens) {
+                if(builder.length() > 0)
+                    builder.append(' ');
+                builder.append(token);
+            }
+        }
+        return builder.toString();
+    }
+
+    // 生成MATCH查询语句，每个搜索词为一个短语，多个搜索词需同时匹配；无可搜索的内容时返回null
+    public static String query(String keyword) {
+        StringBuilder builder = new StringBuilder();
+        for(String term : terms(keyword)) {
+            for(List<String> tokens : split(term, false)) {
+                if(tokens.isEmpty())
+                    continue;
+                if(builder.length() > 0)
+                    builder.append(' ');
+                builder.append('"');
+                for(int i = 0; i < tokens.size(); i++) {
+                    if(i > 0)
+                        builder.append(' ');
+                    builder.append(tokens.get(i));
+                }
+                builder.append('"');
+            }
+        }
+        return builder.length() > 0 ? builder.toString() : null;
+    }
+
+    // 按空白拆分的搜索词（小写），用于高亮显示
+    public static List<String> terms(String keyword) {
+        List<String> terms = new ArrayList<>();
+        if(keyword == null)
+            return terms;
+        for(String term : keyword.trim().toLowerCase(Locale.ROOT).split("\\s+")) {
+            if(!term.isEmpty())
+                terms.add(term);
+        }
+        return terms;
+    }
+
+    // 截取文本中第一个搜索词附近的内容，没有匹配时返回开头部分
+    public static String snippet(String text, List<String> terms, int maxChars) {
+        if(text == null)
+            return "";
+        text = text.replace('\n', ' ');
+        String lower = text.toLowerCase(Locale.ROOT);
+        int first = -1;
+        for(String term : terms) {
+            int index = lower.indexOf(term);
+            if(index >= 0 && (first < 0 || index < first))
+                first = index;
+        }
+        int start = Math.max(0, first - SNIPPET_BEFORE);
+        int end = Math.min(text.length(), start + maxChars);
+        start = Math.max(0, Math.min(start, end - maxChars)); // 匹配位置靠近末尾时向前多保留一些
+        return (start > 0 ? "..." : "") + text.substring(start, end) + (end < text.length() ? "..." : "");
+    }
+
+    // 将文本切分为若干段连续的词，段之间为标点或空白；forIndex为true时每段连续中文末尾多加一个单字，使末尾的单字也能通过前缀匹配找到
+    // 查询时，单字及后面没有中文的单词使用前缀匹配（加*）
+    private static List<List<String>> split(String text, boolean forIndex) {
+        List<List<String>> segments = new ArrayList<>();
+        List<String> tokens = new ArrayList<>();
+        int i = 0;
+        while(i < text.length()) {
+            int c = text.codePointAt(i);
+            if(isCjk(c)) { // 连续的中日韩文字切分为双字词
+                int start = i;
+                while(i < text.length() && isCjk(text.codePointAt(i)))
+                    i += Character.charCount(text.codePointAt(i));
+                String run = text.substring(start, i);
+                int length = run.codePointCount(0, run.length());
+                for(int j = 0; j + 1 < length; j++) {
+                    int from = run.offsetByCodePoints(0, j);
+                    tokens.add(run.substring(from, run.offsetByCodePoints(from, 2)));
+                }
+                if(forIndex || length == 1) {
+                    String last = run.substring(run.offsetByCodePoints(0, length - 1));
+                    tokens.add(forIndex ? last : last + "*");
+                }
+                if(!forIndex && i < text.length() && Character.isLetterOrDigit(text.codePointAt(i))) { // 索引中中文后面多了一个单字，之后的单词需作为另一个短语
+                    segments.add(tokens);
+                    tokens = new ArrayList<>();
+                }
+            } else if(Character.isLetterOrDigit(c)) { // 其余文字按单词切分
+                int start = i;
+                while(i < text.length() && Character.isLetterOrDigit(text.codePointAt(i)) && !isCjk(text.codePointAt(i)))
+                    i += Character.charCount(text.codePointAt(i));
+                String word = text.substring(start, i).toLowerCase(Locale.ROOT);
+                boolean atEnd = i >= text.length() || !isCjk(text.codePointAt(i));
+                tokens.add(!forIndex && atEnd ? word + "*" : word);
+            } else { // 标点及空白分隔短语
+                if(!tokens.isEmpty()) {
+                    segments.add(tokens);
+                    tokens = new ArrayList<>();
+                }
+                i += Character.charCount(c);
+            }
+        }
+        if(!tokens.isEmpty())
+            segments.add(tokens);
+        return segments;
+    }
+
+    private static boolean isCjk(int c) {
+        Character.UnicodeScript script = Character.UnicodeScript.of(c);
+        return script == Character.UnicodeScript.HAN || script == Character.UnicodeScript.HIRAGANA
+                || script == Character.UnicodeScript.KATAKANA || script == Character.UnicodeScript.HANGUL;
+    }
+}
@@ -0,0 +1,52 @@
+package com.skythinker.gptassistant;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.ConnectionPool;
+import okhttp3.ConnectionSpec;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+
+// 全局共享的OkHttp客户端，所有请求共用同一个连接池和调度器，以便复用已建立的TLS连接
+// 各用途的超时设置通过newBuilder()派生，派生出的客户端仍共享连接池和调度器
+public class SharedHttpClient {
+    public static final int DEFAULT_MAX_REQUESTS = 32; // 最大并发请求数
+    public static final int DEFAULT_MAX_REQUESTS_PER_HOST = 8; // 同一主机最大并发请求数（流式对话会长时间占用）
+
+    private static OkHttpClient baseClient = null;
+
+    // 获取基础客户端（默认超时10秒）
+    public static synchronized OkHttpClient get() {
+        if(baseClient == null) {
+            Dispatcher dispatcher = new Dispatcher();
+            dispatcher.setMaxRequests(DEFAULT_MAX_REQUESTS);
+            dispatcher.setMaxRequestsPerHost(GlobalDataHolder.isInitialized() ? GlobalDataHolder.getGptMaxRequestsPerHost() : DEFAULT_MAX_REQUESTS_PER_HOST);
+            baseClient = new OkHttpClient.Builder()
+                    .dispatcher(dispatcher)
+                    .connectionPool(new ConnectionPool(5, 5, TimeUnit.MINUTES))
+                    .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1)) // 服务器支持时通过ALPN使用HTTP/2
+                    .connectionSpecs(Arrays.asList(ConnectionSpec.CLEARTEXT, ConnectionSpec.COMPATIBLE_TLS))
+                    .connectTimeout(10, TimeUnit.SECONDS)
+                    .readTimeout(10, TimeUnit.SECONDS)
+                    .writeTimeout(10, TimeUnit.SECONDS)
+                    .build();
+        }
+        return baseClient;
+    }
+
+    // 派生一个使用指定超时（秒）的客户端
+    public static OkHttpClient withTimeout(long connectSeconds, long readSeconds, long writeSeconds) {
+        return get().newBuilder()
+                .connectTimeout(connectSeconds, TimeUnit.SECONDS)
+                .readTimeout(readSeconds, TimeUnit.SECONDS)
+                .writeTimeout(writeSeconds, TimeUnit.SECONDS)
+                .build();
+    }
+
+    // 设置共享调度器中同一主机的最大并发请求数（设置中修改时调用）
+    public static void setMaxRequestsPerHost(int maxRequestsPerHost) {
+        get().dispatcher().setMaxRequestsPerHost(maxRequestsPerHost);
+    }
+}
@@ -0,0 +1,437 @@
+package com.skythinker.gptassistant;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import cn.hutool.json.JSONArray;
+import cn.hutool.json.JSONObject;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.ForwardingSource;
+import okio.Okio;
+
+// 流式回复的延迟统计：按“模型 @ 服务器”汇总每次对话请求的首字节/首字延迟、耗时、数据块数、数据块间隔分布、流量及token用量，并保存到文件
+public class StreamMetrics {
+    private static final String FILE_NAME = "stream_metrics.json";
+    private static final long SAVE_DELAY = 2000; // 合并短时间内的多次保存
+
+    private static StreamMetrics instance = null;
+
+    // 对数线性直方图（类似HdrHistogram）：按2的幂分段，每段再等分为8个桶，相对误差不超过1/8，值的单位为毫秒
+    public static class Histogram {
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final long MAX_VALUE = (1L << 32) - 1;
+        private static final int BUCKET_COUNT = (32 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+        final long[] counts = new long[BUCKET_COUNT];
+        long totalCount = 0;
+
+        static int indexOf(long value) {
+            value = Math.max(0, Math.min(MAX_VALUE, value));
+            if(value < SUB_BUCKETS)
+                return (int) value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        // 桶内的最小值
+        static long lowerBound(int index) {
+            if(index < SUB_BUCKETS)
+                return index;
+            int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+        }
+
+        // 桶的宽度
+        static long width(int index) {
+            if(index < SUB_BUCKETS)
+                return 1;
+            return 1L << (index / SUB_BUCKETS - 1);
+        }
+
+        public void record(long value) {
+            counts[indexOf(value)]++;
+            totalCount++;
+        }
+
+        public void add(Histogram other) {
+            for(int i = 0; i < BUCKET_COUNT; i++)
+                counts[i] += other.counts[i];
+            totalCount += other.totalCount;
+        }
+
+        public long getTotalCount() { return totalCount; }
+
+        // 百分位数（0~100），返回所在桶的中间值，没有数据返回-1
+        public long getPercentile(double percentile) {
+            if(totalCount == 0)
+                return -1;
+            long target = Math.max(1, (long) Math.ceil(totalCount * percentile / 100));
+            long cumulative = 0;
+            for(int i = 0; i < BUCKET_COUNT; i++) {
+                cumulative += counts[i];
+                if(cumulative >= target)
+                    return lowerBound(i) + width(i) / 2;
+            }
+            return MAX_VALUE;
+        }
+
+        // 只保存非空的桶：[[桶内最小值, 数量], ...]
+        JSONArray toJson() {
+            JSONArray array = new JSONArray();
+            for(int i = 0; i < BUCKET_COUNT; i++) {
+                if(counts[i] > 0)
+                    array.add(new JSONArray().set(lowerBound(i)).set(counts[i]));
+            }
+            return array;
+        }
+
+        static Histogram fromJson(JSONArray array) {
+            Histogram histogram = new Histogram();
+            if(array == null)
+                return histogram;
+            for(int i = 0; i < array.size(); i++) {
+                JSONArray bucket = array.getJSONArray(i);
+                int index = indexOf(bucket.getLong(0));
+                histogram.counts[index] += bucket.getLong(1);
+                histogram.totalCount += bucket.getLong(1);
+            }
+            return histogram;
+        }
+    }
+
+    // 单次对话请求的记录，在请求的各个回调线程中更新
+    public static class Recorder {
+        final long startTime = SystemClock.elapsedRealtime();
+        long firstByteTime = -1; // 收到响应头的时间
+        long firstTokenTime = -1; // 收到第一个回复内容的时间
+        long lastTokenTime = -1;
+        int chunkCount = 0; // 包含回复内容或函数参数的数据块数
+        long bytesUp = 0, bytesDown = 0;
+        int promptTokens = -1, completionTokens = -1; // 服务器返回的usage
+        final Histogram gaps = new Histogram(); // 相邻数据块的间隔
+
+        synchronized void onResponseHeaders() {
+            if(firstByteTime < 0)
+                firstByteTime = SystemClock.elapsedRealtime();
+        }
+
+        synchronized void addBytesUp(long bytes) {
+            bytesUp += Math.max(0, bytes);
+        }
+
+        synchronized void addBytesDown(long bytes) {
+            bytesDown += bytes;
+        }
+
+        synchronized void onChunk() {
+            long now = SystemClock.elapsedRealtime();
+            if(firstTokenTime < 0)
+                firstTokenTime = now;
+            else
+                gaps.record(now - lastTokenTime);
+            lastTokenTime = now;
+            chunkCount++;
+        }
+
+        synchronized void onUsage(int promptTokens, int completionTokens) {
+            this.promptTokens = promptTokens;
+            this.completionTokens = completionTokens;
+        }
+
+        // 包装响应体以统计下行流量
+        ResponseBody wrap(ResponseBody body) {
+            ForwardingSource countingSource = new ForwardingSource(body.source()) {
+                @Override
+                public long read(Buffer sink, long byteCount) throws IOException {
+                    long read = super.read(sink, byteCount);
+                    if(read > 0)
+                        addBytesDown(read);
+                    return read;
+                }
+            };
+            return ResponseBody.create(body.contentType(), body.contentLength(), Okio.buffer(countingSource));
+        }
+    }
+
+    // 某个“模型 @ 服务器”的汇总数据
+    public static class Stats {
+        public final String model;
+        public final String host;
+        public long requestCount = 0;
+        public long failureCount = 0;
+        public long durationSum = 0; // 请求总耗时之和
+        public long chunkCount = 0;
+        public long generationMillis = 0; // 首字到最后一个数据块的时间之和，用于计算生成速度
+        public long usageCount = 0; // 返回了usage的请求数
+        public long promptTokens = 0, completionTokens = 0;
+        public long usageGenerationMillis = 0; // 返回了usage的请求的生成时间之和
+        public long bytesUp = 0, bytesDown = 0;
+        public final Histogram firstByte;
+        public final Histogram firstToken;
+        public final Histogram gaps;
+
+        Stats(String model, String host) {
+            this(model, host, new Histogram(), new Histogram(), new Histogram());
+        }
+
+        private Stats(String model, String host, Histogram firstByte, Histogram firstToken, Histogram gaps) {
+            this.model = model;
+            this.host = host;
+            this.firstByte = firstByte;
+            this.firstToken = firstToken;
+            this.gaps = gaps;
+        }
+
+        public long getAverageDuration() {
+            return requestCount == 0 ? -1 : durationSum / requestCount;
+        }
+
+        // 每秒token数（usage），没有usage时为每秒数据块数，没有数据返回-1
+        public double getTokensPerSecond() {
+            if(usageCount > 0 && usageGenerationMillis > 0)
+                return completionTokens * 1000.0 / usageGenerationMillis;
+            return generationMillis > 0 ? chunkCount * 1000.0 / generationMillis : -1;
+        }
+
+        Stats copy() {
+            Stats copy = new Stats(model, host);
+            copy.requestCount = requestCount;
+            copy.failureCount = failureCount;
+            copy.durationSum = durationSum;
+            copy.chunkCount = chunkCount;
+            copy.generationMillis = generationMillis;
+            copy.usageCount = usageCount;
+            copy.promptTokens = promptTokens;
+            copy.completionTokens = completionTokens;
+            copy.usageGenerationMillis = usageGenerationMillis;
+            copy.bytesUp = bytesUp;
+            copy.bytesDown = bytesDown;
+            copy.firstByte.add(firstByte);
+            copy.firstToken.add(firstToken);
+            copy.gaps.add(gaps);
+            return copy;
+        }
+
+        JSONObject toJson(boolean withSummary) {
+            JSONObject json = new JSONObject()
+                    .putOpt("model", model)
+                    .putOpt("host", host)
+                    .putOpt("requests", requestCount)
+                    .putOpt("failures", failureCount)
+                    .putOpt("duration_sum_ms", durationSum)
+                    .putOpt("chunks", chunkCount)
+                    .putOpt("generation_ms", generationMillis)
+                    .putOpt("usage_count", usageCount)
+                    .putOpt("prompt_tokens", promptTokens)
+                    .putOpt("completion_tokens", completionTokens)
+                    .putOpt("usage_generation_ms", usageGenerationMillis)
+                    .putOpt("bytes_up", bytesUp)
+                    .putOpt("bytes_down", bytesDown)
+                    .putOpt("first_byte_hist", firstByte.toJson())
+                    .putOpt("first_token_hist", firstToken.toJson())
+                    .putOpt("gap_hist", gaps.toJson());
+            if(withSummary) { // 导出时附带便于阅读的分位数
+                json.putOpt("summary", new JSONObject()
+                        .putOpt("first_byte_p50_ms", firstByte.getPercentile(50))
+                        .putOpt("first_byte_p90_ms", firstByte.getPercentile(90))
+                        .putOpt("first_token_p50_ms", firstToken.getPercentile(50))
+                        .putOpt("first_token_p90_ms", firstToken.getPercentile(90))
+                        .putOpt("first_token_p99_ms", firstToken.getPercentile(99))
+                        .putOpt("gap_p50_ms", gaps.getPercentile(50))
+                        .putOpt("gap_p90_ms", gaps.getPercentile(90))
+                        .putOpt("gap_p99_ms", gaps.getPercentile(99))
+                        .putOpt("avg_duration_ms", getAverageDuration())
+                        .putOpt("tokens_per_second", Math.round(getTokensPerSecond() * 10) / 10.0));
+            }
+            return json;
+        }
+
+        static Stats fromJson(JSONObject json) {
+            Stats stats = new Stats(json.getStr("model", ""), json.getStr("host", ""),
+                    Histogram.fromJson(json.getJSONArray("first_byte_hist")),
+                    Histogram.fromJson(json.getJSONArray("first_token_hist")),
+                    Histogram.fromJson(json.getJSONArray("gap_hist")));
+            stats.requestCount = json.getLong("requests", 0L);
+            stats.failureCount = json.getLong("failures", 0L);
+            stats.durationSum = json.getLong("duration_sum_ms", 0L);
+            stats.chunkCount = json.getLong("chunks", 0L);
+            stats.generationMillis = json.getLong("generation_ms", 0L);
+            stats.usageCount = json.getLong("usage_count", 0L);
+            stats.promptTokens = json.getLong("prompt_tokens", 0L);
+            stats.completionTokens = json.getLong("completion_tokens", 0L);
+            stats.usageGenerationMillis = json.getLong("usage_generation_ms", 0L);
+            stats.bytesUp = json.getLong("bytes_up", 0L);
+            stats.bytesDown = json.getLong("bytes_down", 0L);
+            return stats;
+        }
+    }
+
+    private final File file;
+    private final Map<String, Stats> statsMap = new LinkedHashMap<>();
+    private final ScheduledExecutorService saveExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "StreamMetrics-save");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Future<?> loadFuture; // 文件在后台读取，读取完成前访问统计数据时等待
+    private boolean savePending = false;
+
+    public static synchronized StreamMetrics getInstance(Context context) {
+        if(instance == null)
+            instance = new StreamMetrics(new File(context.getApplicationContext().getFilesDir(), FILE_NAME));
+        return instance;
+    }
+
+    private StreamMetrics(File file) {
+        this.file = file;
+        loadFuture = saveExecutor.submit(this::load);
+    }
+
+    private void load() {
+        if(!file.exists())
+            return;
+        try {
+            JSONArray array = new JSONObject(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8)).getJSONArray("stats");
+            synchronized (this) {
+                for(int i = 0; array != null && i < array.size(); i++) {
+                    Stats stats = Stats.fromJson(array.getJSONObject(i));
+                    statsMap.put(stats.model + " @ " + stats.host, stats);
+                }
+            }
+        } catch (Exception e) { // 文件损坏时丢弃
+            Log.e("StreamMetrics", "load failed: " + e);
+        }
+    }
+
+    // 等待文件读取完成
+    private void awaitLoaded() {
+        try {
+            loadFuture.get();
+        } catch (InterruptedException | ExecutionException e) {
+            Log.e("StreamMetrics", "wait for load failed: " + e);
+        }
+    }
+
+    // 文件读取完成后通过handler回调，界面在回调中再读取统计数据，避免在界面线程中等待
+    public void whenLoaded(Handler handler, Runnable callback) {
+        saveExecutor.execute(() -> handler.post(callback)); // 单线程执行，排在读取之后
+    }
+
+    // 汇总一次已结束的请求（completed为false表示失败）
+    public void record(String model, String host, Recorder recorder, boolean completed) {
+        long now = SystemClock.elapsedRealtime();
+        awaitLoaded();
+        synchronized (this) {
+            String key = model + " @ " + host;
+            Stats stats = statsMap.get(key);
+            if(stats == null) {
+                stats = new Stats(model, host);
+                statsMap.put(key, stats);
+            }
+            synchronized (recorder) {
+                stats.requestCount++;
+                if(!completed)
+                    stats.failureCount++;
+                stats.durationSum += now - recorder.startTime;
+                stats.bytesUp += recorder.bytesUp;
+                stats.bytesDown += recorder.bytesDown;
+                if(recorder.firstByteTime >= 0)
+                    stats.firstByte.record(recorder.firstByteTime - recorder.startTime);
+                if(recorder.firstTokenTime >= 0) {
+                    long generation = recorder.lastTokenTime - recorder.firstTokenTime;
+                    stats.firstToken.record(recorder.firstTokenTime - recorder.startTime);
+                    stats.chunkCount += recorder.chunkCount;
+                    stats.generationMillis += generation;
+                    stats.gaps.add(recorder.gaps);
+                    if(recorder.completionTokens >= 0) {
+                        stats.usageCount++;
+                        stats.promptTokens += Math.max(0, recorder.promptTokens);
+                        stats.completionTokens += recorder.completionTokens;
+                        stats.usageGenerationMillis += generation;
+                    }
+                }
+                Log.d("StreamMetrics", String.format("%s: ttfb=%d ttft=%d duration=%d chunks=%d up=%d down=%d usage=%d/%d",
+                        key, recorder.firstByteTime < 0 ? -1 : recorder.firstByteTime - recorder.startTime,
+                        recorder.firstTokenTime < 0 ? -1 : recorder.firstTokenTime - recorder.startTime,
+                        now - recorder.startTime, recorder.chunkCount, recorder.bytesUp, recorder.bytesDown,
+                        recorder.promptTokens, recorder.completionTokens));
+            }
+            if(savePending)
+                return;
+            savePending = true;
+        }
+        saveExecutor.schedule(this::save, SAVE_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    private void save() {
+        String json;
+        synchronized (this) {
+            savePending = false;
+            json = toJson(false).toString();
+        }
+        File tempFile = new File(file.getPath() + ".tmp");
+        try { // 先写临时文件再替换，避免写入中断导致文件损坏
+            Files.write(tempFile.toPath(), json.getBytes(StandardCharsets.UTF_8));
+            if(!tempFile.renameTo(file))
+                Log.e("StreamMetrics", "rename failed");
+        } catch (IOException e) {
+            Log.e("StreamMetrics", "save failed: " + e);
+        }
+    }
+
+    private JSONObject toJson(boolean withSummary) {
+        awaitLoaded();
+        synchronized (this) {
+            JSONArray array = new JSONArray();
+            for(Stats stats : statsMap.values())
+                array.add(stats.toJson(withSummary));
+            return new JSONObject().putOpt("version", 1).putOpt("stats", array);
+        }
+    }
+
+    // 导出为便于阅读的JSON
+    public String export() {
+        return toJson(true).toStringPretty();
+    }
+
+    // 各“模型 @ 服务器”的汇总数据副本，按请求数从多到少排列
+    public List<Stats> snapshot() {
+        awaitLoaded();
+        List<Stats> list = new ArrayList<>();
+        synchronized (this) {
+            for(Stats stats : statsMap.values())
+                list.add(stats.copy());
+        }
+        list.sort((a, b) -> Long.compare(b.requestCount, a.requestCount));
+        return list;
+    }
+
+    public long getTotalRequests() {
+        awaitLoaded();
+        long total = 0;
+        synchronized (this) {
+            for(Stats stats : statsMap.values())
+                total += stats.requestCount;
+        }
+        return total;
+    }
+}
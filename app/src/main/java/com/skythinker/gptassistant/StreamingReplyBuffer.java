@@ -0,0 +1,93 @@
+package com.skythinker.gptassistant;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// 网络线程与UI线程之间的回复缓冲区：网络线程只追加内容，UI线程按固定节奏一次性取出累积的内容
+public class StreamingReplyBuffer {
+    public interface OnFlushListener {
+        void onFlush(String reply); // 在UI线程中调用，reply为目前收到的完整回复
+    }
+
+    private final StringBuilder builder = new StringBuilder(); // 分块追加，只在取出时生成字符串
+    private final AtomicBoolean flushPending = new AtomicBoolean(false); // 是否已安排了一次取出
+    private final Handler handler;
+    private final long minFlushInterval;
+    private final OnFlushListener listener;
+    private volatile long lastFlushTime = 0;
+
+    private String snapshot = ""; // 上次生成的字符串，内容未变化时直接复用
+    private int snapshotLength = 0;
+
+    private long receivedCount = 0; // 收到的增量数
+    private long flushCount = 0; // 实际刷新UI的次数
+
+    private final Runnable flushRunnable = this::flush;
+
+    public StreamingReplyBuffer(Handler handler, long minFlushInterval, OnFlushListener listener) {
+        this.handler = handler;
+        this.minFlushInterval = minFlushInterval;
+        this.listener = listener;
+    }
+
+    // 追加一段回复（网络线程调用），仅在没有待处理的刷新时向UI线程投递一次消息
+    public void append(String text) {
+        synchronized (builder) {
+            builder.append(text);
+            receivedCount++;
+        }
+        if(flushPending.compareAndSet(false, true)) {
+            long delay = lastFlushTime + minFlushInterval - SystemClock.uptimeMillis();
+            handler.postDelayed(flushRunnable, Math.max(0, delay));
+        }
+    }
+
+    // 取出当前累积的内容并通知UI（UI线程调用）
+    private void flush() {
+        flushPending.set(false);
+        String reply = toString();
+        lastFlushTime = SystemClock.uptimeMillis();
+        flushCount++;
+        listener.onFlush(reply);
+    }
+
+    // 取消尚未执行的刷新（UI线程调用）
+    public void cancelPendingFlush() {
+        handler.removeCallbacks(flushRunnable);
+        flushPending.set(false);
+    }
+
+    // 清空缓冲区和计数（UI线程调用）
+    public void clear() {
+        cancelPendingFlush();
+        synchronized (builder) {
+            builder.setLength(0);
+            snapshot = "";
+            snapshotLength = 0;
+            receivedCount = 0;
+        }
+        flushCount = 0;
+        lastFlushTime = 0;
+    }
+
+    public long getReceivedCount() {
+        synchronized (builder) {
+            return receivedCount;
+        }
+    }
+
+    public long getFlushCount() { return flushCount; }
+
+    @Override
+    public String toString() {
+        synchronized (builder) {
+            if(builder.length() != snapshotLength) { // 只会追加内容，长度不变即内容不变
+                snapshot = builder.toString();
+                snapshotLength = builder.length();
+            }
+            return snapshot;
+        }
+    }
+}
@@ -18,8 +18,10 @@ import android.graphics.Typeface;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.text.Editable;
 import android.text.TextWatcher;
+import android.text.format.Formatter;
 import android.view.View;
 import android.view.ViewGroup;
 import android.view.WindowManager;
@@ -131,6 +133,151 @@ public class TabConfActivity extends Activity {
             }
         });
 
+        ((EditText) findViewById(R.id.et_extra_endpoints_conf)).setText(String.join("\n", GlobalDataHolder.getGptExtraEndpoints()));
+        ((EditText) findViewById(R.id.et_extra_endpoints_conf)).addTextChangedListener(new CustomTextWatcher() {
+            public void afterTextChanged(Editable editable) { // 每行一个备用服务器
+                List<String> endpointList = new ArrayList<>(Arrays.asList(editable.toString().split("\n")));
+                endpointList.replaceAll(String::trim);
+                endpointList.removeIf(String::isEmpty);
+                GlobalDataHolder.saveGptExtraEndpoints(endpointList);
+                updateEndpointStats();
+            }
+        });
+
+        updateEndpointStats();
+        (findViewById(R.id.ll_endpoint_stats_conf)).setOnClickListener(view -> { // 显示各服务器的请求统计
+            updateEndpointStats();
+            StringBuilder content = new StringBuilder();
+            long now = SystemClock.elapsedRealtime();
+            for(ApiEndpoint endpoint : EndpointPool.getInstance().snapshot()) {
+                if(content.length() > 0)
+                    content.append("\n\n");
+                long latency = endpoint.getAverageLatency();
+                content.append(String.format(getString(R.string.format_endpoint_stats), endpoint.host, endpoint.getMaskedKey(), endpoint.weight,
+                        endpoint.successCount, endpoint.failureCount, endpoint.throttleCount, latency < 0 ? "-" : latency + " ms"));
+                if(endpoint.isEjected(now))
+                    content.append("\n").append(getString(endpoint.unauthorized ? R.string.text_endpoint_key_invalid : R.string.text_endpoint_paused));
+            }
+            new ConfirmDialog(this)
+                    .setTitle(getString(R.string.dialog_endpoint_stats_title))
+                    .setContent(content.length() > 0 ? content.toString() : getString(R.string.text_endpoint_stats_empty))
+                    .setContentAlignment(View.TEXT_ALIGNMENT_TEXT_START)
+                    .setOkButtonVisibility(View.GONE)
+                    .show();
+        });
+
+        ((Switch) findViewById(R.id.sw_hedge_requests_conf)).setChecked(GlobalDataHolder.getGptHedgeRequests());
+        ((Switch) findViewById(R.id.sw_hedge_requests_conf)).setOnCheckedChangeListener((compoundButton, checked) -> {
+            GlobalDataHolder.saveGptHedgeRequests(checked);
+        });
+
+        ((EditText) findViewById(R.id.et_max_requests_per_host_conf)).setText(String.valueOf(GlobalDataHolder.getGptMaxRequestsPerHost()));
+        ((EditText) findViewById(R.id.et_max_requests_per_host_conf)).addTextChangedListener(new CustomTextWatcher() {
+            public void afterTextChanged(Editable editable) {
+                try {
+                    int maxRequests = SharedHttpClient.DEFAULT_MAX_REQUESTS_PER_HOST;
+                    if (!editable.toString().isEmpty())
+                        maxRequests = Math.max(1, Math.min(SharedHttpClient.DEFAULT_MAX_REQUESTS, Integer.parseInt(editable.toString())));
+                    GlobalDataHolder.saveGptMaxRequestsPerHost(maxRequests);
+                    SharedHttpClient.setMaxRequestsPerHost(maxRequests);
+                } catch (NumberFormatException e) {
+                    ((EditText) findViewById(R.id.et_max_requests_per_host_conf)).setText(String.valueOf(GlobalDataHolder.getGptMaxRequestsPerHost()));
+                }
+            }
+        });
+
+        ((EditText) findViewById(R.id.et_stall_timeout_conf)).setText(String.valueOf(GlobalDataHolder.getGptStallTimeout()));
+        ((EditText) findViewById(R.id.et_stall_timeout_conf)).addTextChangedListener(new CustomTextWatcher() {
+            public void afterTextChanged(Editable editable) {
+                try {
+                    int stallTimeout = (int) (ChatApiClient.DEFAULT_STALL_TIMEOUT / 1000);
+                    if (!editable.toString().isEmpty())
+                        stallTimeout = Math.max(1, Integer.parseInt(editable.toString()));
+                    GlobalDataHolder.saveGptStreamSetting(stallTimeout, GlobalDataHolder.getGptMaxRetries(), GlobalDataHolder.getGptResumePartialReply());
+                } catch (NumberFormatException e) {
+                    ((EditText) findViewById(R.id.et_stall_timeout_conf)).setText(String.valueOf(GlobalDataHolder.getGptStallTimeout()));
+                }
+            }
+        });
+
+        ((EditText) findViewById(R.id.et_max_retries_conf)).setText(String.valueOf(GlobalDataHolder.getGptMaxRetries()));
+        ((EditText) findViewById(R.id.et_max_retries_conf)).addTextChangedListener(new CustomTextWatcher() {
+            public void afterTextChanged(Editable editable) {
+                try {
+                    int maxRetries = ChatApiClient.DEFAULT_MAX_RETRIES;
+                    if (!editable.toString().isEmpty())
+                        maxRetries = Integer.parseInt(editable.toString());
+                    GlobalDataHolder.saveGptStreamSetting(GlobalDataHolder.getGptStallTimeout(), maxRetries, GlobalDataHolder.getGptResumePartialReply());
+                } catch (NumberFormatException e) {
+                    ((EditText) findViewById(R.id.et_max_retries_conf)).setText(String.valueOf(GlobalDataHolder.getGptMaxRetries()));
+                }
+            }
+        });
+
+        ((Switch) findViewById(R.id.sw_resume_partial_reply_conf)).setChecked(GlobalDataHolder.getGptResumePartialReply());
+        ((Switch) findViewById(R.id.sw_resume_partial_reply_conf)).setOnCheckedChangeListener((compoundButton, checked) -> {
+            GlobalDataHolder.saveGptStreamSetting(GlobalDataHolder.getGptStallTimeout(), GlobalDataHolder.getGptMaxRetries(), checked);
+        });
+
+        ((Switch) findViewById(R.id.sw_stream_usage_conf)).setChecked(GlobalDataHolder.getGptStreamUsage());
+        ((Switch) findViewById(R.id.sw_stream_usage_conf)).setOnCheckedChangeListener((compoundButton, checked) -> {
+            GlobalDataHolder.saveGptStreamUsage(checked);
+        });
+
+        ((Switch) findViewById(R.id.sw_legacy_functions_conf)).setChecked(GlobalDataHolder.getGptLegacyFunctions());
+        ((Switch) findViewById(R.id.sw_legacy_functions_conf)).setOnCheckedChangeListener((compoundButton, checked) -> {
+            GlobalDataHolder.saveGptLegacyFunctions(checked);
+        });
+
+        StreamMetrics.getInstance(this).whenLoaded(handler, () -> // 统计文件在后台读取
+                ((TextView) findViewById(R.id.tv_stream_metrics_conf)).setText(String.format(getString(R.string.format_stream_metrics_summary), StreamMetrics.getInstance(this).getTotalRequests())));
+        (findViewById(R.id.ll_stream_metrics_conf)).setOnClickListener(view -> StreamMetrics.getInstance(this).whenLoaded(handler, () -> { // 显示各模型及服务器的响应速度统计
+            StringBuilder content = new StringBuilder();
+            for(StreamMetrics.Stats stats : StreamMetrics.getInstance(this).snapshot()) {
+                if(content.length() > 0)
+                    content.append("\n\n");
+                double tokensPerSecond = stats.getTokensPerSecond();
+                String speed = tokensPerSecond < 0 ? "-" : String.format(getString(stats.usageCount > 0 ? R.string.format_tokens_per_second : R.string.format_chunks_per_second), tokensPerSecond);
+                content.append(String.format(getString(R.string.format_stream_metrics), stats.model, stats.host, stats.requestCount, stats.failureCount,
+                        formatMillis(stats.firstByte.getPercentile(50)), formatMillis(stats.firstByte.getPercentile(90)),
+                        formatMillis(stats.firstToken.getPercentile(50)), formatMillis(stats.firstToken.getPercentile(90)),
+                        formatMillis(stats.gaps.getPercentile(50)), formatMillis(stats.gaps.getPercentile(99)),
+                        speed, formatMillis(stats.getAverageDuration()),
+                        Formatter.formatShortFileSize(this, stats.bytesUp), Formatter.formatShortFileSize(this, stats.bytesDown)));
+            }
+            ConfirmDialog dialog = new ConfirmDialog(this)
+                    .setTitle(getString(R.string.dialog_stream_metrics_title))
+                    .setContent(content.length() > 0 ? content.toString() : getString(R.string.text_stream_metrics_empty))
+                    .setContentAlignment(View.TEXT_ALIGNMENT_TEXT_START);
+            if(content.length() > 0) {
+                dialog.setOkText(getString(R.string.text_copy_json))
+                        .setOnConfirmListener(() -> { // 导出完整数据（含直方图）
+                            GlobalUtils.copyToClipboard(this, StreamMetrics.getInstance(this).export());
+                            GlobalUtils.showToast(this, R.string.toast_stream_metrics_copied, false);
+                        });
+            } else {
+                dialog.setOkButtonVisibility(View.GONE);
+            }
+            dialog.show();
+        }));
+
+        new Thread(() -> { // 首次读取缓存时需扫描缓存目录
+            int size = ResponseCache.getInstance(this).size();
+            handler.post(() -> ((TextView) findViewById(R.id.tv_response_cache_conf)).setText(String.format(getString(R.string.format_response_cache_summary), size)));
+        }).start();
+        (findViewById(R.id.ll_response_cache_conf)).setOnClickListener(view -> { // 清空模板回复缓存
+            new ConfirmDialog(this)
+                    .setContent(getString(R.string.dialog_clear_response_cache))
+                    .setOnConfirmListener(() -> new Thread(() -> { // 在后台删除缓存文件
+                        ResponseCache.getInstance(this).clear();
+                        handler.post(() -> {
+                            ((TextView) findViewById(R.id.tv_response_cache_conf)).setText(String.format(getString(R.string.format_response_cache_summary), 0));
+                            GlobalUtils.showToast(this, R.string.toast_response_cache_cleared, false);
+                        });
+                    }).start())
+                    .show();
+        });
+
         List<String> models = new ArrayList<>(Arrays.asList(getResources().getStringArray(R.array.models))); // 内置模型列表
         models.addAll(GlobalDataHolder.getCustomModels()); // 自定义模型列表
         ArrayAdapter<String> modelsAdapter = new ArrayAdapter<String>(this, R.layout.model_spinner_item, models) { // 设置Spinner样式和列表数据
@@ -280,6 +427,18 @@ public class TabConfActivity extends Activity {
             GlobalDataHolder.saveMultiChatSetting(checked);
         });
 
+        ((Switch) findViewById(R.id.sw_compact_history_conf)).setChecked(GlobalDataHolder.getCompactHistory());
+        ((Switch) findViewById(R.id.sw_compact_history_conf)).setOnCheckedChangeListener((compoundButton, checked) -> {
+            GlobalDataHolder.saveCompactSetting(checked, GlobalDataHolder.getCompactModel());
+        });
+
+        ((EditText) findViewById(R.id.et_compact_model_conf)).setText(GlobalDataHolder.getCompactModel());
+        ((EditText) findViewById(R.id.et_compact_model_conf)).addTextChangedListener(new CustomTextWatcher() {
+            public void afterTextChanged(Editable editable) {
+                GlobalDataHolder.saveCompactSetting(GlobalDataHolder.getCompactHistory(), editable.toString().trim());
+            }
+        });
+
         ((Switch) findViewById(R.id.sw_remember_tab_conf)).setChecked(GlobalDataHolder.getSelectedTab() != -1);
         ((Switch) findViewById(R.id.sw_remember_tab_conf)).setOnCheckedChangeListener((compoundButton, checked) -> {
             if(checked && GlobalDataHolder.getSelectedTab() == -1) {
@@ -296,7 +455,21 @@ public class TabConfActivity extends Activity {
 
         ((Switch) findViewById(R.id.sw_limit_vision_size_conf)).setChecked(GlobalDataHolder.getLimitVisionSize());
         ((Switch) findViewById(R.id.sw_limit_vision_size_conf)).setOnCheckedChangeListener((compoundButton, checked) -> {
-            GlobalDataHolder.saveVisionSetting(checked);
+            GlobalDataHolder.saveVisionSetting(checked, GlobalDataHolder.getVisionMaxKb());
+        });
+
+        ((EditText) findViewById(R.id.et_vision_max_kb_conf)).setText(String.valueOf(GlobalDataHolder.getVisionMaxKb()));
+        ((EditText) findViewById(R.id.et_vision_max_kb_conf)).addTextChangedListener(new CustomTextWatcher() {
+            public void afterTextChanged(Editable editable) {
+                try {
+                    int maxKb = 512;
+                    if (!editable.toString().isEmpty())
+                        maxKb = Integer.parseInt(editable.toString());
+                    GlobalDataHolder.saveVisionSetting(GlobalDataHolder.getLimitVisionSize(), maxKb);
+                } catch (NumberFormatException e) {
+                    ((EditText) findViewById(R.id.et_vision_max_kb_conf)).setText(String.valueOf(GlobalDataHolder.getVisionMaxKb()));
+                }
+            }
         });
 
         (findViewById(R.id.tv_set_tts_conf)).setOnClickListener(view -> {
@@ -350,7 +523,7 @@ public class TabConfActivity extends Activity {
         });
 
         new Thread(() -> { // 通过Gitee/GitHub检查更新
-            OkHttpClient client = new OkHttpClient();
+            OkHttpClient client = SharedHttpClient.get();
             Request request = new Request.Builder()
                     .url(getString(R.string.check_update_url))
                     .build();
@@ -450,4 +623,24 @@ public class TabConfActivity extends Activity {
         super.finish();
         overridePendingTransition(R.anim.translate_left_in, R.anim.translate_right_out);
     }
-}
\ No newline at end of file
+
+    // 毫秒数转为便于阅读的文本，负数表示没有数据
+    private static String formatMillis(long millis) {
+        if(millis < 0)
+            return "-";
+        return millis < 1000 ? millis + " ms" : String.format("%.1f s", millis / 1000.0);
+    }
+
+    // 根据当前设置刷新服务器池，并显示服务器数量及暂停数量
+    private void updateEndpointStats() {
+        EndpointPool.getInstance().update(GlobalDataHolder.getGptApiHost(), GlobalDataHolder.getGptApiKey(), GlobalDataHolder.getGptExtraEndpoints());
+        int pausedCount = 0;
+        long now = SystemClock.elapsedRealtime();
+        List<ApiEndpoint> endpoints = EndpointPool.getInstance().snapshot();
+        for(ApiEndpoint endpoint : endpoints) {
+            if(endpoint.isEjected(now))
+                pausedCount++;
+        }
+        ((TextView) findViewById(R.id.tv_endpoint_stats_conf)).setText(String.format(getString(R.string.format_endpoint_stats_summary), endpoints.size(), pausedCount));
+    }
+}
@@ -0,0 +1,135 @@
+package com.skythinker.gptassistant;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import okhttp3.Request;
+import okhttp3.Response;
+
+import com.skythinker.gptassistant.BpeTokenizer.Encoding;
+
+// 本地分词器的加载：cl100k_base从内置资源读取，o200k_base首次使用时下载，解析后的合并表以二进制形式缓存到文件
+public class Tokenizers {
+    private static final String CL100K_RESOURCE = "/com/knuddels/jtokkit/cl100k_base.tiktoken"; // 随jtokkit（chatgpt-java的依赖）打包
+    private static final String O200K_URL = "https://openaipublic.blob.core.windows.net/encodings/o200k_base.tiktoken";
+    private static final long RETRY_INTERVAL = 10 * 60 * 1000; // 加载失败（如下载失败）后的重试间隔
+
+    private static final Map<Encoding, BpeTokenizer> loaded = new EnumMap<>(Encoding.class);
+    private static final Set<Encoding> loading = EnumSet.noneOf(Encoding.class);
+    private static final Map<Encoding, Long> failTime = new EnumMap<>(Encoding.class);
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "Tokenizers-load");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // 模型使用的编码，非OpenAI模型按cl100k_base近似
+    public static Encoding encodingOf(String model) {
+        String name = model == null ? "" : model.toLowerCase();
+        if(name.startsWith("gpt-4o") || name.startsWith("chatgpt-4o") || name.startsWith("gpt-4.1") || name.startsWith("gpt-4.5")
+                || name.startsWith("gpt-5") || name.matches("^o\\d.*"))
+            return Encoding.O200K_BASE;
+        return Encoding.CL100K_BASE;
+    }
+
+    // 获取模型对应的分词器，未加载时在后台开始加载，并返回已加载的cl100k_base用于近似（也未加载则返回null）
+    public static synchronized BpeTokenizer get(Context context, String model) {
+        Encoding encoding = encodingOf(model);
+        BpeTokenizer tokenizer = loaded.get(encoding);
+        if(tokenizer != null)
+            return tokenizer;
+        load(context, encoding);
+        if(encoding != Encoding.CL100K_BASE) {
+            load(context, Encoding.CL100K_BASE);
+            return loaded.get(Encoding.CL100K_BASE);
+        }
+        return null;
+    }
+
+    // 提前加载模型对应的分词器
+    public static void preload(Context context, String model) {
+        get(context, model);
+    }
+
+    private static void load(Context context, Encoding encoding) {
+        if(loaded.containsKey(encoding) || loading.contains(encoding))
+            return;
+        Long lastFail = failTime.get(encoding);
+        if(lastFail != null && SystemClock.elapsedRealtime() - lastFail < RETRY_INTERVAL)
+            return;
+        loading.add(encoding);
+        File cacheDir = new File(context.getApplicationContext().getFilesDir(), "tokenizer");
+        executor.execute(() -> {
+            BpeTokenizer tokenizer = null;
+            long startTime = SystemClock.elapsedRealtime();
+            try {
+                tokenizer = loadOrBuild(cacheDir, encoding);
+                Log.d("Tokenizers", String.format("loaded %s in %d ms", encoding.name, SystemClock.elapsedRealtime() - startTime));
+            } catch (IOException e) {
+                Log.e("Tokenizers", "load " + encoding.name + " failed: " + e);
+            }
+            synchronized (Tokenizers.class) {
+                loading.remove(encoding);
+                if(tokenizer != null)
+                    loaded.put(encoding, tokenizer);
+                else
+                    failTime.put(encoding, SystemClock.elapsedRealtime());
+            }
+        });
+    }
+
+    // 优先读取缓存的二进制合并表，没有则解析tiktoken文件并写入缓存
+    private static BpeTokenizer loadOrBuild(File cacheDir, Encoding encoding) throws IOException {
+        File binFile = new File(cacheDir, encoding.name + ".bin");
+        if(binFile.exists()) {
+            try (InputStream input = new BufferedInputStream(new FileInputStream(binFile))) {
+                return BpeTokenizer.fromBinary(input, encoding);
+            } catch (IOException e) { // 缓存损坏，重新生成
+                Log.e("Tokenizers", "cache corrupted: " + e);
+                binFile.delete();
+            }
+        }
+
+        BpeTokenizer tokenizer;
+        if(encoding == Encoding.CL100K_BASE) {
+            InputStream resource = Tokenizers.class.getResourceAsStream(CL100K_RESOURCE);
+            if(resource == null)
+                throw new IOException("Could not find " + CL100K_RESOURCE);
+            try (InputStream input = new BufferedInputStream(resource)) {
+                tokenizer = BpeTokenizer.fromTiktoken(input, encoding);
+            }
+        } else {
+            Request request = new Request.Builder().url(O200K_URL).build();
+            try (Response response = SharedHttpClient.withTimeout(10, 60, 10).newCall(request).execute()) {
+                if(!response.isSuccessful() || response.body() == null)
+                    throw new IOException("HTTP " + response.code());
+                tokenizer = BpeTokenizer.fromTiktoken(response.body().byteStream(), encoding);
+            }
+        }
+
+        cacheDir.mkdirs();
+        File tempFile = new File(cacheDir, encoding.name + ".tmp");
+        try (OutputStream output = new BufferedOutputStream(new FileOutputStream(tempFile))) {
+            tokenizer.writeBinary(output);
+        }
+        if(!tempFile.renameTo(binFile))
+            tempFile.delete();
+        return tokenizer;
+    }
+}
@@ -0,0 +1,212 @@
+package com.skythinker.gptassistant;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.os.Handler;
+import android.util.Base64;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// 识图图片编码：根据模型选择分辨率和格式，并搜索压缩质量使图片不超过设置的大小上限
+// 编码较耗时，通过encodeAsync在后台线程中进行
+public class VisionImageEncoder {
+    private static final int MAX_QUALITY = 90; // 更高的质量肉眼几乎无差别，但体积成倍增加
+    private static final int MIN_QUALITY = 40; // 低于此质量时改为降低分辨率
+    private static final int QUALITY_STEP = 5; // 质量搜索的精度
+    private static final int MIN_SHORT_SIDE = 256; // 降低分辨率时短边的最小值
+    private static final float MAX_SCALE = 0.9f, MIN_SCALE = 0.5f; // 每次降低分辨率的比例范围
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "VisionImageEncoder");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public static class Result {
+        public final String base64;
+        public final String mimeType;
+        public final int width, height;
+        public final int quality;
+        public final int byteCount;
+        public final int tokens; // 估算的图片token数
+        public final long encodeTime; // 编码耗时(ms)
+
+        Result(String base64, String mimeType, int width, int height, int quality, int byteCount, int tokens, long encodeTime) {
+            this.base64 = base64;
+            this.mimeType = mimeType;
+            this.width = width;
+            this.height = height;
+            this.quality = quality;
+            this.byteCount = byteCount;
+            this.tokens = tokens;
+            this.encodeTime = encodeTime;
+        }
+    }
+
+    public interface Callback {
+        void onEncoded(Result result);
+    }
+
+    // 在后台线程编码，完成后通过handler回调，可通过返回的Future取消
+    public static Future<?> encodeAsync(Bitmap bitmap, String model, Handler handler, Callback callback) {
+        boolean limitSize = GlobalDataHolder.getLimitVisionSize();
+        int maxBytes = GlobalDataHolder.getVisionMaxKb() * 1024;
+        return executor.submit(() -> {
+            Result result = encode(bitmap, model, limitSize, maxBytes);
+            if(!Thread.currentThread().isInterrupted())
+                handler.post(() -> callback.onEncoded(result));
+        });
+    }
+
+    // 编码图片，maxBytes为编码后字节数的上限（不大于0表示不限制）
+    public static Result encode(Bitmap bitmap, String model, boolean limitSize, int maxBytes) {
+        long startTime = System.currentTimeMillis();
+        boolean webp = supportsWebp(model);
+        Bitmap.CompressFormat format = formatFor(model);
+        int[] size = targetSize(bitmap.getWidth(), bitmap.getHeight(), model, limitSize);
+        int width = size[0], height = size[1];
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] bytes;
+        int quality;
+        int minQualityLength = 0; // 当前分辨率下最低质量的字节数
+        while(true) {
+            boolean minSize = Math.min(width, height) <= MIN_SHORT_SIDE; // 已无法再降低分辨率
+            Bitmap scaled = (width == bitmap.getWidth() && height == bitmap.getHeight()) ? bitmap
+                    : Bitmap.createScaledBitmap(bitmap, width, height, true);
+            quality = MAX_QUALITY;
+            bytes = compress(scaled, format, quality, output);
+            if(maxBytes > 0 && bytes.length > maxBytes) { // 二分查找满足大小上限的最高质量
+                byte[] fitBytes = null;
+                int low = MIN_QUALITY, high = MAX_QUALITY - QUALITY_STEP;
+                while(low <= high) {
+                    int mid = low + (high - low) / QUALITY_STEP / 2 * QUALITY_STEP;
+                    byte[] midBytes = compress(scaled, format, mid, output);
+                    if(mid == MIN_QUALITY)
+                        minQualityLength = midBytes.length;
+                    if(midBytes.length <= maxBytes) {
+                        fitBytes = midBytes;
+                        quality = mid;
+                        low = mid + QUALITY_STEP;
+                    } else {
+                        high = mid - QUALITY_STEP;
+                    }
+                }
+                if(fitBytes != null) {
+                    bytes = fitBytes;
+                } else if(minSize) { // 最低质量和分辨率仍超出上限，只能发送最小的结果
+                    quality = MIN_QUALITY;
+                    bytes = compress(scaled, format, quality, output);
+                }
+            }
+            if(scaled != bitmap)
+                scaled.recycle();
+            if(maxBytes <= 0 || bytes.length <= maxBytes || minSize)
+                break;
+            // 字节数大致与像素数成正比，据此估算需要缩小的比例，降低分辨率后重试
+            float scale = (float) Math.sqrt((double) maxBytes / minQualityLength) * 0.95f;
+            scale = Math.max(MIN_SCALE, Math.min(MAX_SCALE, scale));
+            scale = Math.max(scale, (float) MIN_SHORT_SIDE / Math.min(width, height));
+            width = Math.max(1, Math.round(width * scale));
+            height = Math.max(1, Math.round(height * scale));
+        }
+        String base64 = Base64.encodeToString(bytes, Base64.NO_WRAP);
+        Result result = new Result(base64, webp ? "image/webp" : "image/jpeg", width, height, quality, bytes.length,
+                estimateTokens(width, height, model), System.currentTimeMillis() - startTime);
+        Log.d("VisionImageEncoder", String.format("%dx%d -> %dx%d %s q%d, %d bytes, ~%d tokens, %d ms",
+                bitmap.getWidth(), bitmap.getHeight(), width, height, result.mimeType, quality, bytes.length, result.tokens, result.encodeTime));
+        return result;
+    }
+
+    // 生成历史图片的缩略图（长边不超过maxSide），解码时按比例降采样；原图已足够小或解码失败时返回null
+    public static String encodeThumbnail(byte[] data, String model, int maxSide, int quality) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        int longSide = Math.max(options.outWidth, options.outHeight);
+        if(longSide <= 0 || longSide <= maxSide)
+            return null;
+        options = new BitmapFactory.Options();
+        options.inSampleSize = 1;
+        while(longSide / (options.inSampleSize * 2) >= maxSide)
+            options.inSampleSize *= 2;
+        Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if(bitmap == null)
+            return null;
+        float scale = (float) maxSide / Math.max(bitmap.getWidth(), bitmap.getHeight());
+        Bitmap scaled = scale >= 1 ? bitmap : Bitmap.createScaledBitmap(bitmap, Math.max(1, Math.round(bitmap.getWidth() * scale)),
+                Math.max(1, Math.round(bitmap.getHeight() * scale)), true);
+        byte[] bytes = compress(scaled, formatFor(model), quality, new ByteArrayOutputStream());
+        if(scaled != bitmap)
+            scaled.recycle();
+        bitmap.recycle();
+        return Base64.encodeToString(bytes, Base64.NO_WRAP);
+    }
+
+    private static Bitmap.CompressFormat formatFor(String model) {
+        if(!supportsWebp(model))
+            return Bitmap.CompressFormat.JPEG;
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.R ? Bitmap.CompressFormat.WEBP_LOSSY : Bitmap.CompressFormat.WEBP;
+    }
+
+    private static byte[] compress(Bitmap bitmap, Bitmap.CompressFormat format, int quality, ByteArrayOutputStream output) {
+        output.reset();
+        bitmap.compress(format, quality, output);
+        return output.toByteArray();
+    }
+
+    // 根据模型计算发送的分辨率，超出的部分会被服务端缩小，发送也只是浪费流量；不会放大图片
+    public static int[] targetSize(int width, int height, String model, boolean limitSize) {
+        double scale = Math.min(1.0, Math.min(2048.0 / width, 2048.0 / height)); // 先缩放到2048x2048以内
+        if(limitSize) { // 用户限制了短边长度
+            scale = Math.min(scale, 512.0 / Math.min(width, height));
+        } else if(isClaude(model)) { // Claude长边超过1568会被缩小
+            scale = Math.min(scale, 1568.0 / Math.max(width, height));
+        } else if(!model.endsWith("*")) { // OpenAI等模型短边超过768会被缩小（自定义模型不做限制）
+            scale = Math.min(scale, 768.0 / Math.min(width, height));
+        }
+        return new int[] {Math.max(1, (int) Math.round(width * scale)), Math.max(1, (int) Math.round(height * scale))};
+    }
+
+    // 估算图片消耗的token数
+    public static int estimateTokens(int width, int height, String model) {
+        if(isClaude(model))
+            return (int) Math.ceil(width * height / 750.0);
+        int tiles = ((width + 511) / 512) * ((height + 511) / 512); // OpenAI按512x512分块计费
+        return 85 + 170 * tiles;
+    }
+
+    // 判断接口是否接受WebP格式，自定义模型（以*结尾）统一使用JPEG
+    public static boolean supportsWebp(String model) {
+        if(model.endsWith("*"))
+            return false;
+        return model.matches("^(gpt-|chatgpt-|o\\d|claude|gemini).*");
+    }
+
+    private static boolean isClaude(String model) {
+        return model.startsWith("claude");
+    }
+
+    // 根据文件头判断图片格式，未知格式按JPEG处理
+    public static String mimeTypeOf(byte[] header) {
+        if(header.length >= 12 && header[0] == 'R' && header[1] == 'I' && header[2] == 'F' && header[3] == 'F'
+                && header[8] == 'W' && header[9] == 'E' && header[10] == 'B' && header[11] == 'P')
+            return "image/webp";
+        if(header.length >= 4 && (header[0] & 0xFF) == 0x89 && header[1] == 'P' && header[2] == 'N' && header[3] == 'G')
+            return "image/png";
+        return "image/jpeg";
+    }
+
+    // 根据base64的开头判断图片格式
+    public static String mimeTypeOfBase64(String base64) {
+        try {
+            return mimeTypeOf(Base64.decode(base64.substring(0, Math.min(16, base64.length())), Base64.NO_WRAP));
+        } catch (IllegalArgumentException e) {
+            return "image/jpeg";
+        }
+    }
+}
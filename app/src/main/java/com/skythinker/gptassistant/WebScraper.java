@@ -168,6 +168,7 @@ public class WebScraper {
     private Callback callback = null;
     private boolean isLoading = false;
     private int jumpCount = 0;
+    private volatile int loadCount = 0; // 每次加载递增，用于让上一次加载的超时线程退出
     WebsiteRule websiteRule = null;
 
     public WebScraper(Context context, LinearLayout parentLayout) {
@@ -284,17 +285,20 @@ public class WebScraper {
         else
             webView.getSettings().setUserAgentString(null);
 
+        int loadId = ++loadCount;
+        int timeout = websiteRule.timeout;
         new Thread(() -> { // 开启超时等待线程
-            int timeout = websiteRule.timeout;
             int waitTime = 0;
-            while(waitTime < timeout && isLoading) {
+            while(waitTime < timeout && isLoading && loadId == loadCount) {
                 try {
                     Thread.sleep(100);
                 } catch (InterruptedException ignored) { }
                 waitTime += 100;
             }
-            if(isLoading) {
+            if(isLoading && loadId == loadCount) {
                 handler.post(() -> {
+                    if(loadId != loadCount) // 已开始新的加载
+                        return;
                     if(callback != null)
                         callback.onLoadFail("Timeout");
                     stopLoading();
@@ -0,0 +1,163 @@
+package com.skythinker.gptassistant;
+
+import android.content.Context;
+import android.os.Handler;
+import android.util.Log;
+import android.widget.LinearLayout;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+// 由多个WebScraper组成的抓取池，多个网页可同时加载，超出数量上限的请求排队等待
+// 所有方法都需在UI线程中调用
+public class WebScraperPool {
+    private static final int MAX_SCRAPERS = 3; // 最多同时加载的网页数（每个占用一个WebView）
+
+    // 一次网页加载，回调可在加载完成之后再设置（用于提前开始加载）
+    public class Task {
+        final String url;
+        private WebScraper.Callback callback;
+        private WebScraper scraper = null; // 正在使用的抓取器，排队中为null
+        private boolean done = false, success = false, cancelled = false;
+        private String result = null;
+
+        Task(String url, WebScraper.Callback callback) {
+            this.url = url;
+            this.callback = callback;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        // 设置回调，已加载完成时立即回调
+        public void setCallback(WebScraper.Callback callback) {
+            this.callback = callback;
+            if(done)
+                deliver();
+        }
+
+        // 取消加载，之后不再回调
+        public void cancel() {
+            if(done || cancelled)
+                return;
+            cancelled = true;
+            callback = null;
+            queue.remove(this);
+            if(scraper != null) {
+                scraper.stopLoading();
+                release(this);
+            }
+        }
+
+        private void onDone(boolean success, String result) {
+            if(done || cancelled)
+                return;
+            this.done = true;
+            this.success = success;
+            this.result = result;
+            release(this);
+            if(callback != null)
+                deliver();
+        }
+
+        private void deliver() {
+            WebScraper.Callback callback = this.callback;
+            this.callback = null;
+            if(success)
+                callback.onLoadResult(result);
+            else
+                callback.onLoadFail(result);
+        }
+    }
+
+    private final Context context;
+    private final LinearLayout parentLayout;
+    private final Handler handler;
+    private final List<WebScraper> idleScrapers = new ArrayList<>();
+    private final List<Task> runningTasks = new ArrayList<>();
+    private final Deque<Task> queue = new ArrayDeque<>();
+    private int scraperCount = 0;
+
+    public WebScraperPool(Context context, LinearLayout parentLayout) {
+        this.context = context;
+        this.parentLayout = parentLayout;
+        this.handler = new Handler(context.getMainLooper());
+    }
+
+    // 加载一个URL，callback可为null
+    public Task load(String url, WebScraper.Callback callback) {
+        Task task = new Task(url, callback);
+        queue.add(task);
+        dispatch();
+        return task;
+    }
+
+    // 停止所有加载
+    public void stopAll() {
+        for(Task task : new ArrayList<>(queue))
+            task.cancel();
+        for(Task task : new ArrayList<>(runningTasks))
+            task.cancel();
+    }
+
+    // 判断是否有网页正在加载或排队
+    public boolean isLoading() {
+        return !runningTasks.isEmpty() || !queue.isEmpty();
+    }
+
+    public void destroy() {
+        stopAll();
+        for(WebScraper scraper : idleScrapers)
+            scraper.destroy();
+        idleScrapers.clear();
+        scraperCount = 0;
+    }
+
+    // 为排队的任务分配空闲的抓取器，不足时新建
+    private void dispatch() {
+        while(!queue.isEmpty()) {
+            WebScraper scraper;
+            if(!idleScrapers.isEmpty()) {
+                scraper = idleScrapers.remove(idleScrapers.size() - 1);
+            } else if(scraperCount < MAX_SCRAPERS) {
+                scraper = new WebScraper(context, parentLayout);
+                scraperCount++;
+            } else {
+                return;
+            }
+            Task task = queue.poll();
+            task.scraper = scraper;
+            runningTasks.add(task);
+            Log.d("WebScraperPool", String.format("loading %s (%d running, %d queued)", task.url, runningTasks.size(), queue.size()));
+            scraper.load(task.url, new WebScraper.Callback() {
+                @Override
+                public void onLoadResult(String result) {
+                    task.onDone(true, result);
+                }
+
+                @Override
+                public void onLoadFail(String message) {
+                    task.onDone(false, message);
+                }
+            });
+        }
+    }
+
+    // 任务结束后回收抓取器；WebScraper在回调返回后才重置状态，因此延后再分配给下一个任务
+    private void release(Task task) {
+        WebScraper scraper = task.scraper;
+        task.scraper = null;
+        runningTasks.remove(task);
+        handler.post(() -> {
+            if(scraperCount > 0) { // 未被销毁
+                idleScrapers.add(scraper);
+                dispatch();
+            } else {
+                scraper.destroy();
+            }
+        });
+    }
+}
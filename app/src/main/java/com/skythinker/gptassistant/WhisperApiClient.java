@@ -8,7 +8,6 @@ import com.unfbx.chatgpt.entity.whisper.WhisperResponse;
 import java.io.File;
 import java.util.Arrays;
 
-import okhttp3.ConnectionSpec;
 import okhttp3.OkHttpClient;
 
 public class WhisperApiClient {
@@ -20,12 +19,7 @@ public class WhisperApiClient {
 
     public WhisperApiClient(Context context, String url, String apiKey) {
         this.context = context;
-        httpClient = new OkHttpClient.Builder()
-                .connectTimeout(30, java.util.concurrent.TimeUnit.SECONDS)
-                .readTimeout(30, java.util.concurrent.TimeUnit.SECONDS)
-                .writeTimeout(30, java.util.concurrent.TimeUnit.SECONDS)
-                .connectionSpecs(Arrays.asList(ConnectionSpec.CLEARTEXT, ConnectionSpec.COMPATIBLE_TLS))
-                .build();
+        httpClient = SharedHttpClient.withTimeout(30, 30, 30);
         setApiInfo(url, apiKey);
     }
 
@@ -0,0 +1,90 @@
+package com.skythinker.gptassistant;
+
+import com.knuddels.jtokkit.Encodings;
+import com.knuddels.jtokkit.api.Encoding;
+import com.knuddels.jtokkit.api.EncodingType;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks {@link BpeTokenizer} against jtokkit's cl100k_base implementation, using the merge
+ * table bundled in the jtokkit jar.
+ */
+public class BpeTokenizerTest {
+    private static final String[] SAMPLES = {
+            "Hello, world! How's it going?",
+            "你好，世界！今天天气怎么样？我想去公园散步。",
+            "  leading spaces\n\n\ttabs and\r\nCRLF   trailing   ",
+            "Numbers 1234567 and 3.14159, dates 2024-05-01.",
+            "Emoji 😀👍🏽 and accents: café naïve façade",
+            "public static void main(String[] args) { System.out.println(\"hi\"); }",
+            "Mixed 中文English混合text 123四五六",
+            "I'm sure they'll say we'd've DONE it, isn't it?",
+            "",
+    };
+
+    private static BpeTokenizer tokenizer;
+    private static Encoding reference;
+
+    @BeforeClass
+    public static void load() throws IOException {
+        try (InputStream is = BpeTokenizerTest.class.getResourceAsStream("/com/knuddels/jtokkit/cl100k_base.tiktoken")) {
+            assertNotNull("missing cl100k_base.tiktoken", is);
+            tokenizer = BpeTokenizer.fromTiktoken(is, BpeTokenizer.Encoding.CL100K_BASE);
+        }
+        reference = Encodings.newDefaultEncodingRegistry().getEncoding(EncodingType.CL100K_BASE);
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++)
+            array[i] = list.get(i);
+        return array;
+    }
+
+    @Test
+    public void encodeMatchesJtokkit() {
+        for (String sample : SAMPLES) {
+            assertArrayEquals(sample, toArray(reference.encodeOrdinary(sample)), tokenizer.encode(sample));
+            assertEquals(sample, reference.countTokensOrdinary(sample), tokenizer.count(sample));
+        }
+    }
+
+    @Test
+    public void countCacheDoesNotChangeResult() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 200; i++)
+            text.append(SAMPLES[i % SAMPLES.length]).append(' ');
+        int first = tokenizer.count(text.toString());
+        assertEquals(first, tokenizer.count(text.toString()));
+        assertEquals(reference.countTokensOrdinary(text.toString()), first);
+    }
+
+    @Test
+    public void binaryRoundTrip() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        tokenizer.writeBinary(out);
+        BpeTokenizer loaded = BpeTokenizer.fromBinary(new ByteArrayInputStream(out.toByteArray()), BpeTokenizer.Encoding.CL100K_BASE);
+        assertEquals(tokenizer.getTokenCount(), loaded.getTokenCount());
+        for (String sample : SAMPLES)
+            assertArrayEquals(sample, tokenizer.encode(sample), loaded.encode(sample));
+    }
+
+    @Test
+    public void truncateKeepsTokenLimit() {
+        String text = SAMPLES[1] + SAMPLES[0] + SAMPLES[5];
+        String truncated = tokenizer.truncate(text, 10);
+        assertTrue(text.startsWith(truncated));
+        assertTrue(tokenizer.count(truncated) <= 10);
+        assertEquals(text, tokenizer.truncate(text, 1000));
+    }
+}
@@ -0,0 +1,210 @@
+package com.skythinker.gptassistant;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Feeds recorded SSE transcripts (src/test/resources/sse) through {@link ChatDeltaDecoder}
+ * and checks the fast path against the full hutool JSON parse.
+ */
+public class ChatDeltaDecoderTest {
+    private static final String[] TRANSCRIPTS = {
+            "openai_content.txt", "chinese_relay.txt", "function_call.txt", "azure_filters.txt", "tool_calls.txt"
+    };
+
+    // 读取录制的SSE数据，返回所有data字段（不含[DONE]）
+    private static List<String> loadTranscript(String name) throws IOException {
+        List<String> events = new ArrayList<>();
+        InputStream is = ChatDeltaDecoderTest.class.getClassLoader().getResourceAsStream("sse/" + name);
+        assertNotNull("missing transcript " + name, is);
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("data: ") && !line.equals("data: [DONE]"))
+                    events.add(line.substring("data: ".length()));
+            }
+        }
+        return events;
+    }
+
+    private static void assertSameDelta(String data, ChatDeltaDecoder.Delta expected, ChatDeltaDecoder.Delta actual) {
+        assertEquals(data, expected.content, actual.content);
+        assertEquals(data, expected.hasFunctionCall, actual.hasFunctionCall);
+        assertEquals(data, expected.functionName, actual.functionName);
+        assertEquals(data, expected.functionArgs, actual.functionArgs);
+        assertEquals(data, expected.toolCallCount, actual.toolCallCount);
+        for (int i = 0; i < expected.toolCallCount; i++) {
+            ChatDeltaDecoder.ToolCall e = expected.toolCalls.get(i), a = actual.toolCalls.get(i);
+            assertEquals(data, e.index, a.index);
+            assertEquals(data, e.id, a.id);
+            assertEquals(data, e.name, a.name);
+            assertEquals(data, e.arguments, a.arguments);
+        }
+        assertEquals(data, expected.finishReason, actual.finishReason);
+        assertEquals(data, expected.promptTokens, actual.promptTokens);
+        assertEquals(data, expected.completionTokens, actual.completionTokens);
+    }
+
+    @Test
+    public void recognizedTranscriptsMatchFullJsonParsing() throws IOException {
+        ChatDeltaDecoder decoder = new ChatDeltaDecoder();
+        ChatDeltaDecoder.Delta actual = new ChatDeltaDecoder.Delta();
+        ChatDeltaDecoder.Delta expected = new ChatDeltaDecoder.Delta();
+        int count = 0;
+        for (String name : TRANSCRIPTS) {
+            for (String data : loadTranscript(name)) {
+                decoder.decode(data, actual);
+                expected.reset();
+                ChatDeltaDecoder.decodeByJson(data, expected);
+                assertSameDelta(data, expected, actual);
+                count++;
+            }
+        }
+        assertEquals(count, decoder.getFastCount());
+        assertEquals(0, decoder.getFallbackCount());
+    }
+
+    @Test
+    public void contentIsReassembled() throws IOException {
+        ChatDeltaDecoder decoder = new ChatDeltaDecoder();
+        ChatDeltaDecoder.Delta delta = new ChatDeltaDecoder.Delta();
+        StringBuilder reply = new StringBuilder();
+        String finishReason = null;
+        for (String data : loadTranscript("openai_content.txt")) {
+            decoder.decode(data, delta);
+            if (delta.content != null)
+                reply.append(delta.content);
+            if (delta.finishReason != null)
+                finishReason = delta.finishReason;
+        }
+        assertEquals("Sure! Here is a \"quoted\" word:\n\n```java\nString path = \"C:\\\\tmp\\\\a.txt\";\n```\t<tab> and a / slash", reply.toString());
+        assertEquals("stop", finishReason);
+
+        reply.setLength(0);
+        int promptTokens = -1, completionTokens = -1;
+        for (String data : loadTranscript("chinese_relay.txt")) {
+            decoder.decode(data, delta);
+            if (delta.content != null)
+                reply.append(delta.content);
+            if (delta.completionTokens >= 0) {
+                promptTokens = delta.promptTokens;
+                completionTokens = delta.completionTokens;
+            }
+        }
+        assertEquals("你好！有什么可以帮您？😀😀 ", reply.toString());
+        assertEquals(12, promptTokens);
+        assertEquals(9, completionTokens);
+    }
+
+    @Test
+    public void functionCallIsReassembled() throws IOException {
+        ChatDeltaDecoder decoder = new ChatDeltaDecoder();
+        ChatDeltaDecoder.Delta delta = new ChatDeltaDecoder.Delta();
+        String name = null;
+        StringBuilder args = new StringBuilder();
+        for (String data : loadTranscript("function_call.txt")) {
+            decoder.decode(data, delta);
+            assertNull(delta.content);
+            if (delta.functionName != null)
+                name = delta.functionName;
+            if (delta.functionArgs != null)
+                args.append(delta.functionArgs);
+        }
+        assertEquals("get_html_text", name);
+        assertEquals("{\n \"url\":\"https://www.bing.com/search?q=%E5%A4%A9%E6%B0%94\"\n}", args.toString());
+    }
+
+    @Test
+    public void parallelToolCallsAreReassembled() throws IOException {
+        ChatDeltaDecoder decoder = new ChatDeltaDecoder();
+        ChatDeltaDecoder.Delta delta = new ChatDeltaDecoder.Delta();
+        String[] ids = new String[2], names = new String[2];
+        StringBuilder[] args = {new StringBuilder(), new StringBuilder()};
+        for (String data : loadTranscript("tool_calls.txt")) {
+            decoder.decode(data, delta);
+            assertNull(delta.content);
+            for (int i = 0; i < delta.toolCallCount; i++) {
+                ChatDeltaDecoder.ToolCall toolCall = delta.toolCalls.get(i);
+                if (toolCall.id != null)
+                    ids[toolCall.index] = toolCall.id;
+                if (toolCall.name != null)
+                    names[toolCall.index] = toolCall.name;
+                if (toolCall.arguments != null)
+                    args[toolCall.index].append(toolCall.arguments);
+            }
+        }
+        assertArrayEquals(new String[] {"call_Qx1", "call_Rz2"}, ids);
+        assertArrayEquals(new String[] {"get_html_text", "get_html_text"}, names);
+        assertEquals("{\"url\": \"https://www.bing.com/search?q=%E5%A4%A9%E6%B0%94\"}", args[0].toString());
+        assertEquals("{\"url\": \"https://zh.wikipedia.org/wiki/\\u5929\\u6c14\"}", args[1].toString());
+    }
+
+    @Test
+    public void unrecognizedShapesFallBackToFullParsing() throws IOException {
+        ChatDeltaDecoder decoder = new ChatDeltaDecoder();
+        ChatDeltaDecoder.Delta actual = new ChatDeltaDecoder.Delta();
+        ChatDeltaDecoder.Delta expected = new ChatDeltaDecoder.Delta();
+        List<String> events = loadTranscript("unrecognized.txt");
+        for (String data : events) {
+            decoder.decode(data, actual);
+            expected.reset();
+            ChatDeltaDecoder.decodeByJson(data, expected);
+            assertSameDelta(data, expected, actual);
+        }
+        assertEquals(0, decoder.getFastCount());
+        assertEquals(events.size(), decoder.getFallbackCount());
+    }
+
+    /**
+     * Times the fast path against the full JSON parse. Skipped unless run with
+     * {@code -Dbenchmark=true} (e.g. {@code ./gradlew test -Dbenchmark=true}), since it takes several seconds.
+     */
+    @Test
+    public void benchmarkAgainstFullJsonParsing() throws IOException {
+        Assume.assumeTrue("benchmark disabled", Boolean.getBoolean("benchmark"));
+        List<String> events = new ArrayList<>();
+        for (String name : TRANSCRIPTS)
+            events.addAll(loadTranscript(name));
+        ChatDeltaDecoder decoder = new ChatDeltaDecoder();
+        ChatDeltaDecoder.Delta delta = new ChatDeltaDecoder.Delta();
+        final int warmup = 2000, rounds = 20000;
+
+        for (int i = 0; i < warmup; i++) {
+            for (String data : events) {
+                decoder.decode(data, delta);
+                delta.reset();
+                ChatDeltaDecoder.decodeByJson(data, delta);
+            }
+        }
+
+        long fastStart = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            for (String data : events)
+                decoder.decode(data, delta);
+        }
+        long fastNanos = System.nanoTime() - fastStart;
+
+        long jsonStart = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            for (String data : events) {
+                delta.reset();
+                ChatDeltaDecoder.decodeByJson(data, delta);
+            }
+        }
+        long jsonNanos = System.nanoTime() - jsonStart;
+
+        assertEquals(0, decoder.getFallbackCount());
+        assertTrue(String.format("fast path %d ms is not faster than full parsing %d ms", fastNanos / 1000000, jsonNanos / 1000000),
+                fastNanos * 2 < jsonNanos); // the fast path should be at least twice as fast
+    }
+}
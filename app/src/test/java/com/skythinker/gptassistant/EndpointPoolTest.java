@@ -0,0 +1,78 @@
+package com.skythinker.gptassistant;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks how {@link EndpointPool} spreads requests over its endpoints; times are passed in
+ * explicitly, so no endpoint is ejected and no health check is scheduled.
+ */
+public class EndpointPoolTest {
+    private static final long NOW = 10 * 60 * 1000;
+
+    private static EndpointPool pool() {
+        EndpointPool pool = new EndpointPool();
+        pool.update("https://a.example/", "key-a", Arrays.asList(
+                "https://b.example/ key-b 2",
+                "https://c.example/ key-c 3"));
+        return pool;
+    }
+
+    // Counts how often each endpoint is picked in the given number of requests
+    private static int[] distribution(EndpointPool pool, int requests, long now) {
+        List<ApiEndpoint> endpoints = pool.snapshot();
+        int[] counts = new int[endpoints.size()];
+        for(int i = 0; i < requests; i++) {
+            ApiEndpoint selected = pool.acquire(null, now);
+            for(int j = 0; j < endpoints.size(); j++) {
+                if(endpoints.get(j).sameAs(selected))
+                    counts[j]++;
+            }
+        }
+        return counts;
+    }
+
+    private static void throttleAt(EndpointPool pool, long... times) {
+        List<ApiEndpoint> endpoints = pool.snapshot();
+        for(int i = 0; i < times.length; i++) {
+            ApiEndpoint selected;
+            do {
+                selected = pool.acquire(null, NOW);
+            } while(!selected.sameAs(endpoints.get(i)));
+            selected.lastThrottleTime = times[i];
+        }
+    }
+
+    // Throttling moves the round robin to a different phase, so allow one request of slack
+    private static void assertShares(int[] expected, int[] actual) {
+        assertEquals(expected.length, actual.length);
+        for(int i = 0; i < expected.length; i++)
+            assertTrue(Arrays.toString(actual), Math.abs(expected[i] - actual[i]) <= 1);
+    }
+
+    @Test
+    public void followsWeights() {
+        assertArrayEquals(new int[] {100, 200, 300}, distribution(pool(), 600, NOW));
+    }
+
+    @Test
+    public void followsWeightsAfterEveryEndpointWasThrottled() {
+        EndpointPool pool = pool();
+        throttleAt(pool, NOW - 5 * 60 * 1000, NOW - 4 * 60 * 1000, NOW - 3 * 60 * 1000);
+        assertShares(new int[] {100, 200, 300}, distribution(pool, 600, NOW));
+
+        throttleAt(pool, NOW - 3000, NOW - 2000, NOW - 1000); // all throttled just now: still spread by weight
+        assertShares(new int[] {100, 200, 300}, distribution(pool, 600, NOW));
+    }
+
+    @Test
+    public void avoidsRecentlyThrottledEndpoint() {
+        EndpointPool pool = pool();
+        throttleAt(pool, 0, 0, NOW - 1000);
+        assertShares(new int[] {200, 400, 0}, distribution(pool, 600, NOW));
+    }
+}
@@ -0,0 +1,46 @@
+package com.skythinker.gptassistant;
+
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import cn.hutool.json.JSONObject;
+
+import static org.junit.Assert.*;
+
+/**
+ * Feeds function call arguments into {@link FunctionArgsParser} split at every position and
+ * checks the reported top-level string fields against the full hutool JSON parse.
+ */
+public class FunctionArgsParserTest {
+    private static final String ARGS = "{\n  \"url\": \"https://www.bing.com/search?q=%E5%A4%A9%E6%B0%94&a=\\\"b\\\"\",\n"
+            + "  \"options\": {\"url\": \"nested\", \"list\": [\"x\", {\"y\": \"}\"}]},\n"
+            + "  \"count\": 3,\n  \"title\": \"\\u4f60\\u597d \\\\ \\/ \\n\"\n}";
+
+    private static Map<String, String> parse(String... chunks) {
+        Map<String, String> fields = new LinkedHashMap<>();
+        FunctionArgsParser parser = new FunctionArgsParser(fields::put);
+        for (String chunk : chunks)
+            parser.feed(chunk);
+        return fields;
+    }
+
+    @Test
+    public void matchesFullParseAtEverySplit() {
+        JSONObject json = new JSONObject(ARGS);
+        Map<String, String> expected = new LinkedHashMap<>();
+        expected.put("url", json.getStr("url"));
+        expected.put("title", json.getStr("title"));
+        for (int i = 0; i <= ARGS.length(); i++)
+            assertEquals("split at " + i, expected, parse(ARGS.substring(0, i), ARGS.substring(i)));
+    }
+
+    @Test
+    public void reportsFieldBeforeArgumentsEnd() {
+        String partial = "{\"url\": \"https://example.com/\", \"extra\": \"unfin";
+        assertEquals("https://example.com/", parse(partial).get("url"));
+        assertFalse(parse(partial).containsKey("extra"));
+        assertTrue(parse("{\"url\": \"https://exa").isEmpty());
+    }
+}
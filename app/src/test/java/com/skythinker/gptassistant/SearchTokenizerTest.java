@@ -0,0 +1,40 @@
+package com.skythinker.gptassistant;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the CJK bigram segmentation of {@link SearchTokenizer} and the MATCH expressions
+ * built from search keywords; the FTS lookups themselves run in SQLite on the device.
+ */
+public class SearchTokenizerTest {
+    @Test
+    public void indexesCjkAsBigrams() {
+        assertEquals("大模 模型 型 gpt4 的用 用法 法", SearchTokenizer.index("大模型 GPT4的用法。"));
+        assertEquals("hello world", SearchTokenizer.index("Hello, world!"));
+        assertEquals("", SearchTokenizer.index(null));
+    }
+
+    @Test
+    public void buildsPhraseQueries() {
+        assertEquals("\"模型\"", SearchTokenizer.query("模型"));
+        assertEquals("\"型*\"", SearchTokenizer.query("型"));
+        assertEquals("\"gpt4 的*\"", SearchTokenizer.query("GPT4的"));
+        assertEquals("\"模型\" \"gpt*\"", SearchTokenizer.query("模型gpt"));
+        assertEquals("\"天气\" \"好*\"", SearchTokenizer.query(" 天气  好 "));
+        assertNull(SearchTokenizer.query("！？"));
+        assertNull(SearchTokenizer.query(null));
+    }
+
+    @Test
+    public void cutsSnippetAroundFirstMatch() {
+        String text = "0123456789 abcdefghij 0123456789 KEYWORD and more text";
+        assertEquals("...cdefghij 0123456789 KEYWORD and more...",
+                SearchTokenizer.snippet(text, Arrays.asList("keyword", "missing"), 36));
+        assertEquals("0123456789...", SearchTokenizer.snippet(text, Arrays.asList("missing"), 10));
+        assertEquals("...defghij 0123456789 KEYWORD and more text", SearchTokenizer.snippet(text, Arrays.asList("text"), 40)); // match near the end keeps more text before it
+    }
+}
@@ -0,0 +1,38 @@
+package com.skythinker.gptassistant;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the per-model resolution targets, token estimates and format detection of
+ * {@link VisionImageEncoder}; the compression itself needs a real Bitmap.
+ */
+public class VisionImageEncoderTest {
+    @Test
+    public void targetSizeFollowsModel() {
+        assertArrayEquals(new int[] {1024, 768}, VisionImageEncoder.targetSize(4032, 3024, "gpt-4o", false));
+        assertArrayEquals(new int[] {683, 512}, VisionImageEncoder.targetSize(4032, 3024, "gpt-4o", true));
+        assertArrayEquals(new int[] {1568, 1176}, VisionImageEncoder.targetSize(4032, 3024, "claude-3-5-sonnet", false));
+        assertArrayEquals(new int[] {2048, 1536}, VisionImageEncoder.targetSize(4032, 3024, "llava*", false));
+        assertArrayEquals(new int[] {300, 200}, VisionImageEncoder.targetSize(300, 200, "gpt-4o", false)); // never upscaled
+    }
+
+    @Test
+    public void estimatesTokens() {
+        assertEquals(85 + 170 * 4, VisionImageEncoder.estimateTokens(1024, 768, "gpt-4o"));
+        assertEquals(85 + 170, VisionImageEncoder.estimateTokens(512, 512, "gpt-4o"));
+        assertEquals(1600, VisionImageEncoder.estimateTokens(1000, 1200, "claude-3-opus"));
+    }
+
+    @Test
+    public void choosesFormat() {
+        assertTrue(VisionImageEncoder.supportsWebp("gpt-4o"));
+        assertTrue(VisionImageEncoder.supportsWebp("o1"));
+        assertFalse(VisionImageEncoder.supportsWebp("gpt-4o*"));
+        assertFalse(VisionImageEncoder.supportsWebp("qwen-vl"));
+        assertEquals("image/webp", VisionImageEncoder.mimeTypeOf("RIFF\0\0\0\0WEBPVP8 ".getBytes()));
+        assertEquals("image/png", VisionImageEncoder.mimeTypeOf(new byte[] {(byte) 0x89, 'P', 'N', 'G', '\r', '\n'}));
+        assertEquals("image/jpeg", VisionImageEncoder.mimeTypeOf(new byte[] {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF}));
+    }
+}